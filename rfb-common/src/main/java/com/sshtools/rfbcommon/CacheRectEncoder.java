@@ -0,0 +1,211 @@
+package com.sshtools.rfbcommon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Server side of the CacheRect pseudo-encoding. Keeps a mirror of the client's
+ * {@link RectCache} so it knows when a rectangle may be sent as a reference to
+ * a previously transmitted one.
+ * <p>
+ * The rectangle body is a U8 operation followed by a U32 ID. For
+ * {@link RFBConstants#CACHE_RECT_STORE} an S32 nested encoding type and that
+ * encoding's data for the same rectangle follows, and the client keeps the
+ * decoded pixels under the ID. For {@link RFBConstants#CACHE_RECT_HIT} nothing
+ * follows and the client redraws the stored pixels. For
+ * {@link RFBConstants#CACHE_RECT_RESET} the rectangle is empty, the ID is
+ * unused and the client discards its cache.
+ * <p>
+ * When the client sends SetPixelFormat, the server must call
+ * {@link #writeReset(ProtocolWriter)} in the next update, so both sides
+ * discard their caches at the same point in the stream. SetEncodings does not
+ * affect the cache.
+ * <p>
+ * If the client does not hold a referenced rectangle it sends a
+ * {@link RFBConstants#CMSG_CACHE_RECT} message, subtype U8
+ * {@link RFBConstants#CACHE_RECT_MISS} and the U32 ID, to be passed to
+ * {@link #readMessage(ProtocolReader)}, and requests a non-incremental update
+ * of the area.
+ */
+public class CacheRectEncoder {
+
+	private final Map<ByteBuffer, Integer> ids = new HashMap<ByteBuffer, Integer>();
+	private final RectCache<ByteBuffer> mirror;
+	private final MessageDigest digest;
+	private int minimumPixels = 1024;
+	private int nextId;
+
+	public CacheRectEncoder(int level) {
+		mirror = new RectCache<ByteBuffer>(RectCache.getPixelBudget(level)) {
+			@Override
+			protected void evicted(int id, ByteBuffer key) {
+				Integer current = ids.get(key);
+				if (current != null && current.intValue() == id) {
+					ids.remove(key);
+				}
+			}
+		};
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int getMinimumPixels() {
+		return minimumPixels;
+	}
+
+	/**
+	 * Set the smallest rectangle (in pixels) worth caching. Below this the
+	 * overhead of the cache message is not worth it.
+	 * 
+	 * @param minimumPixels minimum pixels
+	 */
+	public void setMinimumPixels(int minimumPixels) {
+		this.minimumPixels = minimumPixels;
+	}
+
+	public boolean isCacheable(int width, int height) {
+		return width * height >= minimumPixels
+				&& width * height <= mirror.getPixelBudget();
+	}
+
+	/**
+	 * Look for a rectangle with the same content already held by the client.
+	 * 
+	 * @param data pixel data, in the client's pixel format
+	 * @param off offset
+	 * @param len length
+	 * @param width width
+	 * @param height height
+	 * @return ID or -1 if not cached
+	 */
+	public int lookup(byte[] data, int off, int len, int width, int height) {
+		Integer id = ids.get(key(data, off, len, width, height));
+		if (id == null) {
+			return -1;
+		}
+		// Keep the mirror's LRU order in step with the client
+		mirror.get(id);
+		return id;
+	}
+
+	/**
+	 * Write a rectangle header and body referencing a cached rectangle.
+	 * 
+	 * @param out output
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 * @param id ID returned by {@link #lookup(byte[], int, int, int, int)}
+	 * @throws IOException
+	 */
+	public void writeHit(ProtocolWriter out, int x, int y, int width,
+			int height, int id) throws IOException {
+		writeHeader(out, x, y, width, height);
+		out.writeByte(RFBConstants.CACHE_RECT_HIT);
+		out.writeUInt32(id & 0xffffffffl);
+	}
+
+	/**
+	 * Write a rectangle header and body asking the client to store the
+	 * rectangle that follows. The caller must then write the rectangle data
+	 * using the nested encoding.
+	 * 
+	 * @param out output
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 * @param nestedEncoding encoding used for the rectangle data
+	 * @param data pixel data, in the client's pixel format
+	 * @param off offset
+	 * @param len length
+	 * @return ID assigned
+	 * @throws IOException
+	 */
+	public int writeStore(ProtocolWriter out, int x, int y, int width,
+			int height, int nestedEncoding, byte[] data, int off, int len)
+			throws IOException {
+		int id = nextId++;
+		ByteBuffer key = key(data, off, len, width, height);
+		mirror.remove(id);
+		if (mirror.put(id, width, height, key)) {
+			ids.put(key, id);
+		}
+		writeHeader(out, x, y, width, height);
+		out.writeByte(RFBConstants.CACHE_RECT_STORE);
+		out.writeUInt32(id & 0xffffffffl);
+		out.writeInt(nestedEncoding);
+		return id;
+	}
+
+	/**
+	 * Write an empty rectangle asking the client to discard its cache, and
+	 * discard the mirror.
+	 * 
+	 * @param out output
+	 * @throws IOException
+	 */
+	public void writeReset(ProtocolWriter out) throws IOException {
+		writeHeader(out, 0, 0, 0, 0);
+		out.writeByte(RFBConstants.CACHE_RECT_RESET);
+		out.writeUInt32(0);
+		reset();
+	}
+
+	/**
+	 * Read the body of a {@link RFBConstants#CMSG_CACHE_RECT} message (i.e.
+	 * after the message type).
+	 * 
+	 * @param in input
+	 * @throws IOException
+	 */
+	public void readMessage(ProtocolReader in) throws IOException {
+		int type = in.readUnsignedByte();
+		switch (type) {
+		case RFBConstants.CACHE_RECT_MISS:
+			int id = in.readInt();
+			ByteBuffer key = mirror.remove(id);
+			if (key != null) {
+				Integer current = ids.get(key);
+				if (current != null && current.intValue() == id) {
+					ids.remove(key);
+				}
+			}
+			break;
+		default:
+			throw new IOException("Unknown CacheRect message " + type);
+		}
+	}
+
+	public void reset() {
+		ids.clear();
+		mirror.clear();
+	}
+
+	private void writeHeader(ProtocolWriter out, int x, int y, int width,
+			int height) throws IOException {
+		out.writeShort(x);
+		out.writeShort(y);
+		out.writeShort(width);
+		out.writeShort(height);
+		out.writeInt(RFBConstants.ENC_CACHE_RECT);
+	}
+
+	private ByteBuffer key(byte[] data, int off, int len, int width, int height) {
+		digest.reset();
+		digest.update((byte) (width >> 8));
+		digest.update((byte) width);
+		digest.update((byte) (height >> 8));
+		digest.update((byte) height);
+		digest.update(data, off, len);
+		return ByteBuffer.wrap(digest.digest());
+	}
+}
@@ -0,0 +1,113 @@
+package com.sshtools.rfbcommon;
+
+import java.awt.image.DataBuffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * A {@link DataBuffer} over a {@link ByteBuffer}, allowing images to be kept
+ * in direct (off-heap) or memory mapped buffers. Elements are stored in the
+ * byte order of the supplied buffer. Supports {@link DataBuffer#TYPE_INT},
+ * {@link DataBuffer#TYPE_USHORT} and {@link DataBuffer#TYPE_BYTE} with a
+ * single bank.
+ * <p>
+ * Java2D cannot use its accelerated loops on images using this buffer, so
+ * painting them is slower than painting heap images.
+ */
+public class NioDataBuffer extends DataBuffer {
+
+	private ByteBuffer buffer;
+	private IntBuffer ints;
+	private ShortBuffer shorts;
+
+	public NioDataBuffer(int dataType, ByteBuffer buffer, int size) {
+		super(dataType, size);
+		if (buffer.capacity() < size * getElementSize(dataType)) {
+			throw new IllegalArgumentException("Buffer too small for " + size
+					+ " elements.");
+		}
+		this.buffer = buffer;
+		switch (dataType) {
+		case TYPE_INT:
+			ints = buffer.asIntBuffer();
+			break;
+		case TYPE_USHORT:
+			shorts = buffer.asShortBuffer();
+			break;
+		case TYPE_BYTE:
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported data type "
+					+ dataType);
+		}
+	}
+
+	/**
+	 * Get the number of bytes used by each element of the given type.
+	 * 
+	 * @param dataType type
+	 * @return bytes per element
+	 */
+	public static int getElementSize(int dataType) {
+		return DataBuffer.getDataTypeSize(dataType) / 8;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		if (ints != null) {
+			return ints.get(i);
+		} else if (shorts != null) {
+			return shorts.get(i) & 0xffff;
+		}
+		return buffer.get(i) & 0xff;
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		if (ints != null) {
+			ints.put(i, val);
+		} else if (shorts != null) {
+			shorts.put(i, (short) val);
+		} else {
+			buffer.put(i, (byte) val);
+		}
+	}
+
+	/**
+	 * Copy a run of elements within the buffer. The source and destination
+	 * may overlap.
+	 * 
+	 * @param src source element index
+	 * @param dst destination element index
+	 * @param len number of elements
+	 */
+	public void copyElements(int src, int dst, int len) {
+		if (ints != null) {
+			int[] tmp = new int[len];
+			IntBuffer b = ints.duplicate();
+			b.position(src);
+			b.get(tmp);
+			b.position(dst);
+			b.put(tmp);
+		} else if (shorts != null) {
+			short[] tmp = new short[len];
+			ShortBuffer b = shorts.duplicate();
+			b.position(src);
+			b.get(tmp);
+			b.position(dst);
+			b.put(tmp);
+		} else {
+			byte[] tmp = new byte[len];
+			ByteBuffer b = buffer.duplicate();
+			b.position(src);
+			b.get(tmp);
+			b.position(dst);
+			b.put(tmp);
+		}
+	}
+}
@@ -405,6 +405,23 @@ public class PixelFormat {
 		return imageType;
 	}
 
+	/**
+	 * Get if the wire layout of this pixel format is identical to the layout
+	 * of a {@link BufferedImage#TYPE_INT_RGB} raster on a little-endian host,
+	 * i.e. 32 bits per pixel, little-endian, true colour with 8 bits per
+	 * component and red, green and blue shifts of 16, 8 and 0. Pixels in this
+	 * format may be copied straight into such an image with no per-pixel
+	 * conversion.
+	 * 
+	 * @return native format
+	 */
+	public boolean isNative() {
+		return trueColour && bpp == 32 && !bigEndian
+				&& (depth == 24 || depth == 32) && redMax == 0xff
+				&& greenMax == 0xff && blueMax == 0xff && redShift == 16
+				&& greenShift == 8 && blueShift == 0;
+	}
+
 	@Override
 	public String toString() {
 		return "PixelFormat [bigEndian=" + bigEndian + ", trueColour="
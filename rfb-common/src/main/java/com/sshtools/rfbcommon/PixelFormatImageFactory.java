@@ -12,6 +12,7 @@ import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,6 +27,42 @@ public class PixelFormatImageFactory {
     }
 
     public BufferedImage create(int width, int height) {
+        return create(width, height, null);
+    }
+
+    /**
+     * Get the size in bytes of the buffer needed to hold an image of the given
+     * size in the current pixel format.
+     *
+     * @param width width
+     * @param height height
+     * @return bytes needed
+     */
+    public int getBufferSize(int width, int height) {
+        return width * height * NioDataBuffer.getElementSize(getDataType());
+    }
+
+    /**
+     * Create an image in the current pixel format. If a buffer is supplied,
+     * the image's pixels are stored in it (see {@link NioDataBuffer}),
+     * otherwise they are on the heap.
+     *
+     * @param width width
+     * @param height height
+     * @param buffer buffer or <code>null</code> for a heap image
+     * @return image
+     */
+    public BufferedImage create(int width, int height, ByteBuffer buffer) {
+        if (pixelFormat.isNative()) {
+            if (buffer == null) {
+                // A standard image type, so Java2D uses its fastest loops and
+                // decoders may copy pixel data straight into the raster
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            }
+            return createPacked(new DirectColorModel(24, 0xff0000, 0xff00, 0xff), 0xff0000, 0xff00, 0xff, width,
+                            height, buffer);
+        }
+
         ColorModel colorModel = null;
 
         int rmask = 0, gmask = 0, bmask = 0;
@@ -86,37 +123,64 @@ public class PixelFormatImageFactory {
         switch (pixelFormat.getBitsPerPixel()) {
             case 8:
                 if (pixelFormat.isTrueColor()) {
-                    byte[] pixels = new byte[width * height];
-                    DataBuffer dataBuffer = new DataBufferByte(pixels, width * height, 0);
-                    SampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_BYTE, width, height, new int[] {
-                                    rmask, gmask, bmask });
-                    WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
-                    return new BufferedImage(colorModel, raster, false, null);
-                } else {
+                    return createPacked(colorModel, rmask, gmask, bmask, width, height, buffer);
+                } else if (buffer == null) {
                     return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED);
+                } else {
+                    // Same colour model as TYPE_BYTE_INDEXED
+                    ColorModel indexed = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED).getColorModel();
+                    WritableRaster raster = Raster.createWritableRaster(
+                                    indexed.createCompatibleSampleModel(width, height),
+                                    new NioDataBuffer(DataBuffer.TYPE_BYTE, buffer, width * height), null);
+                    return new BufferedImage(indexed, raster, false, null);
                 }
             case 15:
-                return new BufferedImage(width, height, BufferedImage.TYPE_USHORT_555_RGB);
+                if (buffer == null) {
+                    return new BufferedImage(width, height, BufferedImage.TYPE_USHORT_555_RGB);
+                }
+                return createPacked(new DirectColorModel(15, 0x7c00, 0x03e0, 0x001f), 0x7c00, 0x03e0, 0x001f, width,
+                                height, buffer);
             case 16:
-                short[] pixels = new short[width * height];
-                DataBuffer dataBuffer = new DataBufferUShort(pixels, width * height, 0);
-                SampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_USHORT, width, height, new int[] {
-                                rmask, gmask, bmask });
-                WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
-                return new BufferedImage(colorModel, raster, false, null);
             case 24:
             case 32:
-                int[] intPixels = new int[width * height];
-                dataBuffer = new DataBufferInt(intPixels, width * height, 0);
-                sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height,
-                                new int[] { rmask, gmask, bmask });
-                raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
-                return new BufferedImage(colorModel, raster, false, null);
+                return createPacked(colorModel, rmask, gmask, bmask, width, height, buffer);
             default:
                 throw new UnsupportedOperationException();
         }
     }
 
+    private int getDataType() {
+        switch (pixelFormat.getBitsPerPixel()) {
+            case 8:
+                return DataBuffer.TYPE_BYTE;
+            case 15:
+            case 16:
+                return DataBuffer.TYPE_USHORT;
+            default:
+                return DataBuffer.TYPE_INT;
+        }
+    }
+
+    private BufferedImage createPacked(ColorModel colorModel, int rmask, int gmask, int bmask, int width, int height,
+                    ByteBuffer buffer) {
+        int dataType = getDataType();
+        int size = width * height;
+        DataBuffer dataBuffer;
+        if (buffer != null) {
+            dataBuffer = new NioDataBuffer(dataType, buffer, size);
+        } else if (dataType == DataBuffer.TYPE_BYTE) {
+            dataBuffer = new DataBufferByte(new byte[size], size, 0);
+        } else if (dataType == DataBuffer.TYPE_USHORT) {
+            dataBuffer = new DataBufferUShort(new short[size], size, 0);
+        } else {
+            dataBuffer = new DataBufferInt(new int[size], size, 0);
+        }
+        SampleModel sampleModel = new SinglePixelPackedSampleModel(dataType, width, height, new int[] { rmask,
+                        gmask, bmask });
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
     private String toBinaryString(int s, int i) {
         return String.format("%" + s + "s", Integer.toBinaryString(i)).replace(' ', '0');
     }
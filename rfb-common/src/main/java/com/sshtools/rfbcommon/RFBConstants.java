@@ -13,6 +13,11 @@ public interface RFBConstants {
 	public final static int CMSG_KEYBOARD_EVENT = 4;
 	public final static int CMSG_POINTER_EVENT = 5;
 	public final static int CMSG_CUT_TEXT = 6;
+	public final static int CMSG_TILE_CACHE = 160;
+	public final static int TILE_CACHE_INVENTORY = 0;
+	public final static int TILE_CACHE_MISS = 1;
+	public final static int CMSG_CACHE_RECT = 161;
+	public final static int CACHE_RECT_MISS = 0;
 	// Server messages
 	public final static int SMSG_FRAMEBUFFER_UPDATE = 0;
 	public final static int SMSG_SET_COLORMAP = 1;
@@ -130,6 +135,38 @@ public interface RFBConstants {
 	public final static int ENC_LAST_RECT = 0xFFFFFF20;
 	public final static int ENC_NEW_FB_SIZE = 0xFFFFFF21;
 
+	// Rectangle cache. The size pseudo-encoding is offset by a level 0-15,
+	// see RectCache.getPixelBudget(). These are private numbers ("RFBC"),
+	// clear of UltraVNC's 0xFFFF8000 range
+	public final static int ENC_CACHE_RECT = 0x52464243;
+	public final static int ENC_CACHE_RECT_SIZE0 = 0x52464300;
+	public final static int CACHE_RECT_STORE = 0;
+	public final static int CACHE_RECT_HIT = 1;
+	public final static int CACHE_RECT_RESET = 2;
+
+	// Persistent tile cache. A private number ("RFBT")
+	public final static int ENC_TILE_CACHE = 0x52464254;
+	public final static int TILE_CACHE_HELLO = 0;
+	public final static int TILE_CACHE_REF = 1;
+	public final static int TILE_CACHE_STORE = 2;
+	public final static int TILE_CACHE_TILE_SIZE = 64;
+	public final static int TILE_CACHE_HASH_SIZE = 20;
+
+	// Extended clipboard. Messages are cut text with a negative length,
+	// starting with flags of one action and the formats it applies to
+	public final static int ENC_EXTENDED_CLIPBOARD = 0xC0A1E5CE;
+	public final static int EXT_CLIPBOARD_TEXT = 1 << 0;
+	public final static int EXT_CLIPBOARD_RTF = 1 << 1;
+	public final static int EXT_CLIPBOARD_HTML = 1 << 2;
+	public final static int EXT_CLIPBOARD_DIB = 1 << 3;
+	public final static int EXT_CLIPBOARD_FILES = 1 << 4;
+	public final static int EXT_CLIPBOARD_FORMAT_MASK = 0xffff;
+	public final static int EXT_CLIPBOARD_CAPS = 1 << 24;
+	public final static int EXT_CLIPBOARD_REQUEST = 1 << 25;
+	public final static int EXT_CLIPBOARD_PEEK = 1 << 26;
+	public final static int EXT_CLIPBOARD_NOTIFY = 1 << 27;
+	public final static int EXT_CLIPBOARD_PROVIDE = 1 << 28;
+
 	// Caps
 	public static final TightCapability CAP_ENC_RAW = new TightCapability(
 			ENC_RAW, RFB_STANDARD_VENDOR, ENC_RAW_SIG);
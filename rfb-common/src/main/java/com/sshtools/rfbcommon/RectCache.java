@@ -0,0 +1,126 @@
+package com.sshtools.rfbcommon;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used store of rectangles keyed by an ID, bounded by the
+ * total number of pixels held. Eviction is deterministic, so a server can
+ * keep a mirror of a client's cache simply by making the same calls in the
+ * same order.
+ * 
+ * @param <V> type of value stored for each rectangle
+ */
+public class RectCache<V> {
+
+	public final static int MAX_LEVEL = 15;
+
+	private final LinkedHashMap<Integer, Entry<V>> entries = new LinkedHashMap<Integer, Entry<V>>(
+			64, 0.75f, true);
+	private final long pixelBudget;
+	private long pixels;
+
+	/**
+	 * Get the number of pixels a cache of the given level may hold, i.e.
+	 * <code>2^(16 + level)</code>.
+	 * 
+	 * @param level level (0-15)
+	 * @return pixel budget
+	 */
+	public static long getPixelBudget(int level) {
+		if (level < 0 || level > MAX_LEVEL) {
+			throw new IllegalArgumentException("Cache level must be between 0 and " + MAX_LEVEL);
+		}
+		return 1l << (16 + level);
+	}
+
+	public RectCache(long pixelBudget) {
+		this.pixelBudget = pixelBudget;
+	}
+
+	public long getPixelBudget() {
+		return pixelBudget;
+	}
+
+	public long getPixels() {
+		return pixels;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Store a rectangle, evicting the least recently used entries until it
+	 * fits. Rectangles larger than the whole budget are not stored.
+	 * 
+	 * @param id ID
+	 * @param width width
+	 * @param height height
+	 * @param value value
+	 * @return stored
+	 */
+	public boolean put(int id, int width, int height, V value) {
+		long size = (long) width * height;
+		if (size > pixelBudget) {
+			return false;
+		}
+		remove(id);
+		Iterator<Map.Entry<Integer, Entry<V>>> it = entries.entrySet()
+				.iterator();
+		while (pixels + size > pixelBudget && it.hasNext()) {
+			Map.Entry<Integer, Entry<V>> en = it.next();
+			it.remove();
+			pixels -= en.getValue().size;
+			evicted(en.getKey(), en.getValue().value);
+		}
+		entries.put(id, new Entry<V>(value, size));
+		pixels += size;
+		return true;
+	}
+
+	/**
+	 * Get a rectangle, making it the most recently used.
+	 * 
+	 * @param id ID
+	 * @return value or <code>null</code> if not cached
+	 */
+	public V get(int id) {
+		Entry<V> en = entries.get(id);
+		return en == null ? null : en.value;
+	}
+
+	public V remove(int id) {
+		Entry<V> en = entries.remove(id);
+		if (en == null) {
+			return null;
+		}
+		pixels -= en.size;
+		return en.value;
+	}
+
+	public void clear() {
+		entries.clear();
+		pixels = 0;
+	}
+
+	/**
+	 * Called when an entry is evicted to make room for another.
+	 * 
+	 * @param id ID
+	 * @param value value
+	 */
+	protected void evicted(int id, V value) {
+	}
+
+	static class Entry<V> {
+		V value;
+		long size;
+
+		Entry(V value, long size) {
+			this.value = value;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.sshtools.rfbcommon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Server side helpers for the persistent tile cache pseudo-encoding
+ * ({@link RFBConstants#ENC_TILE_CACHE}).
+ * <p>
+ * Tiles are at most {@link RFBConstants#TILE_CACHE_TILE_SIZE} pixels square
+ * and are identified by the SHA-1 of the client's pixel format, the tile size
+ * and the tile's pixel data in that format (see
+ * {@link #hash(PixelFormat, int, int, byte[], int, int)}), so the same content
+ * has the same key across sessions and servers.
+ * <p>
+ * The exchange is :-
+ * <ol>
+ * <li>The client includes {@link RFBConstants#ENC_TILE_CACHE} in
+ * SetEncodings.</li>
+ * <li>The server confirms with a rectangle of that encoding, zero size, with a
+ * body of U8 {@link RFBConstants#TILE_CACHE_HELLO}.</li>
+ * <li>The client replies with a {@link RFBConstants#CMSG_TILE_CACHE} message,
+ * subtype U8 {@link RFBConstants#TILE_CACHE_INVENTORY}, U32 capacity (in
+ * tiles), U32 count and then count 8 byte hash prefixes of the tiles it
+ * holds, most recently used last.</li>
+ * <li>For each tile the server then either sends U8
+ * {@link RFBConstants#TILE_CACHE_REF} and the 20 byte hash, or U8
+ * {@link RFBConstants#TILE_CACHE_STORE}, the 20 byte hash, S32 nested encoding
+ * and that encoding's data.</li>
+ * <li>If the client no longer has a referenced tile it sends a
+ * {@link RFBConstants#CMSG_TILE_CACHE} message, subtype U8
+ * {@link RFBConstants#TILE_CACHE_MISS} and the 20 byte hash, and requests a
+ * non-incremental update of the area.</li>
+ * </ol>
+ */
+public class TileCacheEncoder {
+
+	private final LinkedHashMap<Long, Boolean> held = new LinkedHashMap<Long, Boolean>(
+			256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+			return size() > capacity;
+		}
+	};
+	private int capacity;
+	private boolean enabled;
+
+	/**
+	 * Calculate the key for a tile.
+	 * 
+	 * @param format client pixel format
+	 * @param width width
+	 * @param height height
+	 * @param data pixel data in the client pixel format
+	 * @param off offset
+	 * @param len length
+	 * @return 20 byte hash
+	 */
+	public static byte[] hash(PixelFormat format, int width, int height,
+			byte[] data, int off, int len) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			ByteArrayOutputStream pf = new ByteArrayOutputStream(16);
+			format.write(pf);
+			digest.update(pf.toByteArray());
+			digest.update((byte) width);
+			digest.update((byte) height);
+			digest.update(data, off, len);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Get the first 8 bytes of a hash as used in the inventory.
+	 * 
+	 * @param hash hash
+	 * @return prefix
+	 */
+	public static long prefix(byte[] hash) {
+		long l = 0;
+		for (int i = 0; i < 8; i++) {
+			l = (l << 8) | (hash[i] & 0xff);
+		}
+		return l;
+	}
+
+	/**
+	 * Get if the client has sent its inventory, and so tile references may be
+	 * sent.
+	 * 
+	 * @return enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Write the confirmation that the server supports the tile cache. Must be
+	 * sent as one of the rectangles of a framebuffer update.
+	 * 
+	 * @param out output
+	 * @throws IOException
+	 */
+	public void writeHello(ProtocolWriter out) throws IOException {
+		writeHeader(out, 0, 0, 0, 0);
+		out.writeByte(RFBConstants.TILE_CACHE_HELLO);
+	}
+
+	/**
+	 * Read the body of a {@link RFBConstants#CMSG_TILE_CACHE} message (i.e.
+	 * after the message type).
+	 * 
+	 * @param in input
+	 * @throws IOException
+	 */
+	public void readMessage(ProtocolReader in) throws IOException {
+		int type = in.readUnsignedByte();
+		switch (type) {
+		case RFBConstants.TILE_CACHE_INVENTORY:
+			capacity = in.readInt();
+			int count = in.readInt();
+			held.clear();
+			for (int i = 0; i < count; i++) {
+				held.put(in.readLong(), Boolean.TRUE);
+			}
+			enabled = true;
+			break;
+		case RFBConstants.TILE_CACHE_MISS:
+			byte[] hash = new byte[RFBConstants.TILE_CACHE_HASH_SIZE];
+			in.readFully(hash);
+			held.remove(prefix(hash));
+			break;
+		default:
+			throw new IOException("Unknown tile cache message " + type);
+		}
+	}
+
+	/**
+	 * Get if the client is believed to hold a tile.
+	 * 
+	 * @param hash hash
+	 * @return held
+	 */
+	public boolean isHeld(byte[] hash) {
+		return enabled && held.get(prefix(hash)) != null;
+	}
+
+	public void writeRef(ProtocolWriter out, int x, int y, int width,
+			int height, byte[] hash) throws IOException {
+		writeHeader(out, x, y, width, height);
+		out.writeByte(RFBConstants.TILE_CACHE_REF);
+		out.write(hash, 0, RFBConstants.TILE_CACHE_HASH_SIZE);
+	}
+
+	/**
+	 * Write a tile the client should store. The caller must then write the
+	 * tile data using the nested encoding.
+	 * 
+	 * @param out output
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 * @param hash hash
+	 * @param nestedEncoding encoding used for the tile data
+	 * @throws IOException
+	 */
+	public void writeStore(ProtocolWriter out, int x, int y, int width,
+			int height, byte[] hash, int nestedEncoding) throws IOException {
+		if (width > RFBConstants.TILE_CACHE_TILE_SIZE
+				|| height > RFBConstants.TILE_CACHE_TILE_SIZE) {
+			throw new IllegalArgumentException("Tile too large.");
+		}
+		writeHeader(out, x, y, width, height);
+		out.writeByte(RFBConstants.TILE_CACHE_STORE);
+		out.write(hash, 0, RFBConstants.TILE_CACHE_HASH_SIZE);
+		out.writeInt(nestedEncoding);
+		if (enabled) {
+			held.put(prefix(hash), Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Forget everything about the client's cache. Should be called when the
+	 * client sends SetPixelFormat or SetEncodings, after which the client
+	 * will send a new inventory in response to another hello.
+	 */
+	public void reset() {
+		held.clear();
+		enabled = false;
+	}
+
+	private void writeHeader(ProtocolWriter out, int x, int y, int width,
+			int height) throws IOException {
+		out.writeShort(x);
+		out.writeShort(y);
+		out.writeShort(width);
+		out.writeShort(height);
+		out.writeInt(RFBConstants.ENC_TILE_CACHE);
+	}
+}
@@ -5,6 +5,8 @@ import java.awt.Insets;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.peer.FramePeer;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 
@@ -34,18 +36,32 @@ public class RFBPlayer extends JFrame implements RFBEventHandler {
 	}
 
 	public void open(File file) throws IOException, RFBAuthenticationException {
+		open(file, 0);
+	}
+
+	public void open(File file, long offset) throws IOException,
+			RFBAuthenticationException {
 		slider.setMaximum((int) (file.length() / 1024));
-		RecordedTransport tr = new RecordedTransport(file);
+		RecordedTransport tr = new RecordedTransport(file, offset);
 		RFBContext ctx = tr.getContext();
 		System.out.println("Initialising session");
 		display.initialiseSession(tr, ctx, this);
-		System.out.println("Starting protocol");
-		display.getEngine().startRFBProtocol();
+		if (tr.getKeyframe() == null) {
+			System.out.println("Starting protocol");
+			display.getEngine().startRFBProtocol();
+		} else {
+			System.out.println("Resuming protocol");
+			display.getEngine().resumeRFBProtocol(
+					new DataInputStream(new ByteArrayInputStream(tr
+							.getKeyframe())));
+		}
 	}
 
 	public static void main(String[] args) throws Exception {
 		RFBPlayer p = new RFBPlayer();
-		if (args.length > 0) {
+		if (args.length > 1) {
+			p.open(new File(args[0]), Long.parseLong(args[1]) * 1000);
+		} else if (args.length > 0) {
 			p.open(new File(args[0]));
 		}
 		p.addWindowListener(new WindowAdapter() {
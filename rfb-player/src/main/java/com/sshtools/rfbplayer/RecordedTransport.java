@@ -1,17 +1,16 @@
 package com.sshtools.rfbplayer;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 
 import com.sshtools.rfb.RFBContext;
 import com.sshtools.rfb.RFBTransport;
+import com.sshtools.rfbrecorder.RecordingIndexEntry;
+import com.sshtools.rfbrecorder.RecordingReader;
 
 public class RecordedTransport implements RFBTransport {
 
@@ -21,23 +20,47 @@ public class RecordedTransport implements RFBTransport {
 	private PipedOutputStream inputsPipe;
 	private PipedInputStream input;
 	private PipedOutputStream output;
-	private DataInputStream in;
+	private RecordingReader in;
 	private PipedInputStream outputsPipe;
 	private Thread pipeThread;
 	private boolean open;
+	private byte[] keyframe;
 
 	public RecordedTransport(File file) throws IOException {
-		in = new DataInputStream(new FileInputStream(file));
-		hostname = in.readUTF();
-		port = in.readInt();
-		System.out.println("Host " + hostname + ":" + port);
-		ObjectInputStream oin = new ObjectInputStream(in);
-		try {
-			context = (RFBContext) oin.readObject();
-		} catch (ClassNotFoundException cnfe) {
-			throw new IOException("Failed to read context.", cnfe);
-		}
+		this(file, 0);
+	}
+
+	/**
+	 * Play a recording from the last keyframe at or before an offset from its
+	 * start. If there is no such keyframe, play from the start (which may
+	 * itself be a keyframe).
+	 * 
+	 * @param file recording
+	 * @param offset offset (ms)
+	 * @throws IOException on error
+	 */
+	public RecordedTransport(File file, long offset) throws IOException {
+		in = new RecordingReader(file);
+		hostname = in.getHostname();
+		port = in.getPort();
+		System.out.println("Host " + hostname + ":" + port + " (version "
+				+ in.getVersion() + ")");
+		context = in.getContext();
+		// Never draw from (or store into) this machine's tile cache
+		context.setTileCacheSlots(0);
 		System.out.println("Context: " + context);
+		if (offset > 0 && !in.getIndex().isEmpty()) {
+			RecordingIndexEntry entry = in.findKeyframe(in.getIndex().get(0)
+					.getTime() + offset);
+			if (entry != null) {
+				System.out.println("Starting from keyframe at " + entry);
+				keyframe = in.readKeyframe(entry);
+			}
+		}
+		if (keyframe == null) {
+			// A segment of a longer recording
+			keyframe = in.readLeadingKeyframe();
+		}
 		open = true;
 
 	}
@@ -46,6 +69,16 @@ public class RecordedTransport implements RFBTransport {
 		return context;
 	}
 
+	/**
+	 * Get the state to resume the session from, or <code>null</code> if
+	 * playing from the start.
+	 * 
+	 * @return keyframe state
+	 */
+	public byte[] getKeyframe() {
+		return keyframe;
+	}
+
 	public String getHostname() {
 		return hostname;
 	}
@@ -115,9 +148,15 @@ public class RecordedTransport implements RFBTransport {
 					long last = -1;
 					long sleepTime = 0;
 					long start = 0;
-					while (open) {
-						boolean input = in.readBoolean();
-						long time = in.readLong();
+					while (open && in.next()) {
+						if (in.isGap()) {
+							System.out.println(in.getLength()
+									+ " bytes were lost when recording, "
+									+ "play from a later keyframe.");
+							break;
+						}
+						boolean input = in.isInput();
+						long time = in.getTime();
 						if (start == 0) {
 							start = time;
 						}
@@ -125,13 +164,19 @@ public class RecordedTransport implements RFBTransport {
 							sleepTime = time - last;
 							Thread.sleep(sleepTime);
 						}
-						int len = in.readInt();
-						byte[] b = new byte[len];
-						in.read(b, 0, len);
+						int len = in.getLength();
+						byte[] b = in.getData();
 						if (input) {
 							inputsPipe.write(b, 0, len);
 						} else {
-							outputsPipe.read(b);
+							// Drain what the viewer wrote
+							for (int r = 0; r < len;) {
+								int n = outputsPipe.read(b, r, len - r);
+								if (n == -1) {
+									break;
+								}
+								r += n;
+							}
 						}
 						last = time;
 					}
@@ -0,0 +1,694 @@
+package com.sshtools.rfbrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands recorded data to a {@link RecordingWriter} (or another sink, such as
+ * a {@link SegmentedRecordingWriter}) in another thread, so
+ * compressing and writing a recording never holds up the thread reading from
+ * the server. Data is copied into a fixed size ring buffer, which is drained
+ * by a thread of the writer's own or by a pool shared by many recordings.
+ * Keyframes are queued the same way, so count against the capacity too.
+ * <p>
+ * What happens when the ring buffer is full depends on the policy:
+ * <ul>
+ * <li>{@link #BLOCK} waits for space, slowing the session down to the speed
+ * of the disk. A keyframe larger than the whole ring buffer is written
+ * directly once everything queued has been written.</li>
+ * <li>{@link #DROP} throws the data away, and records a gap in its place
+ * (see {@link RecordingFormat#EVENT_GAP}). A recording can be followed again
+ * from the next keyframe. A keyframe that does not fit is thrown away, so the
+ * capacity should be well above the size of a keyframe (about the size of the
+ * framebuffer).</li>
+ * <li>{@link #SPILL} appends the data to a temporary file until the writer
+ * catches up. Use a spill directory on a fast local disk.</li>
+ * </ul>
+ */
+public class AsyncRecordingWriter implements RecordingSink {
+
+	public final static int BLOCK = 0;
+	public final static int DROP = 1;
+	public final static int SPILL = 2;
+
+	public final static int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+	private final static int HEADER = 13;
+	private final static int FLAG_INPUT = 1;
+	private final static int FLAG_KEYFRAME = 2;
+	private final static int FLAG_GAP = 4;
+	private final static int BATCH = 256 * 1024;
+
+	private final RecordingSink writer;
+	private final int policy;
+	private final File spillDirectory;
+	private final Executor executor;
+	private final ExecutorService ownExecutor;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+	private final byte[] ring;
+	private final byte[] header = new byte[HEADER];
+	private final byte[] single = new byte[1];
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	private byte[] batch = new byte[BATCH];
+	private int head;
+	private int used;
+	private boolean scheduled;
+	private boolean closed;
+	private IOException failure;
+
+	private RandomAccessFile spillFile;
+	private File spillPath;
+	private FileChannel spill;
+	private long spillRead;
+	private long spillWrite;
+	private boolean spilling;
+
+	private long inputCount;
+	private long pendingGap;
+	private long droppedBytes;
+	private long droppedKeyframes;
+	private long spilledBytes;
+	private long enqueuedTime;
+	private long writtenTime;
+	private int queuedKeyframes;
+
+	/**
+	 * Write from a thread of this writer's own, blocking when full.
+	 *
+	 * @param writer writer
+	 */
+	public AsyncRecordingWriter(RecordingSink writer) {
+		this(writer, DEFAULT_CAPACITY, BLOCK, null, null);
+	}
+
+	/**
+	 * Create a writer.
+	 *
+	 * @param writer writer
+	 * @param capacity size of the ring buffer
+	 * @param policy what to do when full, one of {@link #BLOCK},
+	 *            {@link #DROP} or {@link #SPILL}
+	 * @param spillDirectory directory for the spill file or <code>null</code>
+	 *            for the default temporary directory
+	 * @param executor executor to write in (e.g. a pool shared by many
+	 *            recordings), or <code>null</code> to use a thread of this
+	 *            writer's own
+	 */
+	public AsyncRecordingWriter(RecordingSink writer, int capacity,
+			int policy, File spillDirectory, Executor executor) {
+		if (policy < BLOCK || policy > SPILL) {
+			throw new IllegalArgumentException("Unknown policy.");
+		}
+		if (capacity < HEADER * 16) {
+			throw new IllegalArgumentException("Capacity too small.");
+		}
+		this.writer = writer;
+		this.policy = policy;
+		this.spillDirectory = spillDirectory;
+		ring = new byte[capacity];
+		if (executor == null) {
+			ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "AsyncRecordingWriter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this.executor = ownExecutor;
+		} else {
+			ownExecutor = null;
+			this.executor = executor;
+		}
+	}
+
+	@Override
+	public void write(boolean input, int b) throws IOException {
+		lock.lock();
+		try {
+			single[0] = (byte) b;
+			enqueue(input ? FLAG_INPUT : 0, System.currentTimeMillis(),
+					single, 0, 1);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(boolean input, byte[] b, int off, int len)
+			throws IOException {
+		write(input, System.currentTimeMillis(), b, off, len);
+	}
+
+	@Override
+	public void write(boolean input, long time, byte[] b, int off, int len)
+			throws IOException {
+		int max = ring.length / 4;
+		lock.lock();
+		try {
+			while (len > 0) {
+				int n = Math.min(len, max);
+				enqueue(input ? FLAG_INPUT : 0, time, b, off, n);
+				off += n;
+				len -= n;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void writeKeyframe(long time, byte[] state) throws IOException {
+		lock.lock();
+		try {
+			checkOpen();
+			int need = HEADER + state.length + gapSize();
+			if (!spilling && ring.length - used < need) {
+				if (policy == DROP) {
+					// Another will be taken later
+					droppedKeyframes++;
+					return;
+				}
+				if (policy == BLOCK && need > ring.length) {
+					writeKeyframeDirect(time, state);
+					return;
+				}
+				makeRoom(need);
+			}
+			putGap(time);
+			put(FLAG_KEYFRAME, time, state, 0, state.length);
+			queuedKeyframes++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void writeGap(long time, long bytes) throws IOException {
+		lock.lock();
+		try {
+			checkOpen();
+			pendingGap += bytes;
+			enqueuedTime = time;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get whether the writer wants a keyframe. This is <code>false</code>
+	 * while a keyframe is queued, as the writer will only stop wanting one
+	 * once it has been written.
+	 */
+	@Override
+	public boolean isKeyframeNeeded() {
+		lock.lock();
+		try {
+			if (queuedKeyframes > 0) {
+				return false;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return writer.isKeyframeNeeded();
+	}
+
+	/**
+	 * Get the sink written to.
+	 *
+	 * @return sink
+	 */
+	public RecordingSink getSink() {
+		return writer;
+	}
+
+	@Override
+	public long getInputCount() {
+		lock.lock();
+		try {
+			return inputCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of bytes waiting to be written, in the ring buffer and
+	 * the spill file.
+	 *
+	 * @return bytes queued
+	 */
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			return used + spillWrite - spillRead;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get how far the writer is behind, as the difference between the times
+	 * of the last data queued and the last data written.
+	 *
+	 * @return lag (ms)
+	 */
+	public long getLag() {
+		lock.lock();
+		try {
+			return used == 0 && !spilling ? 0 : Math.max(0, enqueuedTime
+					- writtenTime);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of bytes thrown away by the {@link #DROP} policy.
+	 *
+	 * @return bytes dropped
+	 */
+	public long getDroppedBytes() {
+		lock.lock();
+		try {
+			return droppedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of keyframes thrown away by the {@link #DROP} policy.
+	 *
+	 * @return keyframes dropped
+	 */
+	public long getDroppedKeyframes() {
+		lock.lock();
+		try {
+			return droppedKeyframes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of bytes written to the spill file by the {@link #SPILL}
+	 * policy.
+	 *
+	 * @return bytes spilled
+	 */
+	public long getSpilledBytes() {
+		lock.lock();
+		try {
+			return spilledBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for everything queued to be written, then flush the writer.
+	 */
+	@Override
+	public void flush() throws IOException {
+		awaitDrained();
+		writer.flush();
+	}
+
+	/**
+	 * Wait for everything queued to be written, then close the writer.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			if (pendingGap > 0 && failure == null) {
+				// Mark data dropped since the last record
+				if (!spilling && ring.length - used < HEADER) {
+					makeRoom(HEADER);
+				}
+				putGap(enqueuedTime);
+			}
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			awaitDrained();
+		} finally {
+			try {
+				writer.close();
+			} finally {
+				if (ownExecutor != null) {
+					ownExecutor.shutdown();
+				}
+				closeSpill();
+			}
+		}
+	}
+
+	private void awaitDrained() throws IOException {
+		lock.lock();
+		try {
+			while (scheduled) {
+				drained.await();
+			}
+			if (failure != null) {
+				throw new IOException("Recording failed.", failure);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write a keyframe too large for the ring buffer straight to the writer,
+	 * once everything queued has been written. Called with the lock held, so
+	 * nothing else can be queued in the meantime.
+	 */
+	private void writeKeyframeDirect(long time, byte[] state)
+			throws IOException {
+		try {
+			while (scheduled) {
+				drained.await();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		checkOpen();
+		if (pendingGap > 0) {
+			writer.writeGap(enqueuedTime, pendingGap);
+			pendingGap = 0;
+		}
+		writer.writeKeyframe(time, state);
+		writtenTime = time;
+	}
+
+	private void checkOpen() throws IOException {
+		if (failure != null) {
+			throw new IOException("Recording failed.", failure);
+		}
+		if (closed) {
+			throw new IOException("Recording is closed.");
+		}
+	}
+
+	private void enqueue(int flags, long time, byte[] b, int off, int len)
+			throws IOException {
+		checkOpen();
+		if ((flags & FLAG_INPUT) != 0) {
+			inputCount += len;
+		}
+		int need = HEADER + len + gapSize();
+		if (!spilling && ring.length - used < need) {
+			if (policy == DROP) {
+				droppedBytes += len;
+				pendingGap += len;
+				enqueuedTime = time;
+				return;
+			}
+			makeRoom(need);
+		}
+		putGap(time);
+		put(flags, time, b, off, len);
+		enqueuedTime = time;
+	}
+
+	private void makeRoom(int need) throws IOException {
+		if (policy == SPILL) {
+			openSpill();
+			spilling = true;
+			return;
+		}
+		try {
+			while (ring.length - used < need) {
+				notFull.await();
+				checkOpen();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private int gapSize() {
+		return pendingGap > 0 ? HEADER : 0;
+	}
+
+	private void putGap(long time) throws IOException {
+		if (pendingGap > 0) {
+			put(FLAG_GAP, time, null, 0,
+					(int) Math.min(pendingGap, Integer.MAX_VALUE));
+			pendingGap = 0;
+		}
+	}
+
+	private void put(int flags, long time, byte[] b, int off, int len)
+			throws IOException {
+		header[0] = (byte) flags;
+		for (int i = 0; i < 8; i++) {
+			header[1 + i] = (byte) (time >>> (56 - i * 8));
+		}
+		header[9] = (byte) (len >>> 24);
+		header[10] = (byte) (len >>> 16);
+		header[11] = (byte) (len >>> 8);
+		header[12] = (byte) len;
+		int dataLen = b == null ? 0 : len;
+		if (spilling) {
+			spillWrite += write(spill, ByteBuffer.wrap(header), spillWrite);
+			if (dataLen > 0) {
+				spillWrite += write(spill, ByteBuffer.wrap(b, off, dataLen),
+						spillWrite);
+				spilledBytes += dataLen;
+			}
+		} else {
+			copyIn(header, 0, HEADER);
+			if (dataLen > 0) {
+				copyIn(b, off, dataLen);
+			}
+		}
+		if (!scheduled) {
+			try {
+				executor.execute(drainTask);
+			} catch (RejectedExecutionException ree) {
+				throw new IOException("Writer is shut down.", ree);
+			}
+			scheduled = true;
+		}
+	}
+
+	private void copyIn(byte[] b, int off, int len) {
+		int tail = (head + used) % ring.length;
+		int first = Math.min(len, ring.length - tail);
+		System.arraycopy(b, off, ring, tail, first);
+		System.arraycopy(b, off + first, ring, 0, len - first);
+		used += len;
+	}
+
+	private void drain() {
+		try {
+			while (true) {
+				int n;
+				long spillFrom = -1;
+				long spillTo = 0;
+				lock.lock();
+				try {
+					if (used > 0) {
+						n = takeRecords();
+					} else if (spilling) {
+						if (spillRead == spillWrite) {
+							spilling = false;
+							spillRead = spillWrite = 0;
+							spill.truncate(0);
+							continue;
+						}
+						n = 0;
+						spillFrom = spillRead;
+						spillTo = Math.min(spillWrite, spillRead + BATCH);
+					} else {
+						scheduled = false;
+						drained.signalAll();
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+				if (spillFrom == -1) {
+					process(batch, n);
+				} else {
+					long pos = drainSpill(spillFrom, spillTo);
+					lock.lock();
+					try {
+						spillRead = pos;
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			lock.lock();
+			try {
+				failure = ioe;
+				used = 0;
+				queuedKeyframes = 0;
+				scheduled = false;
+				notFull.signalAll();
+				drained.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Move whole records from the ring buffer into the batch. Called with the
+	 * lock held.
+	 */
+	private int takeRecords() {
+		int n = 0;
+		while (n < used) {
+			int size = HEADER + dataLength(head + n);
+			if (n > 0 && n + size > BATCH) {
+				break;
+			}
+			n += size;
+		}
+		if (batch.length < n) {
+			batch = new byte[n];
+		}
+		int first = Math.min(n, ring.length - head);
+		System.arraycopy(ring, head, batch, 0, first);
+		System.arraycopy(ring, 0, batch, first, n - first);
+		head = (head + n) % ring.length;
+		used -= n;
+		notFull.signalAll();
+		return n;
+	}
+
+	private int dataLength(int pos) {
+		if ((ring[pos % ring.length] & FLAG_GAP) != 0) {
+			return 0;
+		}
+		int len = 0;
+		for (int i = 9; i < HEADER; i++) {
+			len = (len << 8) | (ring[(pos + i) % ring.length] & 0xff);
+		}
+		return len;
+	}
+
+	private long drainSpill(long pos, long to) throws IOException {
+		ByteBuffer hdr = ByteBuffer.allocate(HEADER);
+		while (pos < to) {
+			hdr.clear();
+			read(spill, hdr, pos);
+			int flags = hdr.get(0);
+			int len = hdr.getInt(9);
+			int dataLen = (flags & FLAG_GAP) != 0 ? 0 : len;
+			if (batch.length < HEADER + dataLen) {
+				batch = new byte[HEADER + dataLen];
+			}
+			System.arraycopy(hdr.array(), 0, batch, 0, HEADER);
+			read(spill, ByteBuffer.wrap(batch, HEADER, dataLen), pos + HEADER);
+			process(batch, HEADER + dataLen);
+			pos += HEADER + dataLen;
+		}
+		return pos;
+	}
+
+	private void process(byte[] b, int n) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(b, 0, n);
+		long time = 0;
+		while (buf.hasRemaining()) {
+			int flags = buf.get();
+			time = buf.getLong();
+			int len = buf.getInt();
+			if ((flags & FLAG_KEYFRAME) != 0) {
+				writer.writeKeyframe(time, Arrays.copyOfRange(b,
+						buf.position(), buf.position() + len));
+				buf.position(buf.position() + len);
+				lock.lock();
+				try {
+					queuedKeyframes--;
+				} finally {
+					lock.unlock();
+				}
+			} else if ((flags & FLAG_GAP) != 0) {
+				writer.writeGap(time, len);
+			} else {
+				writer.write((flags & FLAG_INPUT) != 0, time, b,
+						buf.position(), len);
+				buf.position(buf.position() + len);
+			}
+		}
+		lock.lock();
+		try {
+			writtenTime = time;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void openSpill() throws IOException {
+		if (spill == null) {
+			spillPath = File.createTempFile("rfbrecording", ".spill",
+					spillDirectory);
+			spillPath.deleteOnExit();
+			spillFile = new RandomAccessFile(spillPath, "rw");
+			spill = spillFile.getChannel();
+		}
+	}
+
+	private void closeSpill() throws IOException {
+		if (spill != null) {
+			spillFile.close();
+			spillPath.delete();
+		}
+	}
+
+	private static int write(FileChannel channel, ByteBuffer buf, long pos)
+			throws IOException {
+		int n = 0;
+		while (buf.hasRemaining()) {
+			n += channel.write(buf, pos + n);
+		}
+		return n;
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buf, long pos)
+			throws IOException {
+		int n = 0;
+		while (buf.hasRemaining()) {
+			int r = channel.read(buf, pos + n);
+			if (r == -1) {
+				throw new IOException("Spill file truncated.");
+			}
+			n += r;
+		}
+	}
+}
@@ -1,11 +1,14 @@
 package com.sshtools.rfbrecorder;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
 import com.sshtools.rfb.DummyDisplay;
+import com.sshtools.rfb.ProtocolEngine;
 import com.sshtools.rfb.RFBAuthenticationException;
 import com.sshtools.rfb.RFBContext;
 import com.sshtools.rfb.RFBDisplay;
@@ -13,32 +16,127 @@ import com.sshtools.rfb.RFBEncoding;
 import com.sshtools.rfb.RFBEventHandler;
 import com.sshtools.rfb.RFBSocketTransport;
 import com.sshtools.rfb.RFBTransport;
+import com.sshtools.rfb.RFBUpdateListener;
 
-public class RFBRecorder implements RFBEventHandler {
-	private RFBTransport transport;
+public class RFBRecorder implements RFBEventHandler, RFBUpdateListener {
+	private RecordingTransport transport;
 	private RFBContext context;
 	private RFBDisplay display;
+	private long keyframeInterval;
+	private long keyframeBytes;
+	private long lastKeyframeTime;
+	private long lastKeyframeInput;
+	private long lastDropped;
 
 	public RFBRecorder(RFBContext context, RFBTransport transport, File outFile)
 			throws IOException {
+		this(context, new RecordingTransport(context, outFile, transport));
+	}
+
+	public RFBRecorder(RFBContext context, RecordingTransport transport) {
 		this.context = context;
-		this.transport = new RecordingTransport(context, outFile, transport);
+		this.transport = transport;
 		display = new DummyDisplay(context);
 	}
 
+	/**
+	 * Set how often to record a keyframe, from which the recording can be
+	 * played without replaying everything before it. Must be set before
+	 * {@link #start()}.
+	 * 
+	 * @param keyframeInterval interval (ms) or 0 for no keyframes by time
+	 */
+	public void setKeyframeInterval(long keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Set how many bytes read from the server to record between keyframes.
+	 * Must be set before {@link #start()}.
+	 * 
+	 * @param keyframeBytes bytes or 0 for no keyframes by size
+	 */
+	public void setKeyframeBytes(long keyframeBytes) {
+		this.keyframeBytes = keyframeBytes;
+	}
+
 	public void start() throws IOException, RFBAuthenticationException {
+		// Segments after the first start with a keyframe
+		boolean keyframes = keyframeInterval > 0 || keyframeBytes > 0
+				|| isSegmented(transport.getRecordingSink());
+		// Tiles stored by earlier sessions would not be in the recording
+		context.setTileCacheSlots(0);
+		if (keyframes) {
+			// The contents of the rectangle cache are not part of a keyframe
+			context.setRectCacheLevel(-1);
+		}
 		System.out.println("Initialising session");
 		display.initialiseSession(transport, context, this);
+		if (keyframes) {
+			display.getEngine().setStateTracked(true);
+			display.getEngine().addUpdateListener(this);
+			lastKeyframeTime = System.currentTimeMillis();
+		}
 		System.out.println("Starting protocol");
 		display.getEngine().startRFBProtocol();
 	}
 
+	public void updateComplete(ProtocolEngine engine) {
+		RecordingSink writer = transport.getRecordingSink();
+		long now = System.currentTimeMillis();
+		long input = writer.getInputCount();
+		long dropped = 0;
+		if (writer instanceof AsyncRecordingWriter) {
+			// Follow data lost by the writer with a keyframe as soon as
+			// possible
+			AsyncRecordingWriter async = (AsyncRecordingWriter) writer;
+			dropped = async.getDroppedBytes() + async.getDroppedKeyframes();
+		}
+		if ((keyframeInterval > 0 && now - lastKeyframeTime >= keyframeInterval)
+				|| (keyframeBytes > 0 && input - lastKeyframeInput >= keyframeBytes)
+				|| dropped != lastDropped || writer.isKeyframeNeeded()) {
+			try {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				DataOutputStream dos = new DataOutputStream(buf);
+				engine.saveState(dos);
+				dos.flush();
+				writer.writeKeyframe(now, buf.toByteArray());
+			} catch (IOException ioe) {
+				System.out.println("Failed to record keyframe. " + ioe);
+			}
+			lastKeyframeTime = now;
+			lastKeyframeInput = input;
+			lastDropped = dropped;
+		}
+	}
+
+	private static boolean isSegmented(RecordingSink sink) {
+		if (sink instanceof AsyncRecordingWriter) {
+			sink = ((AsyncRecordingWriter) sink).getSink();
+		}
+		return sink instanceof SegmentedRecordingWriter;
+	}
+
 	public static void main(String[] args) throws Exception {
 		RFBContext context = new RFBContext();
 		RFBTransport transport = new RFBSocketTransport(args[0],
 				Integer.valueOf(args[1]));
-		RFBRecorder recorder = new RFBRecorder(context, transport, new File(
-				args[2]));
+		File out = new File(args[2]);
+		RFBRecorder recorder;
+		if (out.isDirectory()) {
+			// Record in hourly segments
+			recorder = new RFBRecorder(context, new RecordingTransport(
+					new AsyncRecordingWriter(new SegmentedRecordingWriter(out,
+							(args[0] + "_" + args[1]).replaceAll(
+									"[^A-Za-z0-9._]", "_"),
+							transport.getHostname(), transport.getPort(),
+							context)), transport));
+		} else {
+			recorder = new RFBRecorder(context, transport, out);
+		}
+		if (args.length > 3) {
+			recorder.setKeyframeInterval(Long.parseLong(args[3]) * 1000);
+		}
 		recorder.start();
 	}
 
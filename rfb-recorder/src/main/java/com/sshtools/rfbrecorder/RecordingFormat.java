@@ -0,0 +1,70 @@
+package com.sshtools.rfbrecorder;
+
+/**
+ * Constants for the recording file format.
+ * <p>
+ * Version 1 recordings are the host name (UTF), port, the serialized
+ * {@link com.sshtools.rfb.RFBContext}, then for every read or write a
+ * direction (boolean), time (long), length (int) and the data.
+ * <p>
+ * Version 2 recordings start with {@link #MAGIC}, the version byte, the host
+ * name (UTF), port (int) and the length (int) and bytes of the serialized
+ * context. Then follow chunks, each starting with a type byte. A
+ * {@link #CHUNK_DATA} chunk is
+ *
+ * <pre>
+ * byte  compression
+ * long  time of the first event (ms)
+ * long  input bytes recorded before this chunk
+ * int   number of events
+ * int   uncompressed length
+ * int   stored length
+ * byte[stored length] events, each being a flags byte ({@link #EVENT_INPUT}),
+ *       varint time since the previous event, varint length and the data
+ * </pre>
+ *
+ * An event with the {@link #EVENT_GAP} flag has no data, and its length is
+ * the number of bytes that were lost at that point, after which the stream
+ * can only be followed again from the next keyframe.
+ *
+ * Each data chunk is compressed on its own so reading can start at any chunk.
+ * A {@link #CHUNK_KEYFRAME} chunk has the same header (with no events), and
+ * holds the state saved by
+ * {@link com.sshtools.rfb.ProtocolEngine#saveState(java.io.DataOutputStream)}
+ * at the end of a framebuffer update, from which playing can be resumed with
+ * the chunks that follow.
+ * <p>
+ * When the recording is closed, a {@link #CHUNK_INDEX} chunk is written, being
+ * the number of entries (int) and for each its type (byte), file offset, time
+ * and input offset (longs), followed by the offset of the index chunk (long)
+ * and {@link #TRAILER_MAGIC}. A recording that was not closed has no index but
+ * can still be read up to the last complete chunk.
+ */
+public final class RecordingFormat {
+
+	/**
+	 * "RFBR". As a version 1 recording starts with the length of the host name,
+	 * the first byte of which is always zero, the versions can be told apart.
+	 */
+	public final static int MAGIC = 0x52464252;
+	/**
+	 * "RIDX"
+	 */
+	public final static int TRAILER_MAGIC = 0x52494458;
+
+	public final static int VERSION_1 = 1;
+	public final static int VERSION_2 = 2;
+
+	public final static int CHUNK_DATA = 1;
+	public final static int CHUNK_INDEX = 2;
+	public final static int CHUNK_KEYFRAME = 3;
+
+	public final static int COMPRESSION_NONE = 0;
+	public final static int COMPRESSION_DEFLATE = 1;
+
+	public final static int EVENT_INPUT = 1;
+	public final static int EVENT_GAP = 2;
+
+	private RecordingFormat() {
+	}
+}
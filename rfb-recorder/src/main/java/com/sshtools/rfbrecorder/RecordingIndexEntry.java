@@ -0,0 +1,64 @@
+package com.sshtools.rfbrecorder;
+
+/**
+ * An entry in the index of a version 2 recording, locating a chunk that
+ * reading may start from.
+ */
+public class RecordingIndexEntry {
+
+	private final int type;
+	private final long offset;
+	private final long time;
+	private final long inputOffset;
+
+	public RecordingIndexEntry(int type, long offset, long time,
+			long inputOffset) {
+		this.type = type;
+		this.offset = offset;
+		this.time = time;
+		this.inputOffset = inputOffset;
+	}
+
+	/**
+	 * Get the type of the chunk, one of the <code>CHUNK_</code> constants in
+	 * {@link RecordingFormat}.
+	 *
+	 * @return chunk type
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Get the offset of the chunk in the file.
+	 *
+	 * @return offset
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Get the time of the first event in the chunk.
+	 *
+	 * @return time (ms)
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Get the number of input bytes recorded before the chunk.
+	 *
+	 * @return input offset
+	 */
+	public long getInputOffset() {
+		return inputOffset;
+	}
+
+	@Override
+	public String toString() {
+		return "RecordingIndexEntry [type=" + type + ", offset=" + offset
+				+ ", time=" + time + ", inputOffset=" + inputOffset + "]";
+	}
+}
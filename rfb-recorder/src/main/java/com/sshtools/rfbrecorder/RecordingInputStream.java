@@ -1,15 +1,14 @@
 package com.sshtools.rfbrecorder;
 
-import java.io.DataOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 public class RecordingInputStream extends FilterInputStream {
 
-	private DataOutputStream rec;
+	private RecordingSink rec;
 
-	public RecordingInputStream(InputStream in, DataOutputStream rec) {
+	public RecordingInputStream(InputStream in, RecordingSink rec) {
 		super(in);
 		this.rec = rec;
 	}
@@ -18,18 +17,14 @@ public class RecordingInputStream extends FilterInputStream {
 	public int read() throws IOException {
 		int r = super.read();
 		if (r != -1) {
-			writeBlock(new byte[] { (byte)r } , 0,  1);
+			rec.write(true, r);
 		}
 		return r;
 	}
 
 	@Override
 	public int read(byte[] b) throws IOException {
-		int r = super.read(b);
-		if (r != -1) {
-			writeBlock(b, 0,  r);
-		}
-		return r;
+		return read(b, 0, b.length);
 	}
 
 	@Override
@@ -41,12 +36,8 @@ public class RecordingInputStream extends FilterInputStream {
 		return r;
 	}
 
-
 	private void writeBlock(byte[] b, int off, int len) throws IOException {
-		rec.writeBoolean(true);
-		rec.writeLong(System.currentTimeMillis());
-		rec.writeInt(len);
-		rec.write(b, off, len);
+		rec.write(true, b, off, len);
 	}
 
 }
\ No newline at end of file
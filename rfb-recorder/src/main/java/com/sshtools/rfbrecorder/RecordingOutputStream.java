@@ -1,15 +1,14 @@
 package com.sshtools.rfbrecorder;
 
-import java.io.DataOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 public class RecordingOutputStream extends FilterOutputStream {
 	private OutputStream out;
-	private DataOutputStream rec;
+	private RecordingSink rec;
 
-	public RecordingOutputStream(OutputStream out, DataOutputStream rec) {
+	public RecordingOutputStream(OutputStream out, RecordingSink rec) {
 		super(out);
 		this.out = out;
 		this.rec = rec;
@@ -30,13 +29,10 @@ public class RecordingOutputStream extends FilterOutputStream {
 	@Override
 	public void write(int b) throws IOException {
 		out.write(b);
-		writeBlock(new byte[] { (byte)b }, 0, 1);
+		rec.write(false, b);
 	}
 
 	private void writeBlock(byte[] b, int off, int len) throws IOException {
-		rec.writeBoolean(false);
-		rec.writeLong(System.currentTimeMillis());
-		rec.writeInt(len);
-		rec.write(b, off, len);
+		rec.write(false, b, off, len);
 	}
 }
\ No newline at end of file
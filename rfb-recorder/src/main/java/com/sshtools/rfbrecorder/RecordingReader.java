@@ -0,0 +1,425 @@
+package com.sshtools.rfbrecorder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.sshtools.rfb.RFBContext;
+
+/**
+ * Reads recordings of either version (see {@link RecordingFormat}). After the
+ * header has been read by the constructor, call {@link #next()} to move to
+ * each recorded event in turn.
+ * <p>
+ * A version 2 recording that was not closed properly is read up to the last
+ * complete chunk.
+ */
+public class RecordingReader implements Closeable {
+
+	private final FileInputStream file;
+	private final Inflater inflater = new Inflater();
+	private DataInputStream in;
+	private int version;
+	private String hostname;
+	private int port;
+	private RFBContext context;
+	private List<RecordingIndexEntry> index = Collections.emptyList();
+
+	private byte[] chunk = new byte[1024];
+	private byte[] stored = new byte[1024];
+	private int chunkLength;
+	private int chunkOffset;
+	private long time;
+
+	private boolean input;
+	private boolean gap;
+	private byte[] data = new byte[1024];
+	private int length;
+
+	public RecordingReader(File file) throws IOException {
+		this(new FileInputStream(file), file);
+	}
+
+	/**
+	 * Read a recording from a stream. The index is not available.
+	 *
+	 * @param in stream
+	 * @throws IOException on error
+	 */
+	public RecordingReader(InputStream in) throws IOException {
+		this.file = null;
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		readHeader();
+	}
+
+	private RecordingReader(FileInputStream in, File f) throws IOException {
+		this.file = in;
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		try {
+			readHeader();
+			if (version >= RecordingFormat.VERSION_2) {
+				readIndex(f);
+			}
+		} catch (IOException ioe) {
+			in.close();
+			throw ioe;
+		}
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public RFBContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Get the index. This will be empty if the recording is version 1, was
+	 * not closed properly or is being read from a stream.
+	 *
+	 * @return index
+	 */
+	public List<RecordingIndexEntry> getIndex() {
+		return index;
+	}
+
+	/**
+	 * Move to the next event.
+	 *
+	 * @return <code>false</code> at the end of the recording
+	 * @throws IOException on error
+	 */
+	public boolean next() throws IOException {
+		if (version == RecordingFormat.VERSION_1) {
+			try {
+				input = in.readBoolean();
+				gap = false;
+				time = in.readLong();
+				length = in.readInt();
+				data = ensure(data, length);
+				in.readFully(data, 0, length);
+				return true;
+			} catch (EOFException eof) {
+				return false;
+			}
+		}
+		while (chunkOffset >= chunkLength) {
+			if (!readChunk()) {
+				return false;
+			}
+		}
+		int flags = chunk[chunkOffset++];
+		input = (flags & RecordingFormat.EVENT_INPUT) != 0;
+		gap = (flags & RecordingFormat.EVENT_GAP) != 0;
+		time += getVarLong();
+		length = (int) getVarLong();
+		if (gap) {
+			return true;
+		}
+		data = ensure(data, length);
+		System.arraycopy(chunk, chunkOffset, data, 0, length);
+		chunkOffset += length;
+		return true;
+	}
+
+	/**
+	 * Get whether the current event is data read from the server.
+	 *
+	 * @return input
+	 */
+	public boolean isInput() {
+		return input;
+	}
+
+	/**
+	 * Get whether the current event marks data that was lost when recording.
+	 * The length is then the number of bytes lost, and there is no data.
+	 *
+	 * @return gap
+	 */
+	public boolean isGap() {
+		return gap;
+	}
+
+	/**
+	 * Get the time of the current event.
+	 *
+	 * @return time (ms)
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Get the buffer holding the data of the current event. This is only
+	 * valid until the next call to {@link #next()}.
+	 *
+	 * @return data
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Get the length of the data of the current event.
+	 *
+	 * @return length
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Find the last keyframe at or before a time.
+	 *
+	 * @param time time (ms)
+	 * @return index entry of keyframe or <code>null</code> if there is none
+	 */
+	public RecordingIndexEntry findKeyframe(long time) {
+		RecordingIndexEntry found = null;
+		for (RecordingIndexEntry e : index) {
+			if (e.getType() == RecordingFormat.CHUNK_KEYFRAME) {
+				if (e.getTime() > time) {
+					break;
+				}
+				found = e;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Read a keyframe, after which reading continues with the events that
+	 * follow it.
+	 *
+	 * @param entry index entry of keyframe
+	 * @return state saved by the engine, for
+	 *         {@link com.sshtools.rfb.ProtocolEngine#resumeRFBProtocol(DataInputStream)}
+	 * @throws IOException on error
+	 */
+	public byte[] readKeyframe(RecordingIndexEntry entry) throws IOException {
+		seek(entry);
+		if (in.readUnsignedByte() != RecordingFormat.CHUNK_KEYFRAME) {
+			throw new IOException("Not a keyframe.");
+		}
+		return readKeyframeChunk();
+	}
+
+	/**
+	 * Read the keyframe the recording starts with, if any, as every segment
+	 * but the first written by {@link SegmentedRecordingWriter} does. This
+	 * does not need the index, and must be called before {@link #next()}.
+	 *
+	 * @return state saved by the engine or <code>null</code> if the recording
+	 *         does not start with a keyframe
+	 * @throws IOException on error
+	 */
+	public byte[] readLeadingKeyframe() throws IOException {
+		if (version == RecordingFormat.VERSION_1) {
+			return null;
+		}
+		in.mark(1);
+		if (in.read() != RecordingFormat.CHUNK_KEYFRAME) {
+			in.reset();
+			return null;
+		}
+		return readKeyframeChunk();
+	}
+
+	private byte[] readKeyframeChunk() throws IOException {
+		int compression = in.readUnsignedByte();
+		time = in.readLong();
+		in.readLong();
+		in.readInt();
+		int rawLength = in.readInt();
+		int storedLength = in.readInt();
+		byte[] state = new byte[rawLength];
+		readPayload(compression, state, rawLength, storedLength);
+		return state;
+	}
+
+	/**
+	 * Continue reading from the chunk an index entry refers to.
+	 *
+	 * @param entry index entry
+	 * @throws IOException on error
+	 */
+	public void seek(RecordingIndexEntry entry) throws IOException {
+		if (file == null) {
+			throw new IOException("Cannot seek a stream.");
+		}
+		file.getChannel().position(entry.getOffset());
+		in = new DataInputStream(new BufferedInputStream(file));
+		chunkLength = chunkOffset = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+
+	private void readHeader() throws IOException {
+		in.mark(4);
+		if (in.readInt() == RecordingFormat.MAGIC) {
+			version = in.readUnsignedByte();
+			if (version != RecordingFormat.VERSION_2) {
+				throw new IOException("Unsupported recording version "
+						+ version + ".");
+			}
+			hostname = in.readUTF();
+			port = in.readInt();
+			byte[] ctx = new byte[in.readInt()];
+			in.readFully(ctx);
+			context = readContext(new ByteArrayInputStream(ctx));
+		} else {
+			in.reset();
+			version = RecordingFormat.VERSION_1;
+			hostname = in.readUTF();
+			port = in.readInt();
+			context = readContext(in);
+		}
+	}
+
+	private RFBContext readContext(InputStream in) throws IOException {
+		ObjectInputStream oin = new ObjectInputStream(in);
+		try {
+			return (RFBContext) oin.readObject();
+		} catch (ClassNotFoundException cnfe) {
+			throw new IOException("Failed to read context.", cnfe);
+		}
+	}
+
+	private void readIndex(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			long len = raf.length();
+			if (len < 12) {
+				return;
+			}
+			raf.seek(len - 12);
+			long offset = raf.readLong();
+			if (raf.readInt() != RecordingFormat.TRAILER_MAGIC || offset < 0
+					|| offset >= len) {
+				return;
+			}
+			raf.seek(offset);
+			if (raf.readUnsignedByte() != RecordingFormat.CHUNK_INDEX) {
+				return;
+			}
+			int count = raf.readInt();
+			List<RecordingIndexEntry> l = new ArrayList<RecordingIndexEntry>(
+					count);
+			for (int i = 0; i < count; i++) {
+				l.add(new RecordingIndexEntry(raf.readUnsignedByte(), raf
+						.readLong(), raf.readLong(), raf.readLong()));
+			}
+			index = Collections.unmodifiableList(l);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private boolean readChunk() throws IOException {
+		int type;
+		try {
+			type = in.read();
+			if (type == -1 || type == RecordingFormat.CHUNK_INDEX) {
+				return false;
+			}
+			int compression = in.readUnsignedByte();
+			long start = in.readLong();
+			in.readLong();
+			in.readInt();
+			int rawLength = in.readInt();
+			int storedLength = in.readInt();
+			if (type != RecordingFormat.CHUNK_DATA) {
+				// Keyframe or unknown chunk, skip it
+				in.readFully(stored = ensure(stored, storedLength), 0,
+						storedLength);
+				return true;
+			}
+			chunk = ensure(chunk, rawLength);
+			readPayload(compression, chunk, rawLength, storedLength);
+			time = start;
+			chunkOffset = 0;
+			chunkLength = rawLength;
+			return true;
+		} catch (EOFException eof) {
+			// Truncated recording
+			return false;
+		}
+	}
+
+	private void readPayload(int compression, byte[] raw, int rawLength,
+			int storedLength) throws IOException {
+		if (compression == RecordingFormat.COMPRESSION_NONE) {
+			in.readFully(raw, 0, rawLength);
+		} else if (compression == RecordingFormat.COMPRESSION_DEFLATE) {
+			stored = ensure(stored, storedLength);
+			in.readFully(stored, 0, storedLength);
+			inflate(storedLength, raw, rawLength);
+		} else {
+			throw new IOException("Unknown compression " + compression + ".");
+		}
+	}
+
+	private void inflate(int storedLength, byte[] raw, int rawLength)
+			throws IOException {
+		inflater.reset();
+		inflater.setInput(stored, 0, storedLength);
+		try {
+			int n = 0;
+			while (n < rawLength) {
+				int r = inflater.inflate(raw, n, rawLength - n);
+				if (r == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("Corrupt chunk.");
+				}
+				n += r;
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("Corrupt chunk.", dfe);
+		}
+	}
+
+	private long getVarLong() {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = chunk[chunkOffset++];
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+
+	private static byte[] ensure(byte[] b, int size) {
+		if (size <= b.length) {
+			return b;
+		}
+		return new byte[Math.max(size, b.length * 2)];
+	}
+}
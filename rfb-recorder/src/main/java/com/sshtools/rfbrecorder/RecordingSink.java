@@ -0,0 +1,78 @@
+package com.sshtools.rfbrecorder;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Where {@link RecordingInputStream} and {@link RecordingOutputStream} send
+ * the data they record.
+ */
+public interface RecordingSink extends Closeable, Flushable {
+
+	/**
+	 * Record a single byte.
+	 *
+	 * @param input <code>true</code> if read from the server
+	 * @param b byte
+	 * @throws IOException on error
+	 */
+	void write(boolean input, int b) throws IOException;
+
+	/**
+	 * Record data.
+	 *
+	 * @param input <code>true</code> if read from the server
+	 * @param b data
+	 * @param off offset
+	 * @param len length
+	 * @throws IOException on error
+	 */
+	void write(boolean input, byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Record data.
+	 *
+	 * @param input <code>true</code> if read from the server
+	 * @param time time the data was read or written (ms)
+	 * @param b data
+	 * @param off offset
+	 * @param len length
+	 * @throws IOException on error
+	 */
+	void write(boolean input, long time, byte[] b, int off, int len)
+			throws IOException;
+
+	/**
+	 * Record that data was lost at this point.
+	 *
+	 * @param time time (ms)
+	 * @param bytes number of bytes lost
+	 * @throws IOException on error
+	 */
+	void writeGap(long time, long bytes) throws IOException;
+
+	/**
+	 * Record a keyframe at the current position.
+	 *
+	 * @param time time (ms)
+	 * @param state state saved by the engine
+	 * @throws IOException on error
+	 */
+	void writeKeyframe(long time, byte[] state) throws IOException;
+
+	/**
+	 * Get the number of bytes read from the server recorded so far.
+	 *
+	 * @return input bytes
+	 */
+	long getInputCount();
+
+	/**
+	 * Get whether the sink wants a keyframe as soon as possible, e.g. to
+	 * start a new segment with.
+	 *
+	 * @return keyframe needed
+	 */
+	boolean isKeyframeNeeded();
+}
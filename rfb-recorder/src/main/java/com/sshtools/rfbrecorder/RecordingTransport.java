@@ -1,11 +1,9 @@
 package com.sshtools.rfbrecorder;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 
 import com.sshtools.rfb.RFBContext;
@@ -15,7 +13,7 @@ public class RecordingTransport implements RFBTransport {
 
 	private RFBTransport underlyingTransport;
 	private RecordingInputStream in;
-	private DataOutputStream recordStream;
+	private RecordingSink recordStream;
 	private RecordingOutputStream out;
 
 	public RecordingTransport(RFBContext context, File outputFile, RFBTransport underlyingTransport)
@@ -23,15 +21,27 @@ public class RecordingTransport implements RFBTransport {
 		this.underlyingTransport = underlyingTransport;
 
 		
-		recordStream = new DataOutputStream(
-				new FileOutputStream(outputFile));
+		recordStream = new AsyncRecordingWriter(new RecordingWriter(
+				new FileOutputStream(outputFile).getChannel(), getHostname(),
+				getPort(), context));
+	}
 
-		recordStream.writeUTF(getHostname());
-		recordStream.writeInt(getPort());
-		
-		ObjectOutputStream oos = new ObjectOutputStream(recordStream);
-		oos.writeObject(context);
-		oos.flush();
+	/**
+	 * Record to a sink of the caller's choosing, such as an
+	 * {@link AsyncRecordingWriter} with a different policy or shared
+	 * executor.
+	 * 
+	 * @param recordStream sink
+	 * @param underlyingTransport transport to record
+	 */
+	public RecordingTransport(RecordingSink recordStream,
+			RFBTransport underlyingTransport) {
+		this.underlyingTransport = underlyingTransport;
+		this.recordStream = recordStream;
+	}
+
+	public RecordingSink getRecordingSink() {
+		return recordStream;
 	}
 
 	public String getHostname() {
@@ -55,7 +65,11 @@ public class RecordingTransport implements RFBTransport {
 	}
 
 	public void close() throws IOException {
-		underlyingTransport.close();
+		try {
+			underlyingTransport.close();
+		} finally {
+			recordStream.close();
+		}
 	}
 
 	public int getPort() {
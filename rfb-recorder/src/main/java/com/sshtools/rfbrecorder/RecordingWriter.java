@@ -0,0 +1,492 @@
+package com.sshtools.rfbrecorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import com.sshtools.rfb.RFBContext;
+
+/**
+ * Writes a version 2 recording (see {@link RecordingFormat}). Events are
+ * collected into chunks in memory, and each chunk is compressed and written
+ * once it reaches the chunk size or has been open for the chunk time. A
+ * timer shared by all writers also writes a chunk that has been open for the
+ * chunk time when nothing more is recorded, so an idle session does not keep
+ * it in memory. Consecutive events in the same direction within the same
+ * millisecond are merged. Writing to a {@link FileChannel} writes each chunk
+ * header and body with a single gathering write.
+ * <p>
+ * All of this happens in the thread that records, so a slow disk will hold it
+ * up. Use {@link AsyncRecordingWriter} to write from another thread.
+ */
+public class RecordingWriter implements RecordingSink {
+
+	public final static int DEFAULT_CHUNK_SIZE = 256 * 1024;
+	public final static long DEFAULT_CHUNK_TIME = 5000;
+
+	private final static ScheduledExecutorService TIMER = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RecordingWriterTimer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final OutputStream out;
+	private final FileChannel channel;
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+	private final Deflater deflater;
+	private final List<RecordingIndexEntry> index = new ArrayList<RecordingIndexEntry>();
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private long chunkTime = DEFAULT_CHUNK_TIME;
+	private long position;
+	private long inputCount;
+	private byte[] chunk = new byte[1024];
+	private int chunkLength;
+	private int chunkEvents;
+	private long chunkStart = -1;
+	private long chunkInput;
+	private long lastTime;
+	private byte[] pending = new byte[1024];
+	private int pendingLength;
+	private boolean pendingInput;
+	private long pendingTime;
+	private byte[] compressed = new byte[1024];
+	private boolean closed;
+	private boolean syncOnClose;
+	private ScheduledFuture<?> timer;
+	private IOException failure;
+
+	public RecordingWriter(OutputStream out, String hostname, int port,
+			RFBContext context) throws IOException {
+		this(out, null, hostname, port, context, Deflater.BEST_SPEED);
+	}
+
+	public RecordingWriter(OutputStream out, String hostname, int port,
+			RFBContext context, int compressionLevel) throws IOException {
+		this(out, null, hostname, port, context, compressionLevel);
+	}
+
+	public RecordingWriter(FileChannel channel, String hostname, int port,
+			RFBContext context) throws IOException {
+		this(null, channel, hostname, port, context, Deflater.BEST_SPEED);
+	}
+
+	public RecordingWriter(FileChannel channel, String hostname, int port,
+			RFBContext context, int compressionLevel) throws IOException {
+		this(null, channel, hostname, port, context, compressionLevel);
+	}
+
+	private RecordingWriter(OutputStream out, FileChannel channel,
+			String hostname, int port, RFBContext context,
+			int compressionLevel) throws IOException {
+		this.out = out;
+		this.channel = channel;
+		deflater = new Deflater(compressionLevel);
+
+		ByteArrayOutputStream ctx = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(ctx);
+		oos.writeObject(context);
+		oos.flush();
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(header);
+		dos.writeInt(RecordingFormat.MAGIC);
+		dos.writeByte(RecordingFormat.VERSION_2);
+		dos.writeUTF(hostname);
+		dos.writeInt(port);
+		dos.writeInt(ctx.size());
+		ctx.writeTo(dos);
+		dos.flush();
+		write(header.toByteArray());
+		schedule();
+	}
+
+	/**
+	 * Set the uncompressed size at which a chunk is written.
+	 *
+	 * @param chunkSize chunk size
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Set the time after which a chunk is written, however small, even if
+	 * nothing more is recorded. This limits how much is lost if the recorder
+	 * dies.
+	 *
+	 * @param chunkTime chunk time (ms) or 0 to only write a chunk when it is
+	 *            full or the recording is flushed
+	 */
+	public synchronized void setChunkTime(long chunkTime) {
+		this.chunkTime = chunkTime;
+		schedule();
+	}
+
+	/**
+	 * Set whether to force everything to disk when closing a
+	 * {@link FileChannel}, so the recording is complete before it is e.g.
+	 * renamed.
+	 *
+	 * @param syncOnClose sync on close
+	 */
+	public void setSyncOnClose(boolean syncOnClose) {
+		this.syncOnClose = syncOnClose;
+	}
+
+	/**
+	 * Get the number of bytes written to the file so far.
+	 *
+	 * @return bytes written
+	 */
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Get the number of bytes read from the server recorded so far.
+	 *
+	 * @return input bytes
+	 */
+	@Override
+	public synchronized long getInputCount() {
+		return inputCount + (pendingInput ? pendingLength : 0);
+	}
+
+	@Override
+	public boolean isKeyframeNeeded() {
+		return false;
+	}
+
+	/**
+	 * Record a single byte.
+	 *
+	 * @param input <code>true</code> if read from the server
+	 * @param b byte
+	 * @throws IOException on error
+	 */
+	@Override
+	public synchronized void write(boolean input, int b) throws IOException {
+		prepare(input, System.currentTimeMillis(), 1);
+		pending[pendingLength++] = (byte) b;
+	}
+
+	/**
+	 * Record data now.
+	 *
+	 * @param input <code>true</code> if read from the server
+	 * @param b data
+	 * @param off offset
+	 * @param len length
+	 * @throws IOException on error
+	 */
+	@Override
+	public void write(boolean input, byte[] b, int off, int len)
+			throws IOException {
+		write(input, System.currentTimeMillis(), b, off, len);
+	}
+
+	/**
+	 * Record data.
+	 *
+	 * @param input <code>true</code> if read from the server
+	 * @param time time the data was read or written (ms)
+	 * @param b data
+	 * @param off offset
+	 * @param len length
+	 * @throws IOException on error
+	 */
+	@Override
+	public synchronized void write(boolean input, long time, byte[] b,
+			int off, int len) throws IOException {
+		prepare(input, time, len);
+		System.arraycopy(b, off, pending, pendingLength, len);
+		pendingLength += len;
+	}
+
+	/**
+	 * Record a keyframe at the current position. Everything recorded so far
+	 * is written first.
+	 *
+	 * @param time time (ms)
+	 * @param state state saved by the engine
+	 * @throws IOException on error
+	 */
+	@Override
+	public synchronized void writeKeyframe(long time, byte[] state)
+			throws IOException {
+		checkOpen();
+		endEvent();
+		endChunk();
+		writeChunk(RecordingFormat.CHUNK_KEYFRAME, time, 0, state,
+				state.length);
+	}
+
+	/**
+	 * Record that data was lost at this point, e.g. because it could not be
+	 * written quickly enough.
+	 *
+	 * @param time time (ms)
+	 * @param bytes number of bytes lost
+	 * @throws IOException on error
+	 */
+	@Override
+	public synchronized void writeGap(long time, long bytes)
+			throws IOException {
+		checkOpen();
+		endEvent();
+		if (chunkStart == -1) {
+			chunkStart = lastTime = time;
+			chunkInput = inputCount;
+		}
+		chunk = ensure(chunk, chunkLength + 21);
+		chunk[chunkLength++] = (byte) RecordingFormat.EVENT_GAP;
+		putVarLong(Math.max(0, time - lastTime));
+		putVarLong(bytes);
+		chunkEvents++;
+		lastTime = Math.max(lastTime, time);
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (closed) {
+			return;
+		}
+		checkOpen();
+		endEvent();
+		endChunk();
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			endEvent();
+			endChunk();
+			long indexOffset = position;
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(buf);
+			dos.writeByte(RecordingFormat.CHUNK_INDEX);
+			dos.writeInt(index.size());
+			for (RecordingIndexEntry e : index) {
+				dos.writeByte(e.getType());
+				dos.writeLong(e.getOffset());
+				dos.writeLong(e.getTime());
+				dos.writeLong(e.getInputOffset());
+			}
+			dos.writeLong(indexOffset);
+			dos.writeInt(RecordingFormat.TRAILER_MAGIC);
+			dos.flush();
+			write(buf.toByteArray());
+			if (syncOnClose && channel != null) {
+				channel.force(true);
+			}
+		} finally {
+			closed = true;
+			if (timer != null) {
+				timer.cancel(false);
+			}
+			deflater.end();
+			if (out == null) {
+				channel.close();
+			} else {
+				out.close();
+			}
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Recording is closed.");
+		}
+		if (failure != null) {
+			throw new IOException("Recording failed.", failure);
+		}
+	}
+
+	private void schedule() {
+		if (timer != null) {
+			timer.cancel(false);
+			timer = null;
+		}
+		if (chunkTime > 0 && !closed) {
+			long period = Math.max(1, chunkTime / 2);
+			timer = TIMER.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					checkChunkTime();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Write the chunk if it has been open for the chunk time. Called by the
+	 * timer.
+	 */
+	private synchronized void checkChunkTime() {
+		if (closed || failure != null) {
+			return;
+		}
+		long start = chunkStart == -1 ? pendingTime : chunkStart;
+		if ((chunkEvents == 0 && pendingLength == 0)
+				|| System.currentTimeMillis() - start < chunkTime) {
+			return;
+		}
+		try {
+			endEvent();
+			endChunk();
+			if (out != null) {
+				out.flush();
+			}
+		} catch (IOException ioe) {
+			// Reported by the next write
+			failure = ioe;
+		}
+	}
+
+	private void prepare(boolean input, long time, int len) throws IOException {
+		checkOpen();
+		if (pendingLength > 0 && (input != pendingInput || time != pendingTime)) {
+			endEvent();
+			if (chunkLength >= chunkSize
+					|| (chunkTime > 0 && time - chunkStart >= chunkTime)) {
+				endChunk();
+			}
+		}
+		if (pendingLength == 0) {
+			pendingInput = input;
+			pendingTime = time;
+		}
+		pending = ensure(pending, pendingLength + len);
+	}
+
+	private void endEvent() {
+		if (pendingLength == 0) {
+			return;
+		}
+		if (chunkStart == -1) {
+			chunkStart = lastTime = pendingTime;
+			chunkInput = inputCount;
+		}
+		chunk = ensure(chunk, chunkLength + 21 + pendingLength);
+		chunk[chunkLength++] = (byte) (pendingInput ? RecordingFormat.EVENT_INPUT
+				: 0);
+		putVarLong(Math.max(0, pendingTime - lastTime));
+		putVarLong(pendingLength);
+		System.arraycopy(pending, 0, chunk, chunkLength, pendingLength);
+		chunkLength += pendingLength;
+		chunkEvents++;
+		if (pendingInput) {
+			inputCount += pendingLength;
+		}
+		lastTime = Math.max(lastTime, pendingTime);
+		pendingLength = 0;
+	}
+
+	private void endChunk() throws IOException {
+		if (chunkEvents == 0) {
+			return;
+		}
+		writeChunk(RecordingFormat.CHUNK_DATA, chunkStart, chunkEvents, chunk,
+				chunkLength);
+		chunkLength = 0;
+		chunkEvents = 0;
+		chunkStart = -1;
+	}
+
+	private void writeChunk(int type, long time, int events, byte[] raw,
+			int rawLength) throws IOException {
+		deflater.reset();
+		deflater.setInput(raw, 0, rawLength);
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == compressed.length) {
+				compressed = ensure(compressed, length + 1);
+			}
+			length += deflater.deflate(compressed, length, compressed.length
+					- length);
+		}
+		int compression = RecordingFormat.COMPRESSION_DEFLATE;
+		byte[] data = compressed;
+		if (length >= rawLength) {
+			compression = RecordingFormat.COMPRESSION_NONE;
+			data = raw;
+			length = rawLength;
+		}
+
+		long input = type == RecordingFormat.CHUNK_DATA ? chunkInput
+				: inputCount;
+		index.add(new RecordingIndexEntry(type, position, time, input));
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(34);
+		DataOutputStream dos = new DataOutputStream(buf);
+		dos.writeByte(type);
+		dos.writeByte(compression);
+		dos.writeLong(time);
+		dos.writeLong(input);
+		dos.writeInt(events);
+		dos.writeInt(rawLength);
+		dos.writeInt(length);
+		dos.flush();
+		write(buf.toByteArray(), data, length);
+	}
+
+	private void putVarLong(long v) {
+		while ((v & ~0x7FL) != 0) {
+			chunk[chunkLength++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		chunk[chunkLength++] = (byte) v;
+	}
+
+	private void write(byte[] b) throws IOException {
+		write(b, null, 0);
+	}
+
+	private void write(byte[] b, byte[] data, int length) throws IOException {
+		if (channel == null) {
+			out.write(b);
+			if (data != null) {
+				out.write(data, 0, length);
+			}
+		} else {
+			gather[0] = ByteBuffer.wrap(b);
+			gather[1] = ByteBuffer.wrap(data == null ? b : data, 0,
+					data == null ? 0 : length);
+			while (gather[1].hasRemaining() || gather[0].hasRemaining()) {
+				channel.write(gather);
+			}
+		}
+		position += b.length + (data == null ? 0 : length);
+	}
+
+	private static byte[] ensure(byte[] b, int size) {
+		if (size <= b.length) {
+			return b;
+		}
+		byte[] n = new byte[Math.max(size, b.length * 2)];
+		System.arraycopy(b, 0, n, 0, b.length);
+		return n;
+	}
+}
@@ -0,0 +1,317 @@
+package com.sshtools.rfbrecorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+import com.sshtools.rfb.RFBContext;
+
+/**
+ * Records a session that may run for months as a series of segments, each a
+ * complete recording with its own header and index. Every segment after the
+ * first starts with a keyframe, so can be played on its own.
+ * <p>
+ * A new segment is started once the current one has been open for the
+ * segment time or has reached the segment size. As a segment can only start
+ * at a keyframe, {@link #isKeyframeNeeded()} then returns <code>true</code>
+ * until the recorder supplies one (see {@link RFBRecorder}).
+ * <p>
+ * Segments are named
+ * <code>&lt;prefix&gt;-&lt;yyyyMMdd-HHmmss&gt;-&lt;sequence&gt;.rfb</code>,
+ * the time being when the segment was started (UTC) and the sequence
+ * carrying on from any segments already in the directory. A segment is
+ * written with a <code>.part</code> suffix which is removed once it is
+ * complete, so a segment without the suffix is never partly written. Any
+ * <code>.part</code> segments left behind by a recorder that died are
+ * renamed when recording starts, and can be played up to their last
+ * complete chunk.
+ * <p>
+ * When a segment is complete, the oldest complete segments with the same
+ * prefix are deleted until they are all younger than the maximum age and
+ * total no more than the maximum size.
+ */
+public class SegmentedRecordingWriter implements RecordingSink {
+
+	public final static long DEFAULT_SEGMENT_TIME = 60 * 60 * 1000;
+
+	public final static String SUFFIX = ".rfb";
+	public final static String PART_SUFFIX = ".part";
+
+	private final File directory;
+	private final String prefix;
+	private final String hostname;
+	private final int port;
+	private final RFBContext context;
+	private final int compressionLevel;
+	private final Pattern pattern;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat(
+			"yyyyMMdd-HHmmss");
+	private long segmentTime = DEFAULT_SEGMENT_TIME;
+	private long segmentSize;
+	private long maxAge;
+	private long maxTotalSize;
+	private RecordingWriter writer;
+	private File file;
+	private long sequence;
+	private long inputBase;
+	private volatile long segmentStart;
+	private volatile boolean full;
+	private boolean closed;
+
+	public SegmentedRecordingWriter(File directory, String prefix,
+			String hostname, int port, RFBContext context) throws IOException {
+		this(directory, prefix, hostname, port, context, Deflater.BEST_SPEED);
+	}
+
+	public SegmentedRecordingWriter(File directory, String prefix,
+			String hostname, int port, RFBContext context, int compressionLevel)
+			throws IOException {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.hostname = hostname;
+		this.port = port;
+		this.context = context;
+		this.compressionLevel = compressionLevel;
+		pattern = Pattern.compile(Pattern.quote(prefix)
+				+ "-\\d{8}-\\d{6}-(\\d+)" + Pattern.quote(SUFFIX) + "("
+				+ Pattern.quote(PART_SUFFIX) + ")?");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory + ".");
+		}
+		for (File f : listSegments(true)) {
+			if (f.getName().endsWith(PART_SUFFIX)) {
+				rename(f);
+			}
+			sequence = Math.max(sequence, getSequence(f));
+		}
+		openSegment(System.currentTimeMillis());
+	}
+
+	/**
+	 * Set how long a segment may be open before a new one is started.
+	 *
+	 * @param segmentTime segment time (ms) or 0 for no limit
+	 */
+	public void setSegmentTime(long segmentTime) {
+		this.segmentTime = segmentTime;
+	}
+
+	/**
+	 * Set how large a segment may grow before a new one is started. This is
+	 * checked as data is written, so a segment will be a little larger.
+	 *
+	 * @param segmentSize segment size or 0 for no limit
+	 */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Set how long complete segments are kept, by the time they were last
+	 * written.
+	 *
+	 * @param maxAge age (ms) or 0 to keep them however old
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Set the total size of complete segments to keep.
+	 *
+	 * @param maxTotalSize size or 0 for no limit
+	 */
+	public void setMaxTotalSize(long maxTotalSize) {
+		this.maxTotalSize = maxTotalSize;
+	}
+
+	/**
+	 * Get the segment currently being written.
+	 *
+	 * @return segment (with the <code>.part</code> suffix)
+	 */
+	public synchronized File getFile() {
+		return file;
+	}
+
+	@Override
+	public synchronized void write(boolean input, int b) throws IOException {
+		checkOpen();
+		writer.write(input, b);
+		checkFull();
+	}
+
+	@Override
+	public void write(boolean input, byte[] b, int off, int len)
+			throws IOException {
+		write(input, System.currentTimeMillis(), b, off, len);
+	}
+
+	@Override
+	public synchronized void write(boolean input, long time, byte[] b,
+			int off, int len) throws IOException {
+		checkOpen();
+		writer.write(input, time, b, off, len);
+		checkFull();
+	}
+
+	@Override
+	public synchronized void writeGap(long time, long bytes)
+			throws IOException {
+		checkOpen();
+		writer.writeGap(time, bytes);
+	}
+
+	/**
+	 * Record a keyframe, first starting a new segment if one is due.
+	 */
+	@Override
+	public synchronized void writeKeyframe(long time, byte[] state)
+			throws IOException {
+		checkOpen();
+		if (isKeyframeNeeded()) {
+			closeSegment();
+			openSegment(time);
+		}
+		writer.writeKeyframe(time, state);
+	}
+
+	@Override
+	public synchronized long getInputCount() {
+		return closed ? inputBase : inputBase + writer.getInputCount();
+	}
+
+	@Override
+	public boolean isKeyframeNeeded() {
+		return full
+				|| (segmentTime > 0 && System.currentTimeMillis()
+						- segmentStart >= segmentTime);
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (!closed) {
+			writer.flush();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		closeSegment();
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Recording is closed.");
+		}
+	}
+
+	private void checkFull() {
+		if (segmentSize > 0 && !full && writer.getPosition() >= segmentSize) {
+			full = true;
+		}
+	}
+
+	private void openSegment(long time) throws IOException {
+		sequence++;
+		file = new File(directory, prefix + "-"
+				+ dateFormat.format(new Date(time)) + "-"
+				+ String.format("%06d", sequence) + SUFFIX + PART_SUFFIX);
+		writer = new RecordingWriter(new FileOutputStream(file).getChannel(),
+				hostname, port, context, compressionLevel);
+		writer.setSyncOnClose(true);
+		segmentStart = time;
+		full = false;
+	}
+
+	private void closeSegment() throws IOException {
+		inputBase += writer.getInputCount();
+		writer.close();
+		rename(file);
+		prune();
+	}
+
+	private void rename(File f) throws IOException {
+		String name = f.getName();
+		File to = new File(f.getParentFile(), name.substring(0, name.length()
+				- PART_SUFFIX.length()));
+		if (!f.renameTo(to)) {
+			throw new IOException("Could not rename " + f + " to " + to + ".");
+		}
+	}
+
+	private void prune() {
+		if (maxAge <= 0 && maxTotalSize <= 0) {
+			return;
+		}
+		List<File> segments = listSegments(false);
+		long total = 0;
+		for (File f : segments) {
+			total += f.length();
+		}
+		long oldest = System.currentTimeMillis() - maxAge;
+		for (File f : segments) {
+			if ((maxAge <= 0 || f.lastModified() >= oldest)
+					&& (maxTotalSize <= 0 || total <= maxTotalSize)) {
+				break;
+			}
+			long length = f.length();
+			if (f.delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	/**
+	 * List segments with this prefix, oldest first.
+	 */
+	private List<File> listSegments(boolean parts) {
+		List<File> l = new ArrayList<File>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				Matcher m = pattern.matcher(f.getName());
+				if (m.matches() && (parts || m.group(2) == null)) {
+					l.add(f);
+				}
+			}
+		}
+		Collections.sort(l, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long s1 = getSequence(o1);
+				long s2 = getSequence(o2);
+				return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+			}
+		});
+		return l;
+	}
+
+	private long getSequence(File f) {
+		Matcher m = pattern.matcher(f.getName());
+		if (!m.matches()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(m.group(1));
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+}
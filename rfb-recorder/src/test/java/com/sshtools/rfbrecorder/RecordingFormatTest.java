@@ -0,0 +1,424 @@
+package com.sshtools.rfbrecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.rfb.RFBContext;
+
+public class RecordingFormatTest {
+
+	private final static String HOST = "vnc.example.com";
+	private final static int PORT = 5901;
+
+	private File file;
+	private long base;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("recording", ".rfb");
+		base = System.currentTimeMillis();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 500; i++) {
+			events.add(new Event(i % 3 != 0, base + i * 7, data(i, 1 + i * 13
+					% 4000)));
+		}
+		RecordingWriter w = new RecordingWriter(
+				new FileOutputStream(file).getChannel(), HOST, PORT,
+				new RFBContext());
+		w.setChunkSize(16 * 1024);
+		write(w, events);
+		assertEquals(inputBytes(events), w.getInputCount());
+		w.close();
+		assertEquals(file.length(), w.getPosition());
+
+		RecordingReader r = new RecordingReader(file);
+		try {
+			assertEquals(RecordingFormat.VERSION_2, r.getVersion());
+			assertEquals(HOST, r.getHostname());
+			assertEquals(PORT, r.getPort());
+			assertNotNull(r.getContext());
+			assertEvents(events, r);
+		} finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void testMergesEventsInSameMillisecond() throws IOException {
+		RecordingWriter w = new RecordingWriter(new FileOutputStream(file),
+				HOST, PORT, new RFBContext());
+		w.setChunkTime(0);
+		w.write(true, base, new byte[] { 1, 2 }, 0, 2);
+		w.write(true, base, new byte[] { 3 }, 0, 1);
+		w.write(false, base, new byte[] { 4 }, 0, 1);
+		w.close();
+
+		List<Event> expected = new ArrayList<Event>();
+		expected.add(new Event(true, base, new byte[] { 1, 2, 3 }));
+		expected.add(new Event(false, base, new byte[] { 4 }));
+		RecordingReader r = new RecordingReader(file);
+		try {
+			assertEvents(expected, r);
+		} finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void testVarIntBoundaries() throws IOException {
+		long[] deltas = { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152,
+				1L << 35, (1L << 42) + 5 };
+		int[] lengths = { 1, 127, 128, 129, 16383, 16384, 70000 };
+		List<Event> events = new ArrayList<Event>();
+		long time = base;
+		for (int i = 0; i < deltas.length; i++) {
+			time += deltas[i];
+			events.add(new Event(i % 2 == 0, time, data(i,
+					lengths[i % lengths.length])));
+		}
+		RecordingWriter w = new RecordingWriter(new FileOutputStream(file),
+				HOST, PORT, new RFBContext());
+		w.setChunkTime(0);
+		write(w, events);
+		w.close();
+
+		RecordingReader r = new RecordingReader(file);
+		try {
+			assertEvents(events, r);
+		} finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void testTimeGoingBackwards() throws IOException {
+		RecordingWriter w = new RecordingWriter(new FileOutputStream(file),
+				HOST, PORT, new RFBContext());
+		w.setChunkTime(0);
+		w.write(true, base + 100, new byte[] { 1 }, 0, 1);
+		w.write(false, base + 50, new byte[] { 2 }, 0, 1);
+		w.write(true, base + 150, new byte[] { 3 }, 0, 1);
+		w.close();
+
+		RecordingReader r = new RecordingReader(file);
+		try {
+			assertTrue(r.next());
+			assertEquals(base + 100, r.getTime());
+			assertTrue(r.next());
+			assertEquals(base + 100, r.getTime());
+			assertTrue(r.next());
+			assertEquals(base + 150, r.getTime());
+			assertFalse(r.next());
+		} finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void testGap() throws IOException {
+		RecordingWriter w = new RecordingWriter(new FileOutputStream(file),
+				HOST, PORT, new RFBContext());
+		w.setChunkTime(0);
+		w.write(true, base, new byte[] { 1 }, 0, 1);
+		w.writeGap(base + 10, 123456789L);
+		w.write(true, base + 20, new byte[] { 2 }, 0, 1);
+		w.close();
+
+		RecordingReader r = new RecordingReader(file);
+		try {
+			assertTrue(r.next());
+			assertFalse(r.isGap());
+			assertTrue(r.next());
+			assertTrue(r.isGap());
+			assertEquals(base + 10, r.getTime());
+			assertEquals(123456789, r.getLength());
+			assertTrue(r.next());
+			assertFalse(r.isGap());
+			assertEquals(2, r.getData()[0]);
+			assertFalse(r.next());
+		} finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void testTruncatedWithoutIndex() throws IOException {
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 200; i++) {
+			events.add(new Event(true, base + i, data(i, 1000)));
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RecordingWriter w = new RecordingWriter(out, HOST, PORT,
+				new RFBContext());
+		w.setChunkSize(10 * 1024);
+		w.setChunkTime(0);
+		write(w, events.subList(0, 190));
+		w.flush();
+		long complete = w.getPosition();
+		write(w, events.subList(190, events.size()));
+		w.flush();
+		long partial = w.getPosition();
+		byte[] b = out.toByteArray();
+		w.close();
+
+		// Not closed, so no index, and the last chunk cut short
+		FileOutputStream fout = new FileOutputStream(file);
+		fout.write(b, 0, (int) (complete + partial) / 2);
+		fout.close();
+
+		RecordingReader r = new RecordingReader(file);
+		try {
+			assertTrue(r.getIndex().isEmpty());
+			int n = 0;
+			while (r.next()) {
+				assertEvent(events.get(n++), r);
+			}
+			assertEquals(190, n);
+		} finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void testUnflushedChunkWrittenAfterChunkTime() throws Exception {
+		RecordingWriter w = new RecordingWriter(new FileOutputStream(file),
+				HOST, PORT, new RFBContext());
+		w.setChunkTime(100);
+		w.write(true, System.currentTimeMillis(), new byte[] { 1, 2, 3 }, 0,
+				3);
+		long position = w.getPosition();
+		long until = System.currentTimeMillis() + 5000;
+		while (w.getPosition() == position
+				&& System.currentTimeMillis() < until) {
+			Thread.sleep(20);
+		}
+
+		RecordingReader r = new RecordingReader(file);
+		try {
+			assertTrue(r.next());
+			assertEquals(3, r.getLength());
+			assertFalse(r.next());
+		} finally {
+			r.close();
+			w.close();
+		}
+	}
+
+	@Test
+	public void testVersion1() throws IOException {
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 50; i++) {
+			events.add(new Event(i % 2 == 0, base + i * 1000, data(i, i)));
+		}
+		DataOutputStream dos = new DataOutputStream(new FileOutputStream(file));
+		dos.writeUTF(HOST);
+		dos.writeInt(PORT);
+		ObjectOutputStream oos = new ObjectOutputStream(dos);
+		oos.writeObject(new RFBContext());
+		oos.flush();
+		for (Event e : events) {
+			dos.writeBoolean(e.input);
+			dos.writeLong(e.time);
+			dos.writeInt(e.data.length);
+			dos.write(e.data);
+		}
+		dos.close();
+
+		RecordingReader r = new RecordingReader(file);
+		try {
+			assertEquals(RecordingFormat.VERSION_1, r.getVersion());
+			assertEquals(HOST, r.getHostname());
+			assertEquals(PORT, r.getPort());
+			assertNotNull(r.getContext());
+			assertTrue(r.getIndex().isEmpty());
+			assertNull(r.readLeadingKeyframe());
+			assertEvents(events, r);
+		} finally {
+			r.close();
+		}
+
+		r = new RecordingReader(new FileInputStream(file));
+		try {
+			assertEquals(RecordingFormat.VERSION_1, r.getVersion());
+			assertEvents(events, r);
+		} finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void testIndexTrailer() throws IOException {
+		byte[] state1 = data(1, 5000);
+		byte[] state2 = data(2, 300);
+		RecordingWriter w = new RecordingWriter(new FileOutputStream(file),
+				HOST, PORT, new RFBContext());
+		w.setChunkTime(0);
+		w.write(true, base, data(3, 100), 0, 100);
+		w.write(false, base + 1, data(4, 10), 0, 10);
+		w.writeKeyframe(base + 2, state1);
+		w.write(true, base + 3, data(5, 50), 0, 50);
+		w.writeKeyframe(base + 4, state2);
+		w.write(true, base + 5, data(6, 60), 0, 60);
+		w.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long indexOffset;
+		try {
+			raf.seek(raf.length() - 12);
+			indexOffset = raf.readLong();
+			assertEquals(RecordingFormat.TRAILER_MAGIC, raf.readInt());
+			raf.seek(indexOffset);
+			assertEquals(RecordingFormat.CHUNK_INDEX, raf.readUnsignedByte());
+			assertEquals(5, raf.readInt());
+		} finally {
+			raf.close();
+		}
+
+		RecordingReader r = new RecordingReader(file);
+		try {
+			List<RecordingIndexEntry> index = r.getIndex();
+			assertEquals(5, index.size());
+			int[] types = { RecordingFormat.CHUNK_DATA,
+					RecordingFormat.CHUNK_KEYFRAME, RecordingFormat.CHUNK_DATA,
+					RecordingFormat.CHUNK_KEYFRAME, RecordingFormat.CHUNK_DATA };
+			long[] times = { base, base + 2, base + 3, base + 4, base + 5 };
+			long[] inputs = { 0, 100, 100, 150, 150 };
+			long last = -1;
+			for (int i = 0; i < types.length; i++) {
+				RecordingIndexEntry e = index.get(i);
+				assertEquals(types[i], e.getType());
+				assertEquals(times[i], e.getTime());
+				assertEquals(inputs[i], e.getInputOffset());
+				assertTrue(e.getOffset() > last);
+				assertTrue(e.getOffset() < indexOffset);
+				last = e.getOffset();
+			}
+
+			assertNull(r.findKeyframe(base + 1));
+			assertEquals(index.get(1), r.findKeyframe(base + 3));
+			RecordingIndexEntry keyframe = r.findKeyframe(Long.MAX_VALUE);
+			assertEquals(index.get(3), keyframe);
+
+			assertArrayEquals(state2, r.readKeyframe(keyframe));
+			assertTrue(r.next());
+			assertEquals(base + 5, r.getTime());
+			assertEquals(60, r.getLength());
+			assertFalse(r.next());
+
+			assertArrayEquals(state1, r.readKeyframe(index.get(1)));
+			assertTrue(r.next());
+			assertEquals(base + 3, r.getTime());
+			assertTrue(r.next());
+			assertEquals(base + 5, r.getTime());
+			assertFalse(r.next());
+		} finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void testLeadingKeyframe() throws IOException {
+		byte[] state = data(7, 2000);
+		RecordingWriter w = new RecordingWriter(new FileOutputStream(file),
+				HOST, PORT, new RFBContext());
+		w.setChunkTime(0);
+		w.writeKeyframe(base, state);
+		w.write(true, base + 1, new byte[] { 9 }, 0, 1);
+		w.close();
+
+		RecordingReader r = new RecordingReader(new FileInputStream(file));
+		try {
+			assertTrue(r.getIndex().isEmpty());
+			assertArrayEquals(state, r.readLeadingKeyframe());
+			assertTrue(r.next());
+			assertEquals(9, r.getData()[0]);
+			assertFalse(r.next());
+		} finally {
+			r.close();
+		}
+	}
+
+	private static void write(RecordingWriter w, List<Event> events)
+			throws IOException {
+		for (Event e : events) {
+			w.write(e.input, e.time, e.data, 0, e.data.length);
+		}
+	}
+
+	private static long inputBytes(List<Event> events) {
+		long n = 0;
+		for (Event e : events) {
+			if (e.input) {
+				n += e.data.length;
+			}
+		}
+		return n;
+	}
+
+	private static void assertEvents(List<Event> events, RecordingReader r)
+			throws IOException {
+		for (Event e : events) {
+			assertTrue(r.next());
+			assertEvent(e, r);
+		}
+		assertFalse(r.next());
+	}
+
+	private static void assertEvent(Event e, RecordingReader r) {
+		assertFalse(r.isGap());
+		assertEquals(e.input, r.isInput());
+		assertEquals(e.time, r.getTime());
+		assertEquals(e.data.length, r.getLength());
+		byte[] b = new byte[r.getLength()];
+		System.arraycopy(r.getData(), 0, b, 0, b.length);
+		assertArrayEquals(e.data, b);
+	}
+
+	private static byte[] data(int seed, int length) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = (byte) (seed * 31 + i * (i % 7 == 0 ? 17 : 1));
+		}
+		return b;
+	}
+
+	private static class Event {
+		private final boolean input;
+		private final long time;
+		private final byte[] data;
+
+		private Event(boolean input, long time, byte[] data) {
+			this.input = input;
+			this.time = time;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.sshtools.rfb;
+
+/**
+ * Decides how the server should encode updates, given what is known about the
+ * link and about the cost of decoding. Set with
+ * {@link RFBContext#setAdaptivePolicy(AdaptivePolicy)} and used when
+ * {@link RFBContext#isAdaptive()} is set. All methods are called on the
+ * protocol thread.
+ */
+public interface AdaptivePolicy {
+
+	/**
+	 * Called after each rectangle (other than pseudo-encodings) is decoded.
+	 *
+	 * @param encoding encoding
+	 * @param pixels pixels in the rectangle
+	 * @param bytes bytes read for the rectangle
+	 * @param nanos nanoseconds taken to read and decode it
+	 */
+	void decoded(int encoding, int pixels, long bytes, long nanos);
+
+	/**
+	 * Called after each framebuffer update to choose the settings for the
+	 * next. Returning the current settings (or <code>null</code>) leaves
+	 * everything as it is.
+	 *
+	 * @param link link estimates
+	 * @param current current settings
+	 * @return settings to use
+	 */
+	EncodingSettings evaluate(LinkEstimator link, EncodingSettings current);
+}
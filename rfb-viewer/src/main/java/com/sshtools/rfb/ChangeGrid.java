@@ -0,0 +1,268 @@
+/* HEADER */
+package com.sshtools.rfb;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A grid of hashes of square tiles of the framebuffer, updated by
+ * {@link RFBDisplayModel} at the end of each update, once for every tile
+ * touched by the rectangles decoded. A tile only counts as
+ * changed if its content differs, so repeated updates with the same pixels are
+ * ignored. Changes are grouped into frames, one per framebuffer update.
+ * <p>
+ * Changes may be observed by adding a {@link FramebufferChangeListener} to
+ * the model (see
+ * {@link RFBDisplayModel#addChangeListener(FramebufferChangeListener)}), by
+ * querying with {@link #hasChangedSince(Rectangle, long)}, or by waiting with
+ * {@link #waitForChange(Rectangle, long)}.
+ */
+public class ChangeGrid {
+
+	final static long FNV_OFFSET = 0xcbf29ce484222325L;
+	final static long FNV_PRIME = 0x100000001b3L;
+
+	private final int tileSize;
+	private final int width;
+	private final int height;
+	private final int cols;
+	private final int rows;
+	private final long[] hashes;
+	private final long[] lastChanged;
+	private final BitSet dirty = new BitSet();
+	private final List<Rectangle> frameChanges = new ArrayList<Rectangle>();
+	private final List<FramebufferChangeListener> listeners;
+	private long frame;
+	private double lastChangeRatio;
+	private List<Rectangle> lastChangedTiles = new ArrayList<Rectangle>();
+
+	ChangeGrid(int width, int height, int tileSize,
+			List<FramebufferChangeListener> listeners) {
+		this.listeners = listeners;
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		cols = (width + tileSize - 1) / tileSize;
+		rows = (height + tileSize - 1) / tileSize;
+		hashes = new long[cols * rows];
+		lastChanged = new long[cols * rows];
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getColumns() {
+		return cols;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Get the area of a tile, clipped to the framebuffer.
+	 *
+	 * @param col column
+	 * @param row row
+	 * @return area
+	 */
+	public Rectangle getTile(int col, int row) {
+		int x = col * tileSize;
+		int y = row * tileSize;
+		return new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(
+				tileSize, height - y));
+	}
+
+	/**
+	 * Get the number of the last completed frame. Frames are counted from 1.
+	 *
+	 * @return frame
+	 */
+	public synchronized long getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Get the fraction of tiles that changed in the last completed frame.
+	 *
+	 * @return change ratio
+	 */
+	public synchronized double getChangeRatio() {
+		return lastChangeRatio;
+	}
+
+	/**
+	 * Get the tiles that changed in the last completed frame.
+	 *
+	 * @return changed tiles
+	 */
+	public synchronized List<Rectangle> getChangedTiles() {
+		return new ArrayList<Rectangle>(lastChangedTiles);
+	}
+
+	/**
+	 * Get whether any tile touching the region has changed in a frame after
+	 * the given one.
+	 *
+	 * @param region region
+	 * @param frame frame
+	 * @return changed
+	 */
+	public synchronized boolean hasChangedSince(Rectangle region, long frame) {
+		Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty()) {
+			return false;
+		}
+		int c2 = (r.x + r.width - 1) / tileSize;
+		int r2 = (r.y + r.height - 1) / tileSize;
+		for (int row = r.y / tileSize; row <= r2; row++) {
+			for (int col = r.x / tileSize; col <= c2; col++) {
+				if (lastChanged[(row * cols) + col] > frame) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wait until any tile touching the region changes.
+	 *
+	 * @param region region
+	 * @param timeout timeout in milliseconds, or 0 to wait forever
+	 * @return <code>true</code> if the region changed, <code>false</code> if
+	 *         the timeout expired
+	 * @throws InterruptedException if interrupted
+	 */
+	public synchronized boolean waitForChange(Rectangle region, long timeout)
+			throws InterruptedException {
+		long since = frame;
+		long end = System.currentTimeMillis() + timeout;
+		while (!hasChangedSince(region, since)) {
+			if (timeout == 0) {
+				wait();
+			} else {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Mark the tiles touching an area as needing to be hashed before the frame
+	 * in progress ends.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 */
+	synchronized void markDirty(int x, int y, int width, int height) {
+		int x1 = Math.max(0, x);
+		int y1 = Math.max(0, y);
+		int x2 = Math.min(this.width, x + width);
+		int y2 = Math.min(this.height, y + height);
+		if (x2 <= x1 || y2 <= y1) {
+			return;
+		}
+		for (int row = y1 / tileSize; row <= (y2 - 1) / tileSize; row++) {
+			dirty.set((row * cols) + (x1 / tileSize), (row * cols)
+					+ ((x2 - 1) / tileSize) + 1);
+		}
+	}
+
+	/**
+	 * Get and clear the tiles marked as dirty.
+	 *
+	 * @return indexes of tiles (<code>row * columns + column</code>)
+	 */
+	synchronized BitSet takeDirty() {
+		BitSet b = (BitSet) dirty.clone();
+		dirty.clear();
+		return b;
+	}
+
+	/**
+	 * Set the hash of a tile for the frame in progress.
+	 *
+	 * @param col column
+	 * @param row row
+	 * @param hash hash
+	 * @return whether the tile changed
+	 */
+	synchronized boolean update(int col, int row, long hash) {
+		int i = (row * cols) + col;
+		if (hashes[i] == hash && lastChanged[i] != 0) {
+			return false;
+		}
+		hashes[i] = hash;
+		if (lastChanged[i] != frame + 1) {
+			lastChanged[i] = frame + 1;
+			frameChanges.add(getTile(col, row));
+		}
+		return true;
+	}
+
+	/**
+	 * Called when the grid is replaced (when the framebuffer is resized).
+	 * Everything has changed, so anything waiting is woken.
+	 */
+	synchronized void invalidate() {
+		for (int i = 0; i < lastChanged.length; i++) {
+			lastChanged[i] = Long.MAX_VALUE;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Complete the frame in progress, waking anything waiting for a change and
+	 * informing listeners.
+	 */
+	void endFrame() {
+		FramebufferChangeEvent event = null;
+		synchronized (this) {
+			frame++;
+			lastChangedTiles = new ArrayList<Rectangle>(frameChanges);
+			lastChangeRatio = (double) frameChanges.size()
+					/ Math.max(1, hashes.length);
+			frameChanges.clear();
+			if (!lastChangedTiles.isEmpty()) {
+				event = new FramebufferChangeEvent(frame, lastChangedTiles,
+						lastChangeRatio);
+				notifyAll();
+			}
+		}
+		if (event != null) {
+			for (FramebufferChangeListener l : listeners) {
+				l.framebufferChanged(event);
+			}
+		}
+	}
+
+	/**
+	 * Hash pixels using 64 bit FNV-1a.
+	 *
+	 * @param hash hash so far, or {@link #FNV_OFFSET} to start
+	 * @param pixel pixel
+	 * @return hash
+	 */
+	static long hash(long hash, int pixel) {
+		hash ^= pixel;
+		return hash * FNV_PRIME;
+	}
+}
@@ -0,0 +1,224 @@
+package com.sshtools.rfb;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The soft cursor, kept as a layer of its own over the framebuffer. The
+ * position follows local pointer motion immediately (a prediction of where the
+ * server will put it), and positions reported by the server are reconciled
+ * against recent predictions. A report that matches one is just the server
+ * catching up and is ignored; anything else (such as the pointer being warped
+ * by an application) is adopted.
+ * <p>
+ * Methods that move or change the cursor return the areas (in framebuffer
+ * coordinates) that must be recomposited, which are only ever the old and new
+ * cursor rectangles.
+ */
+public class CursorOverlay {
+
+	private final static int MAX_PREDICTIONS = 64;
+	private final static int TOLERANCE = 2;
+	private final static long PREDICTION_TIMEOUT = 1000000000L;
+
+	private final LinkedList<int[]> predictions = new LinkedList<int[]>();
+	private Image image;
+	private int x;
+	private int y;
+	private int width;
+	private int height;
+	private int hotX;
+	private int hotY;
+	private boolean visible;
+	private long lastPrediction;
+
+	public synchronized Image getImage() {
+		return image;
+	}
+
+	public synchronized int getX() {
+		return x;
+	}
+
+	public synchronized int getY() {
+		return y;
+	}
+
+	public synchronized int getHotX() {
+		return hotX;
+	}
+
+	public synchronized int getHotY() {
+		return hotY;
+	}
+
+	public synchronized boolean isVisible() {
+		return visible && image != null;
+	}
+
+	/**
+	 * Get the area covered by the cursor in framebuffer coordinates.
+	 *
+	 * @return bounds
+	 */
+	public synchronized Rectangle getBounds() {
+		return new Rectangle(x - hotX, y - hotY, width, height);
+	}
+
+	/**
+	 * Set the cursor shape.
+	 *
+	 * @param image image
+	 * @param hotX hotspot x
+	 * @param hotY hotspot y
+	 * @param width width
+	 * @param height height
+	 * @return areas to recomposite
+	 */
+	public synchronized List<Rectangle> setImage(Image image, int hotX,
+			int hotY, int width, int height) {
+		List<Rectangle> damage = new ArrayList<Rectangle>(2);
+		if (isVisible()) {
+			damage.add(getBounds());
+		}
+		this.image = image;
+		this.hotX = hotX;
+		this.hotY = hotY;
+		this.width = width;
+		this.height = height;
+		if (isVisible()) {
+			damage.add(getBounds());
+		}
+		return damage;
+	}
+
+	/**
+	 * Set whether the cursor is shown.
+	 *
+	 * @param visible visible
+	 * @return areas to recomposite
+	 */
+	public synchronized List<Rectangle> setVisible(boolean visible) {
+		List<Rectangle> damage = new ArrayList<Rectangle>(1);
+		if (visible != this.visible) {
+			this.visible = visible;
+			if (image != null) {
+				damage.add(getBounds());
+			}
+		}
+		return damage;
+	}
+
+	/**
+	 * Move the cursor to where local pointer motion says it will be.
+	 *
+	 * @param x framebuffer x
+	 * @param y framebuffer y
+	 * @return areas to recomposite
+	 */
+	public synchronized List<Rectangle> predict(int x, int y) {
+		lastPrediction = System.nanoTime();
+		predictions.add(new int[] { x, y });
+		if (predictions.size() > MAX_PREDICTIONS) {
+			predictions.removeFirst();
+		}
+		return moveTo(x, y);
+	}
+
+	/**
+	 * Reconcile a position reported by the server with the prediction.
+	 *
+	 * @param x framebuffer x
+	 * @param y framebuffer y
+	 * @return areas to recomposite
+	 */
+	public synchronized List<Rectangle> reconcile(int x, int y) {
+		if (System.nanoTime() - lastPrediction < PREDICTION_TIMEOUT) {
+			int i = 0;
+			for (int[] p : predictions) {
+				i++;
+				if (Math.abs(p[0] - x) <= TOLERANCE
+						&& Math.abs(p[1] - y) <= TOLERANCE) {
+					// The server has caught up to this prediction, anything
+					// before it is no longer of interest
+					while (i-- > 0) {
+						predictions.removeFirst();
+					}
+					return new ArrayList<Rectangle>(0);
+				}
+			}
+		}
+		predictions.clear();
+		return moveTo(x, y);
+	}
+
+	/**
+	 * Draw the cursor.
+	 *
+	 * @param g graphics
+	 * @param imagex x offset of the framebuffer
+	 * @param imagey y offset of the framebuffer
+	 * @param xscale x scale
+	 * @param yscale y scale
+	 * @param fbWidth framebuffer width
+	 * @param fbHeight framebuffer height
+	 */
+	public void paint(Graphics g, int imagex, int imagey, double xscale,
+			double yscale, int fbWidth, int fbHeight) {
+		Image img;
+		Rectangle clip;
+		synchronized (this) {
+			if (!isVisible()) {
+				return;
+			}
+			img = image;
+			clip = getBounds();
+		}
+		clip.x += imagex;
+		clip.x *= xscale;
+		clip.y += imagey;
+		clip.y *= yscale;
+		clip.height *= yscale;
+		clip.width *= xscale;
+		Rectangle displayClip = new Rectangle(clip);
+
+		displayClip.x = Math.max(imagex, displayClip.x);
+		displayClip.y = Math.max(imagey, displayClip.y);
+		int mx = imagex + (int) (fbWidth * xscale);
+		int my = imagey + (int) (fbHeight * yscale);
+		int xover = (displayClip.x + displayClip.width) - mx;
+		if (xover > 0) {
+			displayClip.width -= xover;
+		}
+		int yover = (displayClip.y + displayClip.height) - my;
+		if (yover > 0) {
+			displayClip.height -= yover;
+		}
+		Rectangle oclip = g.getClipBounds();
+		g.clipRect(displayClip.x, displayClip.y, displayClip.width,
+				displayClip.height);
+		g.drawImage(img, clip.x, clip.y, clip.width, clip.height, null);
+		g.setClip(oclip);
+	}
+
+	private List<Rectangle> moveTo(int x, int y) {
+		List<Rectangle> damage = new ArrayList<Rectangle>(2);
+		if (x == this.x && y == this.y) {
+			return damage;
+		}
+		boolean show = isVisible();
+		if (show) {
+			damage.add(getBounds());
+		}
+		this.x = x;
+		this.y = y;
+		if (show) {
+			damage.add(getBounds());
+		}
+		return damage;
+	}
+}
@@ -0,0 +1,202 @@
+package com.sshtools.rfb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sshtools.rfbcommon.RFBConstants;
+
+/**
+ * Records what each rectangle costs to decode: nanoseconds, bytes read,
+ * pixels and (where the JVM supports measuring it) bytes allocated, by
+ * encoding and subencoding. The engine records every rectangle; decoders may
+ * say which subencoding a rectangle used with {@link #setSubencoding(int)},
+ * and ZRLE also records each tile separately by tile type.
+ * <p>
+ * Recording is a map lookup and a few additions, so the profiler is always
+ * on. Results are available as {@link DecodeStatistics} snapshots.
+ */
+public class DecodeProfiler {
+
+	/**
+	 * Whole rectangles, whatever the subencoding
+	 */
+	public final static int ALL = -1;
+
+	public final static int TIGHT_FILL = 0;
+	public final static int TIGHT_JPEG = 1;
+	public final static int TIGHT_COPY = 2;
+	public final static int TIGHT_PALETTE = 3;
+	public final static int TIGHT_GRADIENT = 4;
+
+	public final static int ZRLE_RAW = 16;
+	public final static int ZRLE_SOLID = 17;
+	public final static int ZRLE_PACKED_PALETTE = 18;
+	public final static int ZRLE_PLAIN_RLE = 19;
+	public final static int ZRLE_PALETTE_RLE = 20;
+
+	private final static String[] SUBENCODING_NAMES = { "fill", "jpeg",
+			"copy", "palette", "gradient", null, null, null, null, null, null,
+			null, null, null, null, null, "raw", "solid", "packed palette",
+			"plain rle", "palette rle" };
+
+	private final static com.sun.management.ThreadMXBean THREADS;
+
+	static {
+		com.sun.management.ThreadMXBean threads = null;
+		try {
+			java.lang.management.ThreadMXBean t = ManagementFactory
+					.getThreadMXBean();
+			if (t instanceof com.sun.management.ThreadMXBean) {
+				threads = (com.sun.management.ThreadMXBean) t;
+				if (!threads.isThreadAllocatedMemorySupported()
+						|| !threads.isThreadAllocatedMemoryEnabled()) {
+					threads = null;
+				}
+			}
+		} catch (Throwable t) {
+			// Not a JVM that can measure allocation
+		}
+		THREADS = threads;
+	}
+
+	private final Map<Long, DecodeStatistics> statistics = new HashMap<Long, DecodeStatistics>();
+	private int subencoding = ALL;
+
+	/**
+	 * Get the number of bytes the current thread has allocated, or -1 if it
+	 * cannot be measured.
+	 *
+	 * @return bytes allocated
+	 */
+	public static long getAllocatedBytes() {
+		if (THREADS == null) {
+			return -1;
+		}
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Get a readable name for an encoding and subencoding.
+	 *
+	 * @param encoding encoding
+	 * @param subencoding subencoding or {@link #ALL}
+	 * @return name
+	 */
+	public static String getName(int encoding, int subencoding) {
+		String name;
+		switch (encoding) {
+		case RFBConstants.ENC_RAW:
+			name = "Raw";
+			break;
+		case RFBConstants.ENC_COPYRECT:
+			name = "CopyRect";
+			break;
+		case RFBConstants.ENC_RRE:
+			name = "RRE";
+			break;
+		case RFBConstants.ENC_CORRE:
+			name = "CoRRE";
+			break;
+		case RFBConstants.ENC_HEXTILE:
+			name = "Hextile";
+			break;
+		case RFBConstants.ENC_ZLIB:
+			name = "ZLIB";
+			break;
+		case RFBConstants.ENC_TIGHT:
+			name = "Tight";
+			break;
+		case RFBConstants.ENC_ZRLE:
+			name = "ZRLE";
+			break;
+		default:
+			name = "0x" + Integer.toHexString(encoding);
+			break;
+		}
+		if (subencoding >= 0 && subencoding < SUBENCODING_NAMES.length
+				&& SUBENCODING_NAMES[subencoding] != null) {
+			name += " " + SUBENCODING_NAMES[subencoding];
+		}
+		return name;
+	}
+
+	/**
+	 * Set the subencoding of the rectangle being decoded. Called by decoders.
+	 *
+	 * @param subencoding subencoding
+	 */
+	public void setSubencoding(int subencoding) {
+		this.subencoding = subencoding;
+	}
+
+	/**
+	 * Get the subencoding set for the rectangle just decoded and clear it.
+	 *
+	 * @return subencoding or {@link #ALL} if not set
+	 */
+	int takeSubencoding() {
+		int s = subencoding;
+		subencoding = ALL;
+		return s;
+	}
+
+	/**
+	 * Record a sample.
+	 *
+	 * @param encoding encoding
+	 * @param subencoding subencoding or {@link #ALL}
+	 * @param nanos nanoseconds taken
+	 * @param bytes bytes read
+	 * @param pixels pixels decoded
+	 * @param allocated bytes allocated or -1 if not known
+	 */
+	public synchronized void record(int encoding, int subencoding, long nanos,
+			long bytes, int pixels, long allocated) {
+		Long key = ((long) encoding << 32) | (subencoding & 0xffffffffL);
+		DecodeStatistics s = statistics.get(key);
+		if (s == null) {
+			s = new DecodeStatistics(encoding, subencoding);
+			statistics.put(key, s);
+		}
+		s.add(nanos, bytes, pixels, allocated);
+	}
+
+	/**
+	 * Get a snapshot of the statistics for every encoding and subencoding
+	 * seen.
+	 *
+	 * @return statistics
+	 */
+	public synchronized List<DecodeStatistics> getStatistics() {
+		List<DecodeStatistics> l = new ArrayList<DecodeStatistics>(
+				statistics.size());
+		for (DecodeStatistics s : statistics.values()) {
+			l.add(new DecodeStatistics(s));
+		}
+		return l;
+	}
+
+	/**
+	 * Get a snapshot of the statistics for an encoding and subencoding.
+	 *
+	 * @param encoding encoding
+	 * @param subencoding subencoding or {@link #ALL}
+	 * @return statistics or <code>null</code> if none recorded
+	 */
+	public synchronized DecodeStatistics getStatistics(int encoding,
+			int subencoding) {
+		DecodeStatistics s = statistics.get(((long) encoding << 32)
+				| (subencoding & 0xffffffffL));
+		return s == null ? null : new DecodeStatistics(s);
+	}
+
+	/**
+	 * Forget everything recorded.
+	 */
+	public synchronized void reset() {
+		statistics.clear();
+	}
+}
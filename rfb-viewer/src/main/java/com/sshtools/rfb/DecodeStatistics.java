@@ -0,0 +1,138 @@
+package com.sshtools.rfb;
+
+/**
+ * Totals and a histogram of decode times for one encoding (and optionally
+ * subencoding), as collected by {@link DecodeProfiler}. Instances returned by
+ * the profiler are snapshots and do not change.
+ */
+public class DecodeStatistics {
+
+	/**
+	 * Number of histogram buckets. Bucket <code>n</code> counts samples that
+	 * took less than <code>2^n</code> nanoseconds (and at least half that).
+	 */
+	public final static int BUCKETS = 40;
+
+	private final int encoding;
+	private final int subencoding;
+	private final long[] histogram = new long[BUCKETS];
+	private long count;
+	private long nanos;
+	private long bytes;
+	private long pixels;
+	private long allocated;
+
+	DecodeStatistics(int encoding, int subencoding) {
+		this.encoding = encoding;
+		this.subencoding = subencoding;
+	}
+
+	DecodeStatistics(DecodeStatistics other) {
+		this(other.encoding, other.subencoding);
+		System.arraycopy(other.histogram, 0, histogram, 0, BUCKETS);
+		count = other.count;
+		nanos = other.nanos;
+		bytes = other.bytes;
+		pixels = other.pixels;
+		allocated = other.allocated;
+	}
+
+	void add(long nanos, long bytes, int pixels, long allocated) {
+		count++;
+		this.nanos += nanos;
+		this.bytes += bytes;
+		this.pixels += pixels;
+		if (allocated > 0) {
+			this.allocated += allocated;
+		}
+		int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos));
+		histogram[Math.min(BUCKETS - 1, bucket)]++;
+	}
+
+	public int getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Get the subencoding, one of the <code>DecodeProfiler</code> constants or
+	 * {@link DecodeProfiler#ALL} for whole rectangles.
+	 *
+	 * @return subencoding
+	 */
+	public int getSubencoding() {
+		return subencoding;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * Get the bytes allocated while decoding, or 0 if the JVM cannot measure
+	 * it.
+	 *
+	 * @return bytes allocated
+	 */
+	public long getAllocated() {
+		return allocated;
+	}
+
+	public double getMeanNanos() {
+		return count == 0 ? 0 : (double) nanos / count;
+	}
+
+	public double getNanosPerPixel() {
+		return pixels == 0 ? 0 : (double) nanos / pixels;
+	}
+
+	/**
+	 * Get the histogram of decode times (see {@link #BUCKETS}).
+	 *
+	 * @return histogram
+	 */
+	public long[] getHistogram() {
+		long[] h = new long[BUCKETS];
+		System.arraycopy(histogram, 0, h, 0, BUCKETS);
+		return h;
+	}
+
+	/**
+	 * Get an upper bound for a percentile of decode time, to the resolution of
+	 * the histogram.
+	 *
+	 * @param percentile percentile (0-100)
+	 * @return nanoseconds
+	 */
+	public long getPercentile(double percentile) {
+		long want = (long) Math.ceil(count * percentile / 100d);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram[i];
+			if (seen >= want && seen > 0) {
+				return 1L << i;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s count=%d mean=%.0fns p50<%dns p99<%dns "
+				+ "ns/pixel=%.2f bytes=%d allocated=%d",
+				DecodeProfiler.getName(encoding, subencoding), count,
+				getMeanNanos(), getPercentile(50), getPercentile(99),
+				getNanosPerPixel(), bytes, allocated);
+	}
+}
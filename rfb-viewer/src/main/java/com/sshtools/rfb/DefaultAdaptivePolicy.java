@@ -0,0 +1,161 @@
+package com.sshtools.rfb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The default {@link AdaptivePolicy}. Links are placed in one of five tiers by
+ * throughput, each with settings that suit it:
+ * <table>
+ * <tr><th>Tier</th><th>Throughput</th><th>Settings</th></tr>
+ * <tr><td>LAN</td><td>100 Mbit/s and up</td><td>Hextile (or lossless Tight if
+ * that has been cheaper to decode)</td></tr>
+ * <tr><td>Broadband</td><td>10 Mbit/s</td><td>Tight, compress 1, JPEG
+ * 8</td></tr>
+ * <tr><td>WAN</td><td>2 Mbit/s</td><td>Tight, compress 6, JPEG 6</td></tr>
+ * <tr><td>Slow</td><td>1 Mbit/s</td><td>Tight, compress 9, JPEG 4</td></tr>
+ * <tr><td>Very slow</td><td>below 1 Mbit/s</td><td>Tight, compress 9, JPEG 2,
+ * 8 bit colour</td></tr>
+ * </table>
+ * Throughput is in kilobits (1000 bits) per second, as measured by the
+ * {@link LinkEstimator}. The boundaries are round figures for common classes
+ * of link, and the settings of each tier are estimates of what suits it. They
+ * have not been derived from benchmarks, so a policy tuned for particular
+ * servers or content may do better.
+ * <p>
+ * To stop settings flapping on a link near a boundary, the throughput must
+ * pass a boundary by 25%, the new tier must be chosen by three evaluations in
+ * a row, and at least five seconds must have passed since the last change.
+ * Links with a round trip time over 250ms never use the LAN tier, and if
+ * decoding takes more than twice as long as waiting for data (the client is
+ * the bottleneck), the next faster tier is used as it is cheaper to decode.
+ */
+public class DefaultAdaptivePolicy implements AdaptivePolicy {
+
+	private final static double[] TIERS = { 100000, 10000, 2000, 1000, 0 };
+	private final static double HYSTERESIS = 0.25;
+	private final static int STABLE_EVALUATIONS = 3;
+	private final static long HOLD_TIME = 5000000000L;
+	private final static double HIGH_RTT = 250;
+	private final static double CLIENT_BOUND = 2;
+	private final static double COST_GAIN = 0.125;
+
+	private final Map<Integer, double[]> costs = new HashMap<Integer, double[]>();
+	private int tier = -1;
+	private int pendingTier = -1;
+	private int pendingCount;
+	private long lastChange;
+	private int basePixelFormat;
+
+	@Override
+	public void decoded(int encoding, int pixels, long bytes, long nanos) {
+		if (pixels == 0) {
+			return;
+		}
+		double[] cost = costs.get(encoding);
+		double sample = (double) nanos / pixels;
+		if (cost == null) {
+			costs.put(encoding, new double[] { sample });
+		} else {
+			cost[0] += COST_GAIN * (sample - cost[0]);
+		}
+	}
+
+	/**
+	 * Get the average cost of decoding an encoding, or 0 if it has not been
+	 * seen.
+	 *
+	 * @param encoding encoding
+	 * @return nanoseconds per pixel
+	 */
+	public double getCostPerPixel(int encoding) {
+		double[] cost = costs.get(encoding);
+		return cost == null ? 0 : cost[0];
+	}
+
+	@Override
+	public EncodingSettings evaluate(LinkEstimator link,
+			EncodingSettings current) {
+		double throughput = link.getThroughput();
+		if (throughput <= 0) {
+			return current;
+		}
+		long now = System.nanoTime();
+		if (tier == -1) {
+			basePixelFormat = current.getPixelFormat();
+			tier = 0;
+			while (throughput < TIERS[tier]) {
+				tier++;
+			}
+			lastChange = now;
+		} else {
+			int target = tier;
+			while (target > 0
+					&& throughput >= TIERS[target - 1] * (1 + HYSTERESIS)) {
+				target--;
+			}
+			while (target < TIERS.length - 1
+					&& throughput < TIERS[target] * (1 - HYSTERESIS)) {
+				target++;
+			}
+			if (target == tier) {
+				pendingTier = -1;
+			} else {
+				if (target == pendingTier) {
+					pendingCount++;
+				} else {
+					pendingTier = target;
+					pendingCount = 1;
+				}
+				if (pendingCount >= STABLE_EVALUATIONS
+						&& now - lastChange >= HOLD_TIME) {
+					tier = target;
+					pendingTier = -1;
+					lastChange = now;
+				}
+			}
+		}
+		int use = tier;
+		if (use > 0
+				&& link.getDecodeTime() > link.getNetworkTime() * CLIENT_BOUND) {
+			use--;
+		}
+		if (use == 0 && link.getRoundTripTime() > HIGH_RTT) {
+			use = 1;
+		}
+		EncodingSettings settings = getSettings(use);
+		return settings.equals(current) ? current : settings;
+	}
+
+	/**
+	 * Get the settings for a tier.
+	 *
+	 * @param tier tier, 0 (fastest) to 4
+	 * @return settings
+	 */
+	protected EncodingSettings getSettings(int tier) {
+		switch (tier) {
+		case 0:
+			double hextile = getCostPerPixel(RFBContext.ENCODING_HEXTILE);
+			double tight = getCostPerPixel(RFBContext.ENCODING_TIGHT);
+			if (hextile > 0 && tight > 0 && tight < hextile) {
+				return new EncodingSettings(RFBContext.ENCODING_TIGHT, 1, -1,
+						basePixelFormat);
+			}
+			return new EncodingSettings(RFBContext.ENCODING_HEXTILE, 1, -1,
+					basePixelFormat);
+		case 1:
+			return new EncodingSettings(RFBContext.ENCODING_TIGHT, 1, 8,
+					basePixelFormat);
+		case 2:
+			return new EncodingSettings(RFBContext.ENCODING_TIGHT, 6, 6,
+					basePixelFormat);
+		case 3:
+			return new EncodingSettings(RFBContext.ENCODING_TIGHT, 9, 4,
+					basePixelFormat);
+		default:
+			return new EncodingSettings(RFBContext.ENCODING_TIGHT, 9, 2,
+					RFBContext.PIXEL_FORMAT_8_BIT);
+		}
+	}
+}
@@ -12,8 +12,6 @@ import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageProducer;
 
-import javax.swing.ImageIcon;
-
 public class DummyDisplay implements RFBDisplay {
 
 	private RFBDisplayModel displayModel;
@@ -63,12 +61,10 @@ public class DummyDisplay implements RFBDisplay {
 		context.resetEncodings();
 		displayModel = new RFBDisplayModel(this);
 		displayModel.setContext(context);
+		// No component, so local cursors are never shown and the images
+		// (which would need the AWT toolkit to load) are not needed
 		engine = new ProtocolEngine(this, transport, context, prompt,
-			displayModel,
-
-			new ImageIcon(this.getClass().getResource("/images/empty-cursor.png"))
-				.getImage(), new ImageIcon(this.getClass().getResource("/images/dot-cursor.png")).getImage());
-		engine.setStopCursor(new ImageIcon(this.getClass().getResource("/images/stop-cursor.png")).getImage());
+			displayModel, null, null);
 		
 	}
 
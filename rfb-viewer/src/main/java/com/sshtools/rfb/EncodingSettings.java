@@ -0,0 +1,94 @@
+package com.sshtools.rfb;
+
+/**
+ * The encoding choices an {@link AdaptivePolicy} controls. Instances are
+ * immutable.
+ */
+public class EncodingSettings {
+
+	private final int preferredEncoding;
+	private final int compressLevel;
+	private final int jpegQuality;
+	private final int pixelFormat;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param preferredEncoding preferred encoding (see
+	 *            {@link RFBContext#ENCODING_TIGHT} etc)
+	 * @param compressLevel compress level 0-9 or -1 for the server default
+	 * @param jpegQuality JPEG quality 0-9 or -1 for lossless only
+	 * @param pixelFormat pixel format (see
+	 *            {@link RFBContext#PIXEL_FORMAT_AUTO} etc)
+	 */
+	public EncodingSettings(int preferredEncoding, int compressLevel,
+			int jpegQuality, int pixelFormat) {
+		this.preferredEncoding = preferredEncoding;
+		this.compressLevel = compressLevel;
+		this.jpegQuality = jpegQuality;
+		this.pixelFormat = pixelFormat;
+	}
+
+	/**
+	 * Get the settings currently held by a context.
+	 *
+	 * @param context context
+	 * @return settings
+	 */
+	public static EncodingSettings of(RFBContext context) {
+		return new EncodingSettings(context.getPreferredEncoding(),
+				context.getCompressLevel(), context.getJpegQuality(),
+				context.getPixelFormat());
+	}
+
+	public int getPreferredEncoding() {
+		return preferredEncoding;
+	}
+
+	public int getCompressLevel() {
+		return compressLevel;
+	}
+
+	public int getJpegQuality() {
+		return jpegQuality;
+	}
+
+	public int getPixelFormat() {
+		return pixelFormat;
+	}
+
+	/**
+	 * Get whether applying these settings in place of others requires the
+	 * encodings to be sent to the server again.
+	 *
+	 * @param other other settings
+	 * @return encodings changed
+	 */
+	public boolean isEncodingChanged(EncodingSettings other) {
+		return preferredEncoding != other.preferredEncoding
+				|| compressLevel != other.compressLevel
+				|| jpegQuality != other.jpegQuality;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof EncodingSettings)) {
+			return false;
+		}
+		EncodingSettings other = (EncodingSettings) obj;
+		return !isEncodingChanged(other) && pixelFormat == other.pixelFormat;
+	}
+
+	@Override
+	public int hashCode() {
+		return (((((preferredEncoding * 31) + compressLevel) * 31) + jpegQuality) * 31)
+				+ pixelFormat;
+	}
+
+	@Override
+	public String toString() {
+		return "EncodingSettings [preferredEncoding=" + preferredEncoding
+				+ ", compressLevel=" + compressLevel + ", jpegQuality="
+				+ jpegQuality + ", pixelFormat=" + pixelFormat + "]";
+	}
+}
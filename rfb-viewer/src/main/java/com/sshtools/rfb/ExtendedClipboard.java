@@ -0,0 +1,491 @@
+package com.sshtools.rfb;
+
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.StringSelection;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.rfbcommon.ProtocolReader;
+import com.sshtools.rfbcommon.RFBConstants;
+
+/**
+ * Client side of the Extended Clipboard pseudo-encoding. Once the server has
+ * announced its capabilities, text is exchanged as zlib compressed UTF-8.
+ * Rather than sending the content straight away, each side first notifies
+ * the other that new text is available, and it is only transferred when it is
+ * actually requested. Text from the server is placed on the clipboard as a
+ * {@link Transferable} that fetches it when first pasted.
+ * <p>
+ * Only the compressed bytes are read on the protocol thread; compressing,
+ * decompressing and decoding are done on a worker thread so large transfers
+ * do not hold up framebuffer updates any longer than needed. Text from the
+ * server is streamed to the worker in chunks as it is read, so it is never
+ * held compressed in full, and the rest is skipped as soon as the worker
+ * finds it is too large.
+ */
+public class ExtendedClipboard {
+	final static Logger LOG = LoggerFactory.getLogger(ProtocolEngine.class);
+
+	private final static long FETCH_TIMEOUT = 30000;
+	private final static int CHUNK_SIZE = 65536;
+	private final static int QUEUED_CHUNKS = 16;
+	private final static int ACTIONS = RFBConstants.EXT_CLIPBOARD_CAPS
+			| RFBConstants.EXT_CLIPBOARD_REQUEST
+			| RFBConstants.EXT_CLIPBOARD_PEEK
+			| RFBConstants.EXT_CLIPBOARD_NOTIFY
+			| RFBConstants.EXT_CLIPBOARD_PROVIDE;
+
+	private final ProtocolEngine engine;
+	private final RFBContext context;
+	private ExecutorService executor;
+	private boolean active;
+	private int serverActions;
+	private long serverTextLimit;
+	private String localText;
+	private long notified;
+	private long received;
+	private String serverText;
+	private int fetching;
+
+	public ExtendedClipboard(ProtocolEngine engine, RFBContext context) {
+		this.engine = engine;
+		this.context = context;
+	}
+
+	/**
+	 * Get whether the server has announced support, so text should be sent
+	 * with {@link #send(String)} rather than as plain cut text.
+	 *
+	 * @return active
+	 */
+	public synchronized boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Forget everything about the server, ready for a new connection.
+	 */
+	public synchronized void reset() {
+		active = false;
+		serverActions = 0;
+		serverTextLimit = 0;
+		localText = null;
+		serverText = null;
+		notified = received = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Stop the worker thread.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		reset();
+	}
+
+	/**
+	 * Make some text available to the server. If it supports notification,
+	 * only that is sent now, and the text itself when asked for.
+	 *
+	 * @param text text
+	 */
+	public void send(final String text) {
+		boolean notify;
+		synchronized (this) {
+			localText = text;
+			notify = (serverActions & RFBConstants.EXT_CLIPBOARD_NOTIFY) != 0;
+			if (!notify
+					&& (serverActions & RFBConstants.EXT_CLIPBOARD_PROVIDE) == 0) {
+				return;
+			}
+		}
+		if (notify) {
+			sendFlags(RFBConstants.EXT_CLIPBOARD_NOTIFY
+					| RFBConstants.EXT_CLIPBOARD_TEXT);
+		} else {
+			provide(text);
+		}
+	}
+
+	/**
+	 * Read an extended clipboard message (a server cut text message with a
+	 * negative length). Called on the protocol thread.
+	 *
+	 * @param in input
+	 * @param length length of the message payload
+	 * @throws IOException on error
+	 */
+	public void read(ProtocolReader in, int length) throws IOException {
+		if (length < 4) {
+			skip(in, length);
+			return;
+		}
+		int flags = in.readInt();
+		length -= 4;
+		int formats = flags & RFBConstants.EXT_CLIPBOARD_FORMAT_MASK;
+		if ((flags & RFBConstants.EXT_CLIPBOARD_CAPS) != 0) {
+			long textLimit = 0;
+			for (int i = 0; i < 16 && length >= 4; i++) {
+				if ((formats & (1 << i)) != 0) {
+					long size = in.readUInt32();
+					length -= 4;
+					if ((1 << i) == RFBConstants.EXT_CLIPBOARD_TEXT) {
+						textLimit = size;
+					}
+				}
+			}
+			skip(in, length);
+			synchronized (this) {
+				active = true;
+				serverActions = flags & ~RFBConstants.EXT_CLIPBOARD_FORMAT_MASK;
+				serverTextLimit = textLimit;
+			}
+			LOG.info("Server supports extended clipboard (actions "
+					+ Integer.toHexString(flags >>> 24) + ", text limit "
+					+ textLimit + ")");
+			sendCaps();
+		} else if ((flags & RFBConstants.EXT_CLIPBOARD_PROVIDE) != 0) {
+			if ((formats & RFBConstants.EXT_CLIPBOARD_TEXT) == 0) {
+				skip(in, length);
+				return;
+			}
+			if (length > getMaxCompressedSize()) {
+				LOG.warn("Ignoring clipboard data of " + length
+						+ " compressed bytes, more than the maximum of "
+						+ context.getMaxClipboardSize());
+				skip(in, length);
+				return;
+			}
+			final ChunkPipe pipe = new ChunkPipe();
+			try {
+				getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						received(pipe);
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				pipe.close();
+			}
+			pipe.feed(in, length);
+		} else {
+			skip(in, length);
+			if ((formats & RFBConstants.EXT_CLIPBOARD_TEXT) == 0) {
+				return;
+			}
+			if ((flags & RFBConstants.EXT_CLIPBOARD_REQUEST) != 0) {
+				String text;
+				synchronized (this) {
+					text = localText;
+				}
+				if (text != null) {
+					provide(text);
+				}
+			} else if ((flags & RFBConstants.EXT_CLIPBOARD_PEEK) != 0) {
+				synchronized (this) {
+					if (localText == null) {
+						return;
+					}
+				}
+				sendFlags(RFBConstants.EXT_CLIPBOARD_NOTIFY
+						| RFBConstants.EXT_CLIPBOARD_TEXT);
+			} else if ((flags & RFBConstants.EXT_CLIPBOARD_NOTIFY) != 0) {
+				synchronized (this) {
+					notified++;
+					serverText = null;
+				}
+				engine.setServerClipboard(new ServerText());
+			}
+		}
+	}
+
+	/**
+	 * Fetch the text the server last notified, waiting for it to arrive.
+	 *
+	 * @return text
+	 * @throws IOException on error or timeout
+	 */
+	String fetch() throws IOException {
+		long want;
+		synchronized (this) {
+			want = notified;
+			if (received >= want && serverText != null) {
+				return serverText;
+			}
+		}
+		sendFlags(RFBConstants.EXT_CLIPBOARD_REQUEST
+				| RFBConstants.EXT_CLIPBOARD_TEXT);
+		synchronized (this) {
+			fetching++;
+			try {
+				long end = System.currentTimeMillis() + FETCH_TIMEOUT;
+				while (received < want || serverText == null) {
+					long left = end - System.currentTimeMillis();
+					if (left <= 0 || !active) {
+						throw new IOException(
+								"Timed out waiting for clipboard from server.");
+					}
+					wait(left);
+				}
+				return serverText;
+			} catch (InterruptedException ie) {
+				throw new IOException("Interrupted waiting for clipboard.");
+			} finally {
+				fetching--;
+			}
+		}
+	}
+
+	/**
+	 * Get the largest compressed payload that can hold text of the maximum
+	 * size, being zlib's bound for the text, its length and terminator.
+	 */
+	private long getMaxCompressedSize() {
+		long max = context.getMaxClipboardSize() + 5L;
+		return max + (max >> 12) + (max >> 14) + (max >> 25) + 13;
+	}
+
+	private void received(InputStream data) {
+		String text;
+		try {
+			DataInputStream din = new DataInputStream(new InflaterInputStream(
+					data));
+			int size = din.readInt();
+			if (size < 0 || size > context.getMaxClipboardSize()) {
+				LOG.warn("Ignoring clipboard text of " + (size & 0xffffffffL)
+						+ " bytes, more than the maximum of "
+						+ context.getMaxClipboardSize());
+				return;
+			}
+			byte[] b = new byte[size];
+			din.readFully(b);
+			// Text is null terminated
+			text = new String(b, 0, size > 0 && b[size - 1] == 0 ? size - 1
+					: size, "UTF-8").replace("\r\n", "\n");
+		} catch (IOException ioe) {
+			LOG.error("Failed to decode clipboard text.", ioe);
+			return;
+		} finally {
+			try {
+				data.close();
+			} catch (IOException ioe) {
+			}
+		}
+		boolean waiting;
+		synchronized (this) {
+			serverText = text;
+			received = notified;
+			waiting = fetching > 0;
+			notifyAll();
+		}
+		if (!waiting) {
+			// Sent without being asked for, so it is the new clipboard
+			engine.setServerClipboard(new StringSelection(text));
+		}
+	}
+
+	private void provide(final String text) {
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					byte[] b = text.replace("\r\n", "\n").replace("\n", "\r\n")
+							.getBytes("UTF-8");
+					long limit;
+					synchronized (ExtendedClipboard.this) {
+						limit = serverTextLimit;
+					}
+					if (limit > 0 && b.length + 1 > limit) {
+						LOG.warn("Not sending clipboard text of " + b.length
+								+ " bytes, the server accepts at most " + limit);
+						return;
+					}
+					ByteArrayOutputStream bout = new ByteArrayOutputStream(
+							(b.length / 4) + 64);
+					DataOutputStream dout = new DataOutputStream(
+							new DeflaterOutputStream(bout));
+					dout.writeInt(b.length + 1);
+					dout.write(b);
+					dout.write(0);
+					dout.close();
+					engine.sendExtendedClipboard(
+							RFBConstants.EXT_CLIPBOARD_PROVIDE
+									| RFBConstants.EXT_CLIPBOARD_TEXT,
+							bout.toByteArray());
+				} catch (IOException ioe) {
+					LOG.error("Failed to send clipboard text.", ioe);
+				}
+			}
+		});
+	}
+
+	private void sendCaps() throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(4);
+		new DataOutputStream(bout).writeInt(context.getMaxClipboardSize());
+		engine.sendExtendedClipboard(ACTIONS | RFBConstants.EXT_CLIPBOARD_TEXT,
+				bout.toByteArray());
+	}
+
+	private void sendFlags(int flags) {
+		try {
+			engine.sendExtendedClipboard(flags, new byte[0]);
+		} catch (IOException ioe) {
+			LOG.error("Failed to send clipboard message.", ioe);
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ExtendedClipboard");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	private static void skip(ProtocolReader in, int length) throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * Clipboard content for text the server has, that is only fetched when
+	 * something asks for it.
+	 */
+	class ServerText implements Transferable {
+
+		@Override
+		public DataFlavor[] getTransferDataFlavors() {
+			return new DataFlavor[] { DataFlavor.stringFlavor };
+		}
+
+		@Override
+		public boolean isDataFlavorSupported(DataFlavor flavor) {
+			return DataFlavor.stringFlavor.equals(flavor);
+		}
+
+		@Override
+		public Object getTransferData(DataFlavor flavor)
+				throws UnsupportedFlavorException, IOException {
+			if (!isDataFlavorSupported(flavor)) {
+				throw new UnsupportedFlavorException(flavor);
+			}
+			return fetch();
+		}
+	}
+
+	/**
+	 * Hands data read on the protocol thread to the worker a chunk at a
+	 * time. At most {@link #QUEUED_CHUNKS} chunks are held, after which the
+	 * protocol thread waits for the worker. Once the worker closes the pipe,
+	 * the rest of the data is skipped.
+	 */
+	private static class ChunkPipe extends InputStream {
+		private final static byte[] END = new byte[0];
+
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(
+				QUEUED_CHUNKS);
+		private volatile boolean closed;
+		private byte[] chunk;
+		private int pos;
+
+		/**
+		 * Read data from the protocol thread into the pipe.
+		 */
+		void feed(ProtocolReader in, int length) throws IOException {
+			try {
+				while (length > 0) {
+					if (closed) {
+						ExtendedClipboard.skip(in, length);
+						return;
+					}
+					byte[] b = new byte[Math.min(length, CHUNK_SIZE)];
+					in.readFully(b);
+					length -= b.length;
+					put(b);
+				}
+			} finally {
+				put(END);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (chunk == null || pos == chunk.length) {
+				if (chunk == END) {
+					return -1;
+				}
+				try {
+					chunk = chunks.take();
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				}
+				pos = 0;
+				if (chunk == END) {
+					return -1;
+				}
+			}
+			int n = Math.min(len, chunk.length - pos);
+			System.arraycopy(chunk, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			chunks.clear();
+		}
+
+		private void put(byte[] b) throws IOException {
+			try {
+				while (!closed && !chunks.offer(b, 100, TimeUnit.MILLISECONDS)) {
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/* HEADER */
+package com.sshtools.rfb;
+
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tiles of the framebuffer whose content changed in one framebuffer
+ * update.
+ */
+public class FramebufferChangeEvent {
+
+	private final long frame;
+	private final List<Rectangle> changedTiles;
+	private final double changeRatio;
+
+	public FramebufferChangeEvent(long frame, List<Rectangle> changedTiles,
+			double changeRatio) {
+		this.frame = frame;
+		this.changedTiles = Collections.unmodifiableList(changedTiles);
+		this.changeRatio = changeRatio;
+	}
+
+	/**
+	 * Get the number of the framebuffer update, see
+	 * {@link ChangeGrid#getFrame()}.
+	 * 
+	 * @return frame
+	 */
+	public long getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Get the areas of the tiles that changed, in framebuffer coordinates.
+	 * 
+	 * @return changed tiles
+	 */
+	public List<Rectangle> getChangedTiles() {
+		return changedTiles;
+	}
+
+	/**
+	 * Get the fraction (0 to 1) of all tiles that changed.
+	 * 
+	 * @return change ratio
+	 */
+	public double getChangeRatio() {
+		return changeRatio;
+	}
+
+	@Override
+	public String toString() {
+		return "FramebufferChangeEvent [frame=" + frame + ", changedTiles="
+				+ changedTiles.size() + ", changeRatio=" + changeRatio + "]";
+	}
+}
@@ -0,0 +1,17 @@
+/* HEADER */
+package com.sshtools.rfb;
+
+/**
+ * Receives the tiles of the framebuffer whose content changed in each
+ * framebuffer update, see {@link ChangeGrid}.
+ */
+public interface FramebufferChangeListener {
+
+	/**
+	 * Called from the protocol thread at the end of each framebuffer update
+	 * that changed at least one tile.
+	 * 
+	 * @param event event
+	 */
+	void framebufferChanged(FramebufferChangeEvent event);
+}
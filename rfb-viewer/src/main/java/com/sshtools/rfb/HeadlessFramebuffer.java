@@ -0,0 +1,133 @@
+package com.sshtools.rfb;
+
+import java.util.Arrays;
+
+/**
+ * Framebuffer used by displays that have no component (such as
+ * {@link DummyDisplay}), so nothing is ever painted. Pixels are plain
+ * <code>0xRRGGBB</code> integers in a single array, row-major with a stride of
+ * the width, so no AWT or Java2D resources are needed to hold or update the
+ * remote desktop.
+ */
+public class HeadlessFramebuffer {
+
+	private int width;
+	private int height;
+	private int[] data;
+
+	public HeadlessFramebuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		data = new int[width * height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the pixel array. This is replaced when the framebuffer is resized.
+	 *
+	 * @return pixels
+	 */
+	public int[] getData() {
+		return data;
+	}
+
+	/**
+	 * Change the size, keeping as much of the current content as fits.
+	 *
+	 * @param width width
+	 * @param height height
+	 */
+	public void resize(int width, int height) {
+		if (width == this.width && height == this.height) {
+			return;
+		}
+		int[] newData = new int[width * height];
+		int w = Math.min(width, this.width);
+		int h = Math.min(height, this.height);
+		for (int r = 0; r < h; r++) {
+			System.arraycopy(data, r * this.width, newData, r * width, w);
+		}
+		this.width = width;
+		this.height = height;
+		data = newData;
+	}
+
+	public int getRGB(int x, int y) {
+		return data[(y * width) + x];
+	}
+
+	public void setRGB(int x, int y, int rgb) {
+		data[(y * width) + x] = rgb & 0xffffff;
+	}
+
+	public void fill(int x, int y, int w, int h, int rgb) {
+		rgb &= 0xffffff;
+		for (int r = 0; r < h; r++) {
+			int o = ((y + r) * width) + x;
+			Arrays.fill(data, o, o + w, rgb);
+		}
+	}
+
+	/**
+	 * Get an area of pixels.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param w width
+	 * @param h height
+	 * @param pixels array to fill or <code>null</code> to allocate one
+	 * @return pixels, with a stride of <code>w</code>
+	 */
+	public int[] get(int x, int y, int w, int h, int[] pixels) {
+		if (pixels == null) {
+			pixels = new int[w * h];
+		}
+		for (int r = 0; r < h; r++) {
+			System.arraycopy(data, ((y + r) * width) + x, pixels, r * w, w);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Set an area of pixels.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param w width
+	 * @param h height
+	 * @param pixels pixels
+	 * @param offset offset of the first pixel in <code>pixels</code>
+	 * @param scan stride of <code>pixels</code>
+	 */
+	public void set(int x, int y, int w, int h, int[] pixels, int offset,
+			int scan) {
+		for (int r = 0; r < h; r++) {
+			System.arraycopy(pixels, offset + (r * scan), data,
+					((y + r) * width) + x, w);
+		}
+	}
+
+	/**
+	 * Copy an area to another position. Overlapping areas are handled.
+	 */
+	public void copy(int srcx, int srcy, int w, int h, int dstx, int dsty) {
+		if (dsty > srcy) {
+			for (int r = h - 1; r >= 0; r--) {
+				System.arraycopy(data, ((srcy + r) * width) + srcx, data,
+						((dsty + r) * width) + dstx, w);
+			}
+		} else {
+			for (int r = 0; r < h; r++) {
+				System.arraycopy(data, ((srcy + r) * width) + srcx, data,
+						((dsty + r) * width) + dstx, w);
+			}
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.sshtools.rfb;
+
+/**
+ * Estimates the quality of the link to the server from the timing of
+ * framebuffer updates.
+ * <ul>
+ * <li>Throughput is the bytes of each update divided by the time spent
+ * waiting for them to arrive (not the time spent decoding them), smoothed
+ * with an exponentially weighted moving average.</li>
+ * <li>Round trip time is the time from sending an update request to the
+ * start of the next update. As the server may hold an incremental request
+ * until something changes, the minimum of recent samples is used.</li>
+ * <li>Jitter is the smoothed deviation of round trip samples from that
+ * minimum, ignoring samples so large they must include waiting for
+ * changes.</li>
+ * </ul>
+ * All times are measured with {@link System#nanoTime()}.
+ */
+public class LinkEstimator {
+
+	private final static double GAIN = 0.125;
+	private final static double JITTER_GAIN = 0.0625;
+	private final static int RTT_WINDOW = 16;
+	private final static int MIN_SAMPLE_BYTES = 1024;
+	private final static long MIN_SAMPLE_WAIT = 1000000L;
+	private final static int OUTLIER_FACTOR = 4;
+
+	private final long[] rttSamples = new long[RTT_WINDOW];
+	private int rttCount;
+	private long requested;
+	private long updateStart;
+	private long updateBytes;
+	private long updateWait;
+	private boolean measuring;
+	private long totalBytes;
+	private long updates;
+	private double throughput;
+	private double rtt;
+	private double jitter;
+	private double networkTime;
+	private double decodeTime;
+
+	/**
+	 * Get the estimated throughput.
+	 *
+	 * @return kilobits per second or 0 if not yet known
+	 */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * Get the estimated round trip time.
+	 *
+	 * @return milliseconds or 0 if not yet known
+	 */
+	public synchronized double getRoundTripTime() {
+		return rtt / 1000000d;
+	}
+
+	/**
+	 * Get the estimated variation in round trip time.
+	 *
+	 * @return milliseconds
+	 */
+	public synchronized double getJitter() {
+		return jitter / 1000000d;
+	}
+
+	/**
+	 * Get the average time per update spent waiting for data.
+	 *
+	 * @return milliseconds
+	 */
+	public synchronized double getNetworkTime() {
+		return networkTime / 1000000d;
+	}
+
+	/**
+	 * Get the average time per update spent decoding and drawing.
+	 *
+	 * @return milliseconds
+	 */
+	public synchronized double getDecodeTime() {
+		return decodeTime / 1000000d;
+	}
+
+	/**
+	 * Get the total number of bytes received in updates.
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Get the number of updates measured.
+	 *
+	 * @return updates
+	 */
+	public synchronized long getUpdates() {
+		return updates;
+	}
+
+	/**
+	 * Get whether enough has been measured for the throughput to be used.
+	 *
+	 * @return known
+	 */
+	public synchronized boolean isKnown() {
+		return throughput > 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("throughput=%.0fkbps rtt=%.1fms jitter=%.1fms "
+				+ "network=%.1fms decode=%.1fms", throughput,
+				getRoundTripTime(), getJitter(), getNetworkTime(),
+				getDecodeTime());
+	}
+
+	/**
+	 * Called when an update request is sent. Only the first request
+	 * outstanding is timed.
+	 */
+	synchronized void requestSent() {
+		if (requested == 0) {
+			requested = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Called when the first byte of an update has arrived.
+	 */
+	synchronized void updateStarted() {
+		updateStart = System.nanoTime();
+		updateBytes = 0;
+		updateWait = 0;
+		if (requested != 0) {
+			addRoundTrip(updateStart - requested);
+			requested = 0;
+		}
+	}
+
+	/**
+	 * Set whether reads are part of an update (rather than waiting for the
+	 * next one).
+	 *
+	 * @param measuring measuring
+	 */
+	synchronized void setMeasuring(boolean measuring) {
+		this.measuring = measuring;
+	}
+
+	/**
+	 * Called by the input stream after each read.
+	 *
+	 * @param bytes bytes read
+	 * @param waited nanoseconds blocked
+	 */
+	synchronized void read(int bytes, long waited) {
+		if (measuring && bytes > 0) {
+			updateBytes += bytes;
+			updateWait += waited;
+		}
+	}
+
+	/**
+	 * Called when an update has been completely decoded.
+	 */
+	synchronized void updateFinished() {
+		if (updateStart == 0) {
+			return;
+		}
+		long elapsed = System.nanoTime() - updateStart;
+		updateStart = 0;
+		updates++;
+		totalBytes += updateBytes;
+		networkTime = ewma(networkTime, updateWait, GAIN);
+		decodeTime = ewma(decodeTime, Math.max(0, elapsed - updateWait), GAIN);
+		// Small updates, or ones already buffered, say little about the link
+		if (updateBytes >= MIN_SAMPLE_BYTES && updateWait >= MIN_SAMPLE_WAIT) {
+			double kbps = (updateBytes * 8d * 1000000d) / updateWait;
+			throughput = throughput == 0 ? kbps : ewma(throughput, kbps, GAIN);
+		}
+	}
+
+	private void addRoundTrip(long sample) {
+		rttSamples[rttCount++ % RTT_WINDOW] = sample;
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < Math.min(rttCount, RTT_WINDOW); i++) {
+			min = Math.min(min, rttSamples[i]);
+		}
+		rtt = min;
+		if (sample <= min * OUTLIER_FACTOR) {
+			jitter = ewma(jitter, sample - min, JITTER_GAIN);
+		}
+	}
+
+	private static double ewma(double average, double sample, double gain) {
+		return average + (gain * (sample - average));
+	}
+}
@@ -0,0 +1,100 @@
+package com.sshtools.rfb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.sshtools.rfbcommon.PixelFormat;
+
+/**
+ * A file the framebuffer is memory mapped into, so other processes may map
+ * and read the live desktop. The file starts with a 64 byte header, all
+ * values little-endian :-
+ * 
+ * <pre>
+ * 0   U32  magic 'RFBF'
+ * 4   U32  version (1)
+ * 8   U32  width
+ * 12  U32  height
+ * 16  16   pixel format (as sent in the RFB SetPixelFormat message)
+ * 32  U32  bytes per pixel element (1, 2 or 4)
+ * 36  U32  generation, incremented each time the framebuffer is reallocated
+ * 40       reserved
+ * 64       pixels, row-major, width elements per row, little-endian
+ * </pre>
+ * 
+ * The file only ever grows, so a reader that mapped it earlier remains valid,
+ * it should re-read the header when the generation changes.
+ */
+public class MappedFramebufferFile {
+
+	public final static int MAGIC = 0x46424652; // 'RFBF' little-endian
+	public final static int VERSION = 1;
+	public final static int HEADER_SIZE = 64;
+
+	private File file;
+	private RandomAccessFile raf;
+	private int generation;
+
+	public MappedFramebufferFile(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Map a new framebuffer of the given size, returning a buffer for the
+	 * pixel data only.
+	 * 
+	 * @param width width
+	 * @param height height
+	 * @param format pixel format
+	 * @param elementSize bytes per pixel element
+	 * @return pixel buffer
+	 * @throws IOException
+	 */
+	public synchronized ByteBuffer map(int width, int height,
+			PixelFormat format, int elementSize) throws IOException {
+		if (raf == null) {
+			raf = new RandomAccessFile(file, "rw");
+		}
+		long size = HEADER_SIZE + ((long) width * height * elementSize);
+		if (raf.length() < size) {
+			raf.setLength(size);
+		}
+		MappedByteBuffer map = raf.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, size);
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		map.putInt(0, MAGIC);
+		map.putInt(4, VERSION);
+		map.putInt(8, width);
+		map.putInt(12, height);
+		ByteArrayOutputStream pf = new ByteArrayOutputStream(16);
+		format.write(pf);
+		byte[] pfb = pf.toByteArray();
+		for (int i = 0; i < pfb.length; i++) {
+			map.put(16 + i, pfb[i]);
+		}
+		map.putInt(32, elementSize);
+		map.putInt(36, ++generation);
+		map.position(HEADER_SIZE);
+		return map.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public synchronized void close() throws IOException {
+		if (raf != null) {
+			try {
+				raf.close();
+			} finally {
+				raf = null;
+			}
+		}
+	}
+}
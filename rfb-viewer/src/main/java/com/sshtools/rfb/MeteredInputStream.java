@@ -0,0 +1,52 @@
+/* HEADER */
+package com.sshtools.rfb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Times every read of the underlying stream and reports it to a
+ * {@link LinkEstimator}.
+ */
+class MeteredInputStream extends FilterInputStream {
+
+	private final LinkEstimator estimator;
+	private long count;
+
+	public MeteredInputStream(InputStream underlying, LinkEstimator estimator) {
+		super(underlying);
+		this.estimator = estimator;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		int i = in.read();
+		estimator.read(i == -1 ? 0 : 1, System.nanoTime() - start);
+		if (i != -1) {
+			count++;
+		}
+		return i;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		int i = in.read(b, off, len);
+		estimator.read(i, System.nanoTime() - start);
+		if (i > 0) {
+			count += i;
+		}
+		return i;
+	}
+
+	/**
+	 * Get the total number of bytes read.
+	 *
+	 * @return bytes
+	 */
+	public long getCount() {
+		return count;
+	}
+}
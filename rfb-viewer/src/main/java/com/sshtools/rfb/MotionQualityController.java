@@ -0,0 +1,321 @@
+package com.sshtools.rfb;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lowers the JPEG quality and compress level used by Tight while the screen
+ * is in heavy motion (such as when playing video), and asks for a lossless
+ * refresh of the area that moved once it stops.
+ * <p>
+ * Motion is measured from the rectangles decoded in each update. An update is
+ * a motion frame if it changed at least 2% of the framebuffer, and the screen
+ * is in motion once the motion frames within a second have changed an area of
+ * at least 12% of the framebuffer per second, and there have been at least
+ * three of them. Motion has stopped when there has been no motion frame for a
+ * second. As updates are only sent in reply to requests, a link with a long
+ * round trip time delivers few of them, so both times are stretched to cover
+ * several round trips. As the server sends nothing while the screen is still,
+ * a tiny non-incremental update is requested during motion if nothing arrives
+ * for that long, so the stop is noticed. All changes to the encodings are
+ * made on the protocol thread.
+ */
+public class MotionQualityController {
+	final static Logger LOG = LoggerFactory.getLogger(ProtocolEngine.class);
+
+	/**
+	 * Nothing to do
+	 */
+	public final static int NONE = 0;
+	/**
+	 * Motion started, send the motion encodings
+	 */
+	public final static int STARTED = 1;
+	/**
+	 * Motion stopped, send the lossless encodings and request the refresh
+	 * area
+	 */
+	public final static int STOPPED = 2;
+	/**
+	 * Refresh received, send the normal encodings
+	 */
+	public final static int RESTORED = 3;
+
+	private final static int IDLE = 0;
+	private final static int MOVING = 1;
+	private final static int REFRESHING = 2;
+
+	private final static double MIN_AREA = 0.02;
+	private final static double MIN_AREA_RATE = 0.12;
+	private final static int MIN_FRAMES = 3;
+	private final static long WINDOW = 1000000000L;
+	private final static long QUIET_TIME = 1000000000L;
+	private final static long REFRESH_TIMEOUT = 5000000000L;
+	private final static int MOTION_COMPRESS_LEVEL = 1;
+
+	private final ProtocolEngine engine;
+	private final RFBContext context;
+	private final LinkedList<MotionFrame> motionFrames = new LinkedList<MotionFrame>();
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> poke;
+	private int state = IDLE;
+	private long framePixels;
+	private long refreshPixels;
+	private long lastMotion;
+	private long lastFrame;
+	private long refreshStarted;
+	private long quietTime = QUIET_TIME;
+	private Rectangle motionArea;
+	private Rectangle refreshArea;
+
+	public MotionQualityController(ProtocolEngine engine, RFBContext context) {
+		this.engine = engine;
+		this.context = context;
+	}
+
+	/**
+	 * Get whether the controller applies to the current settings.
+	 *
+	 * @return enabled
+	 */
+	public boolean isEnabled() {
+		return context.isMotionAwareQuality()
+				&& context.getPreferredEncoding() == RFBContext.ENCODING_TIGHT;
+	}
+
+	/**
+	 * Get whether the screen is currently considered to be in motion.
+	 *
+	 * @return moving
+	 */
+	public synchronized boolean isMoving() {
+		return state == MOVING;
+	}
+
+	/**
+	 * Get whether the screen is in motion, or the refresh after it has not yet
+	 * been received.
+	 *
+	 * @return active
+	 */
+	public synchronized boolean isActive() {
+		return state != IDLE;
+	}
+
+	/**
+	 * Get the JPEG quality to ask for, given the normal quality.
+	 *
+	 * @param jpegQuality normal quality
+	 * @return quality to use
+	 */
+	public synchronized int getJpegQuality(int jpegQuality) {
+		switch (state) {
+		case MOVING:
+			return jpegQuality == -1 ? context.getMotionJpegQuality() : Math
+					.min(jpegQuality, context.getMotionJpegQuality());
+		case REFRESHING:
+			return -1;
+		default:
+			return jpegQuality;
+		}
+	}
+
+	/**
+	 * Get the compress level to ask for, given the normal level.
+	 *
+	 * @param compressLevel normal level
+	 * @return level to use
+	 */
+	public synchronized int getCompressLevel(int compressLevel) {
+		if (state == MOVING) {
+			return Math.min(compressLevel, MOTION_COMPRESS_LEVEL);
+		}
+		return compressLevel;
+	}
+
+	/**
+	 * Get the area that should be refreshed after {@link #STOPPED}.
+	 *
+	 * @return refresh area
+	 */
+	public synchronized Rectangle getRefreshArea() {
+		return refreshArea == null ? null : new Rectangle(refreshArea);
+	}
+
+	/**
+	 * Called for each rectangle decoded.
+	 *
+	 * @param encoding encoding
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 */
+	public synchronized void rectangle(int encoding, int x, int y, int width,
+			int height) {
+		if (encoding == RFBContext.ENCODING_COPYRECT) {
+			return;
+		}
+		Rectangle r = new Rectangle(x, y, width, height);
+		framePixels += (long) width * height;
+		if (state == REFRESHING) {
+			Rectangle i = r.intersection(refreshArea);
+			if (!i.isEmpty()) {
+				refreshPixels += (long) i.width * i.height;
+			}
+		}
+		if (motionArea == null) {
+			motionArea = r;
+		} else {
+			motionArea.add(r);
+		}
+	}
+
+	/**
+	 * Called at the end of each update.
+	 *
+	 * @param fbWidth framebuffer width
+	 * @param fbHeight framebuffer height
+	 * @param roundTripTime round trip time of the link (ms) or 0 if not known
+	 * @return what to do, one of {@link #NONE}, {@link #STARTED},
+	 *         {@link #STOPPED} or {@link #RESTORED}
+	 */
+	public synchronized int frameComplete(int fbWidth, int fbHeight,
+			double roundTripTime) {
+		long now = System.nanoTime();
+		lastFrame = now;
+		long rtt = (long) (roundTripTime * 1000000d);
+		long window = Math.max(WINDOW, (MIN_FRAMES + 1) * rtt);
+		quietTime = Math.max(QUIET_TIME, 2 * rtt);
+		double ratio = (double) framePixels
+				/ Math.max(1, (long) fbWidth * fbHeight);
+		framePixels = 0;
+		boolean motionFrame = ratio >= MIN_AREA;
+		if (motionFrame) {
+			lastMotion = now;
+			motionFrames.add(new MotionFrame(now, ratio));
+		}
+		double area = 0;
+		for (Iterator<MotionFrame> it = motionFrames.iterator(); it.hasNext();) {
+			MotionFrame f = it.next();
+			if (now - f.time > window) {
+				it.remove();
+			} else {
+				area += f.ratio;
+			}
+		}
+		switch (state) {
+		case MOVING:
+			if (now - lastMotion > quietTime) {
+				state = REFRESHING;
+				refreshArea = motionArea == null ? new Rectangle(0, 0,
+						fbWidth, fbHeight) : motionArea.intersection(new Rectangle(
+						0, 0, fbWidth, fbHeight));
+				motionArea = null;
+				refreshPixels = 0;
+				refreshStarted = now;
+				stopPoking();
+				LOG.info("Motion stopped, refreshing " + refreshArea);
+				return STOPPED;
+			}
+			return NONE;
+		case REFRESHING:
+			if (refreshPixels >= (long) refreshArea.width * refreshArea.height
+					|| now - refreshStarted > REFRESH_TIMEOUT) {
+				state = IDLE;
+				refreshArea = null;
+				return RESTORED;
+			}
+			return NONE;
+		default:
+			if (!motionFrame) {
+				// Only the area of continuous motion is of interest
+				motionArea = null;
+			}
+			if (motionFrames.size() >= MIN_FRAMES
+					&& area * WINDOW / window >= MIN_AREA_RATE) {
+				state = MOVING;
+				LOG.info("Motion started, lowering quality");
+				startPoking();
+				return STARTED;
+			}
+			return NONE;
+		}
+	}
+
+	/**
+	 * Forget all motion and stop, e.g. on disconnect.
+	 */
+	public synchronized void stop() {
+		stopPoking();
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		state = IDLE;
+		motionFrames.clear();
+		motionArea = refreshArea = null;
+		framePixels = 0;
+	}
+
+	private void startPoking() {
+		if (executor == null) {
+			executor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "MotionQualityController");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		long period = QUIET_TIME / 2;
+		poke = executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				poke();
+			}
+		}, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	private void stopPoking() {
+		if (poke != null) {
+			poke.cancel(false);
+			poke = null;
+		}
+	}
+
+	private void poke() {
+		synchronized (this) {
+			if (state != MOVING || System.nanoTime() - lastFrame < quietTime) {
+				return;
+			}
+		}
+		try {
+			engine.requestFramebufferUpdate(0, 0, 1, 1, false);
+		} catch (IOException ioe) {
+			LOG.error("Failed to request update.", ioe);
+		}
+	}
+
+	private static class MotionFrame {
+		private final long time;
+		private final double ratio;
+
+		private MotionFrame(long time, double ratio) {
+			this.time = time;
+			this.ratio = ratio;
+		}
+	}
+}
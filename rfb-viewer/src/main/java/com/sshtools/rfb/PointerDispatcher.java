@@ -0,0 +1,131 @@
+package com.sshtools.rfb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends pointer events to the server at a limited rate. Motion is kept in a
+ * single atomic slot that only ever holds the latest position, so any number
+ * of moves between sends cost nothing more than a store. Button changes (and
+ * wheel clicks) are queued along with the motion before them and are always
+ * sent, in order, as soon as possible. All sending is done by one scheduled
+ * thread.
+ */
+public class PointerDispatcher implements Runnable {
+	final static Logger LOG = LoggerFactory.getLogger(ProtocolEngine.class);
+
+	private final static long PENDING = 1L << 62;
+
+	private final AtomicLong latest = new AtomicLong();
+	private final LinkedList<Long> transitions = new LinkedList<Long>();
+	private final ProtocolEngine engine;
+	private final ScheduledExecutorService executor;
+	private final long period;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param engine engine to send events with
+	 * @param period nanoseconds between motion events
+	 */
+	public PointerDispatcher(ProtocolEngine engine, long period) {
+		this.engine = engine;
+		this.period = period;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PointerDispatcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleAtFixedRate(this, period, period,
+				TimeUnit.NANOSECONDS);
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Set the latest pointer position. Replaces any position not yet sent.
+	 *
+	 * @param x framebuffer x
+	 * @param y framebuffer y
+	 * @param mask button mask
+	 * @param modifiers key modifiers
+	 */
+	public void move(int x, int y, int mask, int modifiers) {
+		latest.set(pack(x, y, mask, modifiers));
+	}
+
+	/**
+	 * Queue a change of buttons, to be sent as soon as possible after any
+	 * motion before it.
+	 *
+	 * @param x framebuffer x
+	 * @param y framebuffer y
+	 * @param mask button mask
+	 * @param modifiers key modifiers
+	 */
+	public void transition(int x, int y, int mask, int modifiers) {
+		synchronized (transitions) {
+			long prev = latest.getAndSet(0);
+			if (prev != 0) {
+				transitions.add(prev);
+			}
+			transitions.add(pack(x, y, mask, modifiers));
+		}
+		if (!executor.isShutdown()) {
+			executor.execute(this);
+		}
+	}
+
+	/**
+	 * Stop sending events. Anything not yet sent is discarded.
+	 */
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void run() {
+		List<Long> events;
+		synchronized (transitions) {
+			events = new ArrayList<Long>(transitions);
+			transitions.clear();
+			// Any motion now in the slot happened after every queued change,
+			// as queueing a change takes the motion before it
+			long m = latest.getAndSet(0);
+			if (m != 0) {
+				events.add(m);
+			}
+		}
+		try {
+			for (long e : events) {
+				engine.sendPointerEvent((int) ((e >> 40) & 0xff),
+						(int) ((e >> 32) & 0xff), (int) ((e >> 16) & 0xffff),
+						(int) (e & 0xffff));
+			}
+		} catch (IOException ioe) {
+			LOG.error("Failed to send pointer event, stopping.", ioe);
+			stop();
+		}
+	}
+
+	private static long pack(int x, int y, int mask, int modifiers) {
+		return PENDING | ((long) (modifiers & 0xff) << 40)
+				| ((long) (mask & 0xff) << 32) | ((long) (x & 0xffff) << 16)
+				| (y & 0xffff);
+	}
+}
@@ -18,17 +18,27 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sshtools.rfb.encoding.CacheRectEncoding;
 import com.sshtools.rfb.files.TightVNCFS;
 import com.sshtools.rfb.files.UltraVNCFS;
 import com.sshtools.rfbcommon.ProtocolReader;
@@ -40,13 +50,14 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		MouseMotionListener, ClipboardOwner, Runnable {
 	final static Logger LOG = LoggerFactory.getLogger(ProtocolEngine.class);
 	protected static final int VNCR_FRAMEBUFFER_UPDATE = 1;
+	private static final int STATE_VERSION = 1;
 
 	final static int BUFFER_SIZE = 65536;
 
 	private Image emptyCursor, dotCursor;
 	private Image localCursorImage;
 	private char[] initialPassword;
-	private MouseEventDispatcher mouseEventDispatcher;
+	private volatile PointerDispatcher pointerDispatcher;
 	private RFBDisplay display;
 	private RFBEncoding currentEncoding;
 	private RFBTransport transport;
@@ -58,16 +69,27 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	private boolean isDisconnecting = false;
 	private RFBContext context;
 	private RFBDisplayModel displayModel;
+	// Guards the event buffer and modifier state, and is held while writing
+	// input events so they are sent in the order encoded
+	private final Object eventLock = new Object();
 	private byte[] eventBuffer = new byte[72];
 	private int eventBufferPos;
+	// Guards the pointer mask and the pointer dispatcher
+	private final Object pointerLock = new Object();
 	private int pointerMask = 0;
 	private int oldModifiers = 0;
 	private boolean inputEnabled = true;
 	private Point currentLocalCursorHotspot;
-	private MonitorDataInputStream monitor;
+	private final LinkEstimator linkEstimator = new LinkEstimator();
+	private MeteredInputStream meteredIn;
+	private final DecodeProfiler decodeProfiler = new DecodeProfiler();
+	private final List<RFBUpdateListener> updateListeners = new CopyOnWriteArrayList<RFBUpdateListener>();
 	private Image stopCursor;
 	private int cursorX, cursorY;
 	private boolean requestedFullUpdate;
+	private final ViewportTracker viewportTracker = new ViewportTracker();
+	private volatile boolean viewportChanged;
+	private ExecutorService viewportPoker;
 	private RFBFS fileSystem;
 	private ProtocolReader in;
 	private ProtocolWriter out;
@@ -78,6 +100,8 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	private RFBVersion clientProtocolVersion = new RFBVersion(
 			System.getProperty("rfb.version", RFBDisplay.VERSION_STRING));
 	private SecurityTypeFactory securityTypeFactory;
+	private ExtendedClipboard extendedClipboard;
+	private MotionQualityController motionController;
 
 	public ProtocolEngine(RFBDisplay display, RFBTransport transport,
 			RFBContext context, RFBEventHandler prompt,
@@ -90,6 +114,8 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		this.emptyCursor = emptyCursor;
 		this.dotCursor = dotCursor;
 
+		extendedClipboard = new ExtendedClipboard(this, context);
+		motionController = new MotionQualityController(this, context);
 		securityTypeFactory = new DefaultSecurityTypeFactory();
 	}
 
@@ -217,7 +243,9 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		performClientInitialization();
 		processServerInitialization();
 		setPixelFormat();
-		setEncodings(context.getEncodings());
+		extendedClipboard.reset();
+		motionController.stop();
+		sendEncodings();
 		displayModel.updateBuffer();
 
 		for (RFBFS fs : new RFBFS[] { new TightVNCFS(this),
@@ -248,7 +276,33 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 			msg[6 + (4 * i)] = (byte) ((encs[i] >> 8) & 0xFF);
 			msg[7 + (4 * i)] = (byte) (encs[i] & 0xFF);
 		}
-		out.write(msg);
+		synchronized (out) {
+			out.write(msg);
+		}
+	}
+
+	/**
+	 * Tell the server about the encodings in the context, with the JPEG
+	 * quality and compress level adjusted for motion if needed.
+	 * 
+	 * @throws IOException
+	 */
+	private void sendEncodings() throws IOException {
+		if (motionController.isEnabled()) {
+			setEncodings(context.getEncodings(
+					motionController.getCompressLevel(context
+							.getCompressLevel()),
+					motionController.getJpegQuality(context.getJpegQuality())));
+		} else {
+			setEncodings(context.getEncodings());
+		}
+	}
+
+	private void resetRectCache() {
+		RFBEncoding enc = context.getEncoding(RFBConstants.ENC_CACHE_RECT);
+		if (enc instanceof CacheRectEncoding) {
+			((CacheRectEncoding) enc).reset();
+		}
 	}
 
 	/**
@@ -294,7 +348,14 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	}
 
 	public void setPixelFormat() throws IOException {
-		switch (context.getPixelFormat()) {
+		int pixelFormat = context.getPixelFormat();
+		if (pixelFormat == RFBContext.PIXEL_FORMAT_AUTO
+				&& displayModel.isHeadless()) {
+			// Nothing is shown, so use the format the headless framebuffer
+			// holds and avoid any conversion
+			pixelFormat = RFBContext.PIXEL_FORMAT_NATIVE;
+		}
+		switch (pixelFormat) {
 		case RFBContext.PIXEL_FORMAT_AUTO:
 			// Use server requested format
 			break;
@@ -316,6 +377,9 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		case RFBContext.PIXEL_FORMAT_8_BIT_INDEXED:
 			changePixelFormat(8, 8, false, false, 0, 0, 0, 0, 0, 0);
 			break;
+		case RFBContext.PIXEL_FORMAT_NATIVE:
+			changePixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0);
+			break;
 		default:
 			throw new IllegalArgumentException("Unknown pixel format constant.");
 		}
@@ -335,6 +399,16 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	 */
 	public void requestFramebufferUpdate(int x, int y, int w, int h, boolean inc)
 			throws IOException {
+		sendFramebufferUpdateRequest(x, y, w, h, inc);
+		linkEstimator.requestSent();
+	}
+
+	/**
+	 * Send an update request without timing it for the link estimate, for
+	 * requests sent outside of the protocol thread's request / update cycle.
+	 */
+	private void sendFramebufferUpdateRequest(int x, int y, int w, int h,
+			boolean inc) throws IOException {
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Requesting frame buffer update for " + x + "," + y + ","
 					+ w + "," + h + " = " + inc);
@@ -356,18 +430,37 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	}
 
 	/**
-	 * Get clipboard data from the server
+	 * Get clipboard data from the server. Extended clipboard messages (those
+	 * with a negative length) are passed on to the {@link ExtendedClipboard},
+	 * and <code>null</code> is returned.
 	 * 
-	 * @return
+	 * @return text or <code>null</code>
 	 * @throws IOException
 	 */
 	String getServerCutText() throws IOException {
 		byte[] padding = new byte[3];
 		in.readFully(padding);
 		int len = in.readInt();
+		if (len < 0) {
+			extendedClipboard.read(in, -len);
+			return null;
+		}
 		byte[] tmp = new byte[len];
 		in.readFully(tmp);
-		return new String(tmp);
+		return new String(tmp, "ISO-8859-1");
+	}
+
+	/**
+	 * Place clipboard content received from the server on the system
+	 * clipboard.
+	 * 
+	 * @param contents contents
+	 */
+	void setServerClipboard(Transferable contents) {
+		if (display.getDisplayComponent() != null) {
+			Toolkit.getDefaultToolkit().getSystemClipboard()
+					.setContents(contents, this);
+		}
 	}
 
 	/**
@@ -414,6 +507,7 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		msg[14] = (byte) redShift;
 		msg[15] = (byte) greenShift;
 		msg[16] = (byte) blueShift;
+		resetRectCache();
 		LOG.info("Requesting next pixel format: " + displayModel);
 		synchronized (out) {
 			out.write(msg);
@@ -473,11 +567,13 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 				if (requestedFullUpdate) {
 					requestFramebufferUpdate(0, 0, displayModel.getRfbWidth(),
 							displayModel.getRfbHeight(), false);
+					viewportTracker.clearStale();
 					requestedFullUpdate = false;
 				}
 				int type = in.readUnsignedByte();
 				switch (type) {
 				case RFBConstants.SMSG_FRAMEBUFFER_UPDATE:
+					linkEstimator.updateStarted();
 					recordHeader(VNCR_FRAMEBUFFER_UPDATE);
 					int numUpdates;
 					// ?
@@ -493,9 +589,7 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 							LOG.debug("Update rectangle " + rect);
 						}
 						try {
-							if (monitor != null) {
-								monitor.setMonitoring(true);
-							}
+							linkEstimator.setMeasuring(true);
 							encoding = context.selectEncoding(rect
 									.getEncoding());
 							if (encoding != null) {
@@ -507,12 +601,37 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 									currentEncoding = encoding;
 									prompt.encodingChanged(currentEncoding);
 								}
+								long allocated = DecodeProfiler
+										.getAllocatedBytes();
+								long read = meteredIn.getCount();
+								long started = System.nanoTime();
 								encoding.processEncodedRect(display,
 										rect.getX(), rect.getY(),
 										rect.getWidth(), rect.getHeight(),
 										rect.getEncoding());
-								if (monitor != null) {
-									monitor.setMonitoring(false);
+								long nanos = System.nanoTime() - started;
+								read = meteredIn.getCount() - read;
+								if (allocated != -1) {
+									allocated = DecodeProfiler
+											.getAllocatedBytes() - allocated;
+								}
+								linkEstimator.setMeasuring(false);
+								int pixels = rect.getWidth() * rect.getHeight();
+								decodeProfiler.record(rect.getEncoding(),
+										decodeProfiler.takeSubencoding(),
+										nanos, read, pixels, allocated);
+								if (!encoding.isPseudoEncoding()
+										&& motionController.isEnabled()) {
+									motionController.rectangle(
+											rect.getEncoding(), rect.getX(),
+											rect.getY(), rect.getWidth(),
+											rect.getHeight());
+								}
+								if (context.isAdaptive()
+										&& !encoding.isPseudoEncoding()) {
+									context.getAdaptivePolicy().decoded(
+											rect.getEncoding(), pixels, read,
+											nanos);
 								}
 								if (rect.getEncoding() == RFBContext.MASK_ENCODING_POINTERPOS
 										|| rect.getEncoding() == RFBContext.MASK_ENCODING_XCURSOR
@@ -532,6 +651,11 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 							throw ex;
 						}
 					}
+					displayModel.frameComplete();
+					linkEstimator.updateFinished();
+					for (RFBUpdateListener l : updateListeners) {
+						l.updateComplete(this);
+					}
 					boolean fullUpdateNeeded = false;
 					// if (context.isEightBitColor() !=
 					// (displayModel
@@ -549,23 +673,25 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 							}
 						}
 					}
-					if (monitor != null && adapt()) {
+					if (context.isAdaptive() && linkEstimator.isKnown()
+							&& adapt()) {
 						fullUpdateNeeded = true;
 					}
-					requestFramebufferUpdate(0, 0, displayModel.getRfbWidth(),
-							displayModel.getRfbHeight(), !fullUpdateNeeded);
+					updateMotion();
+					requestViewportUpdate(!fullUpdateNeeded);
 					break;
 				case RFBConstants.SMSG_SET_COLORMAP:
 					readColourMap();
 				case RFBConstants.SMSG_BELL:
-					Toolkit.getDefaultToolkit().beep();
+					if (display.getDisplayComponent() != null) {
+						Toolkit.getDefaultToolkit().beep();
+					}
 					break;
 				case RFBConstants.SMSG_SERVER_CUT_TEXT:
 					String s = getServerCutText();
-					Toolkit.getDefaultToolkit()
-							.getSystemClipboard()
-							.setContents(new StringSelection(s),
-									ProtocolEngine.this);
+					if (s != null) {
+						setServerClipboard(new StringSelection(s));
+					}
 					break;
 				default:
 					if (fileSystem == null
@@ -586,6 +712,7 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 					transport.close();
 				} catch (IOException e) {
 				}
+				displayModel.closeFramebufferFile();
 				prompt.disconnected();
 			}
 		}
@@ -884,19 +1011,112 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	}
 
 	/**
-	 * Send the server some clipboard data
+	 * Send the server some clipboard data. If the server supports the extended
+	 * clipboard, it is only told the text is available, and the text is sent
+	 * when asked for. Otherwise it is sent as Latin-1, with characters outside
+	 * that replaced.
 	 * 
 	 * @param text
 	 * @throws IOException
 	 */
 	public void sendClipboardText(String text) throws IOException {
-		byte[] msg = new byte[8 + text.length()];
+		if (extendedClipboard.isActive()) {
+			extendedClipboard.send(text);
+			return;
+		}
+		byte[] b = text.getBytes("ISO-8859-1");
+		byte[] msg = new byte[8 + b.length];
 		msg[0] = (byte) RFBConstants.CMSG_CUT_TEXT;
-		msg[4] = (byte) ((text.length() >> 24) & 0xFF);
-		msg[5] = (byte) ((text.length() >> 16) & 0xFF);
-		msg[6] = (byte) ((text.length() >> 8) & 0xFF);
-		msg[7] = (byte) (text.length() & 0xFF);
-		System.arraycopy(text.getBytes(), 0, msg, 8, text.length());
+		msg[4] = (byte) ((b.length >> 24) & 0xFF);
+		msg[5] = (byte) ((b.length >> 16) & 0xFF);
+		msg[6] = (byte) ((b.length >> 8) & 0xFF);
+		msg[7] = (byte) (b.length & 0xFF);
+		System.arraycopy(b, 0, msg, 8, b.length);
+		synchronized (out) {
+			out.write(msg);
+		}
+	}
+
+	/**
+	 * Send an extended clipboard message.
+	 * 
+	 * @param flags action and formats
+	 * @param data data following the flags
+	 * @throws IOException
+	 */
+	void sendExtendedClipboard(int flags, byte[] data) throws IOException {
+		byte[] msg = new byte[12];
+		int len = -(4 + data.length);
+		msg[0] = (byte) RFBConstants.CMSG_CUT_TEXT;
+		msg[4] = (byte) ((len >> 24) & 0xFF);
+		msg[5] = (byte) ((len >> 16) & 0xFF);
+		msg[6] = (byte) ((len >> 8) & 0xFF);
+		msg[7] = (byte) (len & 0xFF);
+		msg[8] = (byte) ((flags >> 24) & 0xFF);
+		msg[9] = (byte) ((flags >> 16) & 0xFF);
+		msg[10] = (byte) ((flags >> 8) & 0xFF);
+		msg[11] = (byte) (flags & 0xFF);
+		synchronized (out) {
+			out.write(msg);
+			out.write(data);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Send the server the list of tiles held in the persistent tile cache.
+	 * 
+	 * @param capacity maximum number of tiles
+	 * @param inventory hash prefixes of tiles held
+	 * @throws IOException
+	 */
+	public void sendTileCacheInventory(int capacity, long[] inventory)
+			throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(
+				10 + (inventory.length * 8));
+		DataOutputStream dout = new DataOutputStream(bout);
+		dout.writeByte(RFBConstants.CMSG_TILE_CACHE);
+		dout.writeByte(RFBConstants.TILE_CACHE_INVENTORY);
+		dout.writeInt(capacity);
+		dout.writeInt(inventory.length);
+		for (long l : inventory) {
+			dout.writeLong(l);
+		}
+		synchronized (out) {
+			out.write(bout.toByteArray());
+		}
+	}
+
+	/**
+	 * Tell the server a referenced CacheRect rectangle is not in the cache.
+	 * 
+	 * @param id rectangle ID
+	 * @throws IOException
+	 */
+	public void sendCacheRectMiss(int id) throws IOException {
+		byte[] msg = new byte[6];
+		msg[0] = (byte) RFBConstants.CMSG_CACHE_RECT;
+		msg[1] = (byte) RFBConstants.CACHE_RECT_MISS;
+		msg[2] = (byte) ((id >> 24) & 0xFF);
+		msg[3] = (byte) ((id >> 16) & 0xFF);
+		msg[4] = (byte) ((id >> 8) & 0xFF);
+		msg[5] = (byte) (id & 0xFF);
+		synchronized (out) {
+			out.write(msg);
+		}
+	}
+
+	/**
+	 * Tell the server a referenced tile is not in the tile cache.
+	 * 
+	 * @param hash tile hash
+	 * @throws IOException
+	 */
+	public void sendTileCacheMiss(byte[] hash) throws IOException {
+		byte[] msg = new byte[2 + RFBConstants.TILE_CACHE_HASH_SIZE];
+		msg[0] = (byte) RFBConstants.CMSG_TILE_CACHE;
+		msg[1] = (byte) RFBConstants.TILE_CACHE_MISS;
+		System.arraycopy(hash, 0, msg, 2, RFBConstants.TILE_CACHE_HASH_SIZE);
 		synchronized (out) {
 			out.write(msg);
 		}
@@ -908,8 +1128,32 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	 * @param evt
 	 * @throws IOException
 	 */
-	public synchronized void postPointerEvent(MouseEvent evt)
-			throws IOException {
+	public void postPointerEvent(MouseEvent evt) throws IOException {
+		synchronized (pointerLock) {
+			int modifiers = updatePointerMask(evt);
+			int x = toFramebufferX(evt.getX());
+			int y = toFramebufferY(evt.getY());
+			sendPointerEvent(modifiers, pointerMask, x, y);
+
+			// Button up must be sent on mouse wheel
+			if (evt.getID() == MouseEvent.MOUSE_WHEEL) {
+				pointerMask &= ~(8 | 16);
+				sendPointerEvent(modifiers, pointerMask, x, y);
+			}
+		}
+
+		// A bug? Without this my server (TightVNC 1.2.9 on Linux) doesnt seem
+		// to send a cursor update back upon click
+		// if (context.isCursorUpdatesRequested()) {
+		// requestFramebufferUpdate(x, y, 1, 1, true);
+		// }
+	}
+
+	/**
+	 * Update the button mask from a mouse event, returning the key modifiers
+	 * to send with it. The caller must hold the pointer lock.
+	 */
+	private int updatePointerMask(MouseEvent evt) {
 		int modifiers = evt.getModifiers();
 		int mask2 = 2;
 		int mask3 = 4;
@@ -947,54 +1191,47 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 				modifiers &= ~RFBDisplay.META_MASK;
 			}
 		}
-		int x = (int) (evt.getX() / displayModel.getXscale())
-				- displayModel.getImagex();
-		int y = (int) (evt.getY() / displayModel.getYscale())
-				- displayModel.getImagey();
-		if (x < 0) {
-			x = 0;
-		}
-		if (y < 0) {
-			y = 0;
-		}
-		if (y >= displayModel.getRfbHeight()) {
-			y = displayModel.getRfbHeight() - 1;
-		}
-		if (x >= displayModel.getRfbWidth()) {
-			y = displayModel.getRfbWidth() - 1;
-		}
-		sendPointerEvent(modifiers, x, y);
+		return modifiers;
+	}
 
-		// Button up must be sent on mouse wheel
-		if (evt.getID() == MouseEvent.MOUSE_WHEEL) {
-			pointerMask &= ~mask4;
-			pointerMask &= ~mask5;
-			sendPointerEvent(modifiers, x, y);
-		}
+	private int toFramebufferX(int x) {
+		x = (int) (x / displayModel.getXscale()) - displayModel.getImagex();
+		return Math.max(0, Math.min(displayModel.getRfbWidth() - 1, x));
+	}
 
-		// A bug? Without this my server (TightVNC 1.2.9 on Linux) doesnt seem
-		// to send a cursor update back upon click
-		// if (context.isCursorUpdatesRequested()) {
-		// requestFramebufferUpdate(x, y, 1, 1, true);
-		// }
+	private int toFramebufferY(int y) {
+		y = (int) (y / displayModel.getYscale()) - displayModel.getImagey();
+		return Math.max(0, Math.min(displayModel.getRfbHeight() - 1, y));
 	}
 
-	private void sendPointerEvent(int modifiers, int x, int y)
+	/**
+	 * Send a pointer event.
+	 * 
+	 * @param modifiers key modifiers (see {@link RFBDisplay#CTRL_MASK} etc)
+	 * @param mask button mask
+	 * @param x framebuffer x
+	 * @param y framebuffer y
+	 * @throws IOException on error
+	 */
+	public void sendPointerEvent(int modifiers, int mask, int x, int y)
 			throws IOException {
-		eventBufferPos = 0;
-		encodeModifierKeyEvents(modifiers);
-		eventBuffer[eventBufferPos++] = (byte) RFBConstants.CMSG_POINTER_EVENT;
-		eventBuffer[eventBufferPos++] = (byte) pointerMask;
-		eventBuffer[eventBufferPos++] = (byte) ((x >> 8) & 0xFF);
-		eventBuffer[eventBufferPos++] = (byte) (x & 0xfF);
-		eventBuffer[eventBufferPos++] = (byte) ((y >> 8) & 0xFF);
-		eventBuffer[eventBufferPos++] = (byte) (y & 0xFF);
-		if (pointerMask == 0) {
-			encodeModifierKeyEvents(0);
-		}
-		synchronized (out) {
-			out.write(eventBuffer, 0, eventBufferPos);
-			out.flush();
+		synchronized (eventLock) {
+			eventBufferPos = 0;
+			encodeModifierKeyEvents(modifiers);
+			eventBuffer[eventBufferPos++] =
+					(byte) RFBConstants.CMSG_POINTER_EVENT;
+			eventBuffer[eventBufferPos++] = (byte) mask;
+			eventBuffer[eventBufferPos++] = (byte) ((x >> 8) & 0xFF);
+			eventBuffer[eventBufferPos++] = (byte) (x & 0xfF);
+			eventBuffer[eventBufferPos++] = (byte) ((y >> 8) & 0xFF);
+			eventBuffer[eventBufferPos++] = (byte) (y & 0xFF);
+			if (mask == 0) {
+				encodeModifierKeyEvents(0);
+			}
+			synchronized (out) {
+				out.write(eventBuffer, 0, eventBufferPos);
+				out.flush();
+			}
 		}
 	}
 
@@ -1004,7 +1241,7 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	 * @param evt
 	 * @throws IOException
 	 */
-	public synchronized void postKeyboardEvent(KeyEvent evt) throws IOException {
+	public void postKeyboardEvent(KeyEvent evt) throws IOException {
 		int keyChar = evt.getKeyChar();
 		if (keyChar == 0) {
 			keyChar = KeyEvent.CHAR_UNDEFINED;
@@ -1129,15 +1366,17 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 				}
 			}
 		}
-		eventBufferPos = 0;
-		encodeModifierKeyEvents(evt.getModifiers());
-		encodeKeyEvent(key, down);
-		if (!down) {
-			encodeModifierKeyEvents(0);
-		}
-		/* DEBUG */debugByteArray(eventBuffer, 0, eventBufferPos, "Key");
-		synchronized (out) {
-			out.write(eventBuffer, 0, eventBufferPos);
+		synchronized (eventLock) {
+			eventBufferPos = 0;
+			encodeModifierKeyEvents(evt.getModifiers());
+			encodeKeyEvent(key, down);
+			if (!down) {
+				encodeModifierKeyEvents(0);
+			}
+			/* DEBUG */debugByteArray(eventBuffer, 0, eventBufferPos, "Key");
+			synchronized (out) {
+				out.write(eventBuffer, 0, eventBufferPos);
+			}
 		}
 	}
 
@@ -1158,15 +1397,11 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	 * @param keysym
 	 * @param down
 	 */
-	public synchronized void encodeKeyEvent(int keysym, boolean down) {
-		eventBuffer[eventBufferPos++] = (byte) RFBConstants.CMSG_KEYBOARD_EVENT;
-		eventBuffer[eventBufferPos++] = (byte) (down ? 1 : 0);
-		eventBuffer[eventBufferPos++] = (byte) 0;
-		eventBuffer[eventBufferPos++] = (byte) 0;
-		eventBuffer[eventBufferPos++] = (byte) ((keysym >> 24) & 0xff);
-		eventBuffer[eventBufferPos++] = (byte) ((keysym >> 16) & 0xff);
-		eventBuffer[eventBufferPos++] = (byte) ((keysym >> 8) & 0xff);
-		eventBuffer[eventBufferPos++] = (byte) (keysym & 0xff);
+	public void encodeKeyEvent(int keysym, boolean down) {
+		synchronized (eventLock) {
+			eventBufferPos = encodeKeyEvent(eventBuffer, eventBufferPos,
+					keysym, down);
+		}
 	}
 
 	/**
@@ -1175,19 +1410,155 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	 * @param newModifiers
 	 */
 	public void encodeModifierKeyEvents(int newModifiers) {
+		synchronized (eventLock) {
+			eventBufferPos = encodeModifierKeyEvents(eventBuffer,
+					eventBufferPos, oldModifiers, newModifiers);
+			oldModifiers = newModifiers;
+		}
+	}
+
+	/**
+	 * Type some text. Each character is sent as a key press and release of
+	 * its keysym. Any modifiers currently held are released first, so they do
+	 * not change the text, and it is left to the server to add shift where
+	 * the keysym needs it (as the protocol expects). The whole sequence is
+	 * encoded into one buffer and written at once, unless <code>delay</code>
+	 * is given, in which case that many milliseconds are waited between each
+	 * key. Newlines are typed as Return and tabs as Tab.
+	 * 
+	 * @param text text to type
+	 * @param delay milliseconds between keys or 0 to send without pause
+	 * @throws IOException on error
+	 * @throws InterruptedException if interrupted while pacing
+	 */
+	public void typeText(String text, long delay) throws IOException,
+			InterruptedException {
+		int[] keysyms = new int[text.codePointCount(0, text.length())];
+		for (int i = 0, j = 0; i < text.length(); j++) {
+			int c = text.codePointAt(i);
+			keysyms[j] = toKeysym(c);
+			i += Character.charCount(c);
+		}
+		typeKeysyms(keysyms, 0, delay);
+	}
+
+	/**
+	 * Type a sequence of keysyms, pressing and releasing each in turn while
+	 * holding the given modifiers (see {@link RFBDisplay#SHIFT_MASK} etc).
+	 * The modifiers are released at the end. See
+	 * {@link #typeText(String, long)}.
+	 * 
+	 * @param keysyms keysyms
+	 * @param modifiers modifiers to hold
+	 * @param delay milliseconds between keys or 0 to send without pause
+	 * @throws IOException on error
+	 * @throws InterruptedException if interrupted while pacing
+	 */
+	public void typeKeysyms(int[] keysyms, int modifiers, long delay)
+			throws IOException, InterruptedException {
+		byte[] buf = new byte[(keysyms.length + 8) * 16];
+		int start;
+		int keysEnd;
+		int pos;
+		synchronized (eventLock) {
+			start = encodeModifierKeyEvents(buf, 0, oldModifiers, modifiers);
+			pos = start;
+			for (int keysym : keysyms) {
+				pos = encodeKeyEvent(buf, pos, keysym, true);
+				pos = encodeKeyEvent(buf, pos, keysym, false);
+			}
+			keysEnd = pos;
+			pos = encodeModifierKeyEvents(buf, pos, modifiers, 0);
+			oldModifiers = 0;
+			if (delay <= 0) {
+				synchronized (out) {
+					out.write(buf, 0, pos);
+					out.flush();
+				}
+				return;
+			}
+		}
+		// Paced, so don't hold the lock while waiting. Each step is the
+		// press and release of one key, with the modifiers either side
+		int off = 0;
+		int end = start + 16;
+		while (off < pos) {
+			if (end >= keysEnd) {
+				end = pos;
+			}
+			synchronized (out) {
+				out.write(buf, off, end - off);
+				out.flush();
+			}
+			off = end;
+			end += 16;
+			if (off < pos) {
+				Thread.sleep(delay);
+			}
+		}
+	}
+
+	/**
+	 * Get the keysym for a character. Latin-1 characters are their own
+	 * keysym, control characters with a key of their own map to that key,
+	 * and everything else uses the Unicode keysym range.
+	 * 
+	 * @param codePoint character
+	 * @return keysym
+	 */
+	public static int toKeysym(int codePoint) {
+		switch (codePoint) {
+		case '\b':
+			return 0xff08;
+		case '\t':
+			return 0xff09;
+		case '\n':
+		case '\r':
+			return 0xff0d;
+		case 0x1b:
+			return 0xff1b;
+		case 0x7f:
+			return 0xffff;
+		}
+		if ((codePoint >= 0x20 && codePoint < 0x7f)
+				|| (codePoint >= 0xa0 && codePoint <= 0xff)) {
+			return codePoint;
+		}
+		return 0x01000000 | codePoint;
+	}
+
+	private static int encodeKeyEvent(byte[] buf, int pos, int keysym,
+			boolean down) {
+		buf[pos++] = (byte) RFBConstants.CMSG_KEYBOARD_EVENT;
+		buf[pos++] = (byte) (down ? 1 : 0);
+		buf[pos++] = (byte) 0;
+		buf[pos++] = (byte) 0;
+		buf[pos++] = (byte) ((keysym >> 24) & 0xff);
+		buf[pos++] = (byte) ((keysym >> 16) & 0xff);
+		buf[pos++] = (byte) ((keysym >> 8) & 0xff);
+		buf[pos++] = (byte) (keysym & 0xff);
+		return pos;
+	}
+
+	private static int encodeModifierKeyEvents(byte[] buf, int pos,
+			int oldModifiers, int newModifiers) {
 		if ((newModifiers & RFBDisplay.CTRL_MASK) != (oldModifiers & RFBDisplay.CTRL_MASK)) {
-			encodeKeyEvent(0xffe3, (newModifiers & RFBDisplay.CTRL_MASK) != 0);
+			pos = encodeKeyEvent(buf, pos, 0xffe3,
+					(newModifiers & RFBDisplay.CTRL_MASK) != 0);
 		}
 		if ((newModifiers & RFBDisplay.SHIFT_MASK) != (oldModifiers & RFBDisplay.SHIFT_MASK)) {
-			encodeKeyEvent(0xffe1, (newModifiers & RFBDisplay.SHIFT_MASK) != 0);
+			pos = encodeKeyEvent(buf, pos, 0xffe1,
+					(newModifiers & RFBDisplay.SHIFT_MASK) != 0);
 		}
 		if ((newModifiers & RFBDisplay.META_MASK) != (oldModifiers & RFBDisplay.META_MASK)) {
-			encodeKeyEvent(0xffe7, (newModifiers & RFBDisplay.META_MASK) != 0);
+			pos = encodeKeyEvent(buf, pos, 0xffe7,
+					(newModifiers & RFBDisplay.META_MASK) != 0);
 		}
 		if ((newModifiers & RFBDisplay.ALT_MASK) != (oldModifiers & RFBDisplay.ALT_MASK)) {
-			encodeKeyEvent(0xffe9, (newModifiers & RFBDisplay.ALT_MASK) != 0);
+			pos = encodeKeyEvent(buf, pos, 0xffe9,
+					(newModifiers & RFBDisplay.ALT_MASK) != 0);
 		}
-		oldModifiers = newModifiers;
+		return pos;
 	}
 
 	@Override
@@ -1257,15 +1628,32 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	public void processLocalMouseEvent(MouseEvent evt, boolean moved) {
 		if (isProcessingEvents()) {
 			if (inputEnabled) {
-				if (context.getMouseEventDelay() != 0
-						&& (evt.getID() == MouseEvent.MOUSE_MOVED || evt
-								.getID() == MouseEvent.MOUSE_DRAGGED)) {
-					if (mouseEventDispatcher == null
-							|| !mouseEventDispatcher.isAlive()) {
-						mouseEventDispatcher = new MouseEventDispatcher();
-						mouseEventDispatcher.start();
+				PointerDispatcher dispatcher = getPointerDispatcher();
+				if (dispatcher != null) {
+					if (moved) {
+						doMoveCursor(evt.getX(), evt.getY());
+					}
+					int modifiers;
+					int mask;
+					synchronized (pointerLock) {
+						modifiers = updatePointerMask(evt);
+						mask = pointerMask;
+						if (evt.getID() == MouseEvent.MOUSE_WHEEL) {
+							pointerMask &= ~(8 | 16);
+						}
+					}
+					int x = toFramebufferX(evt.getX());
+					int y = toFramebufferY(evt.getY());
+					if (evt.getID() == MouseEvent.MOUSE_MOVED
+							|| evt.getID() == MouseEvent.MOUSE_DRAGGED) {
+						dispatcher.move(x, y, mask, modifiers);
+					} else {
+						dispatcher.transition(x, y, mask, modifiers);
+						if (evt.getID() == MouseEvent.MOUSE_WHEEL) {
+							dispatcher.transition(x, y, mask & ~(8 | 16),
+									modifiers);
+						}
 					}
-					mouseEventDispatcher.dispatch(evt);
 				} else {
 					if (moved) {
 						doMoveCursor(evt.getX(), evt.getY());
@@ -1282,6 +1670,38 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		}
 	}
 
+	/**
+	 * Get the dispatcher that limits the rate pointer motion is sent at, or
+	 * <code>null</code> if every event should be sent as it happens (see
+	 * {@link RFBContext#setPointerEventRate(int)} and
+	 * {@link RFBContext#setMouseEventDelay(int)}). This takes no lock unless
+	 * the settings have changed and the dispatcher must be rebuilt.
+	 */
+	private PointerDispatcher getPointerDispatcher() {
+		long period = 0;
+		if (context.getPointerEventRate() > 0) {
+			period = 1000000000L / context.getPointerEventRate();
+		} else if (context.getMouseEventDelay() > 0) {
+			period = context.getMouseEventDelay() * 1000000L;
+		}
+		PointerDispatcher dispatcher = pointerDispatcher;
+		if (dispatcher == null ? period == 0
+				: dispatcher.getPeriod() == period) {
+			return dispatcher;
+		}
+		synchronized (pointerLock) {
+			if (pointerDispatcher != null
+					&& (period == 0 || pointerDispatcher.getPeriod() != period)) {
+				pointerDispatcher.stop();
+				pointerDispatcher = null;
+			}
+			if (pointerDispatcher == null && period > 0) {
+				pointerDispatcher = new PointerDispatcher(this, period);
+			}
+			return pointerDispatcher;
+		}
+	}
+
 	private void doMoveCursor(int x, int y) {
 		Rectangle displayClip = new Rectangle(displayModel.getImagex(),
 				displayModel.getImagey(), display.getDisplayComponent()
@@ -1364,6 +1784,112 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 	public void refresh() throws IOException {
 		requestFramebufferUpdate(0, 0, displayModel.getRfbWidth(),
 				displayModel.getRfbHeight(), false);
+		viewportTracker.clearStale();
+	}
+
+	/**
+	 * Set the part of the framebuffer that is visible, in framebuffer
+	 * coordinates, or <code>null</code> if it is unknown. When
+	 * {@link RFBContext#isViewportUpdates()} is set, only this area (plus
+	 * {@link RFBContext#getViewportMargin()}) is requested from the server.
+	 * Areas that are not requested are remembered as stale, and are refreshed
+	 * as soon as they come back into view.
+	 * <p>
+	 * This only records the viewport, so may be called while painting. The
+	 * protocol thread requests the stale area after the next update, and is
+	 * woken with a small request from another thread in case it is waiting
+	 * for one.
+	 * 
+	 * @param viewport visible area
+	 */
+	public void setViewport(Rectangle viewport) {
+		if (viewportTracker.setViewport(viewport) && isConnected()
+				&& context.isViewportUpdates() && !viewportChanged) {
+			viewportChanged = true;
+			pokeForViewport();
+		}
+	}
+
+	private synchronized void pokeForViewport() {
+		if (viewportPoker == null) {
+			viewportPoker = Executors
+					.newSingleThreadExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "ViewportPoker");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		viewportPoker.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!viewportChanged || !isConnected()) {
+					// Already handled by the protocol thread
+					return;
+				}
+				try {
+					sendFramebufferUpdateRequest(0, 0, 1, 1, false);
+				} catch (IOException ioe) {
+					LOG.error("Failed to request update.", ioe);
+				}
+			}
+		});
+	}
+
+	private synchronized void stopViewportPoker() {
+		if (viewportPoker != null) {
+			viewportPoker.shutdownNow();
+			viewportPoker = null;
+		}
+	}
+
+	public Rectangle getViewport() {
+		return viewportTracker.getViewport();
+	}
+
+	/**
+	 * Get the number of {@link ViewportTracker#TILE_SIZE} tiles that have not
+	 * been requested because they were out of view.
+	 * 
+	 * @return stale tiles
+	 */
+	public int getStaleTileCount() {
+		return viewportTracker.getStaleTileCount();
+	}
+
+	private Rectangle getRequestArea() {
+		viewportTracker.setFramebufferSize(displayModel.getRfbWidth(),
+				displayModel.getRfbHeight());
+		if (!context.isViewportUpdates()) {
+			return new Rectangle(0, 0, displayModel.getRfbWidth(),
+					displayModel.getRfbHeight());
+		}
+		viewportTracker.setMargin(context.getViewportMargin());
+		return viewportTracker.getRequestArea();
+	}
+
+	private void requestStaleUpdate(Rectangle area) throws IOException {
+		Rectangle stale = viewportTracker.takeStale(area);
+		if (stale != null) {
+			requestFramebufferUpdate(stale.x, stale.y, stale.width,
+					stale.height, false);
+		}
+	}
+
+	private void requestViewportUpdate(boolean incremental)
+			throws IOException {
+		viewportChanged = false;
+		Rectangle area = getRequestArea();
+		if (incremental) {
+			requestStaleUpdate(area);
+		} else {
+			viewportTracker.takeStale(area);
+		}
+		viewportTracker.markStaleOutside(area);
+		requestFramebufferUpdate(area.x, area.y, area.width, area.height,
+				incremental);
 	}
 
 	/**
@@ -1384,6 +1910,25 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		}
 	}
 
+	/**
+	 * Get the estimates of throughput, round trip time and jitter of the link
+	 * to the server.
+	 * 
+	 * @return link estimator
+	 */
+	public LinkEstimator getLinkEstimator() {
+		return linkEstimator;
+	}
+
+	/**
+	 * Get the profiler recording the cost of decoding each rectangle.
+	 * 
+	 * @return decode profiler
+	 */
+	public DecodeProfiler getDecodeProfiler() {
+		return decodeProfiler;
+	}
+
 	public RFBDisplayModel getDisplayModel() {
 		return displayModel;
 	}
@@ -1413,6 +1958,15 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		if (!isClosed() && !isDisconnecting()) {
 			isDisconnecting = true;
 			setLocalCursor(null, -1, -1);
+			extendedClipboard.stop();
+			motionController.stop();
+			stopViewportPoker();
+			synchronized (pointerLock) {
+				if (pointerDispatcher != null) {
+					pointerDispatcher.stop();
+					pointerDispatcher = null;
+				}
+			}
 			try {
 				if (transport != null) {
 					transport.close();
@@ -1421,6 +1975,7 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 				ex.printStackTrace();
 			} finally {
 				isClosed = true;
+				displayModel.closeFramebufferFile();
 				prompt.disconnected();
 				isDisconnecting = false;
 			}
@@ -1429,14 +1984,7 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 
 	public void startRFBProtocol() throws IOException,
 			RFBAuthenticationException {
-		if (context.isAdaptive()) {
-			setInputStream(new ProtocolReader(
-					monitor = new MonitorDataInputStream(
-							transport.getInputStream())));
-		} else {
-			monitor = null;
-			setInputStream(new ProtocolReader(transport.getInputStream()));
-		}
+		setInputStream(new ProtocolReader(meter(transport.getInputStream())));
 		setOutputStream(transport.getOutputStream());
 		setInputEnabled(!context.isViewOnly());
 		Component displayComponent = display.getDisplayComponent();
@@ -1453,11 +2001,153 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		processProtocol();
 	}
 
+	/**
+	 * Continue a session part way through from a state saved by
+	 * {@link #saveState(DataOutputStream)}, instead of starting it with the
+	 * handshake. The transport must supply the server messages that followed
+	 * the point the state was saved. Used to play recordings from a keyframe.
+	 * 
+	 * @param state saved state
+	 * @throws IOException on error
+	 */
+	public void resumeRFBProtocol(DataInputStream state) throws IOException {
+		setInputStream(new ProtocolReader(meter(transport.getInputStream())));
+		setOutputStream(transport.getOutputStream());
+		setInputEnabled(false);
+		restoreState(state);
+		display.resizeComponent();
+		prompt.connected();
+		prompt.resized(displayModel.getRfbWidth(), displayModel.getRfbHeight());
+		new Thread(this).start();
+	}
+
+	/**
+	 * Save everything needed to continue decoding from the end of the current
+	 * framebuffer update: the framebuffer, its format and the state of the
+	 * encodings. Must be called from
+	 * {@link RFBUpdateListener#updateComplete(ProtocolEngine)}, and state
+	 * tracking must have been turned on (see {@link #setStateTracked(boolean)}
+	 * ).
+	 * 
+	 * @param out output
+	 * @throws IOException on error
+	 */
+	public void saveState(DataOutputStream out) throws IOException {
+		out.writeByte(STATE_VERSION);
+		String name = displayModel.getRfbName();
+		out.writeUTF(name == null ? "" : name);
+		out.writeShort(displayModel.getRfbWidth());
+		out.writeShort(displayModel.getRfbHeight());
+		displayModel.write(out);
+		Map<Integer, Integer> colorMap = displayModel.getColorMap();
+		out.writeInt(colorMap.size());
+		for (Map.Entry<Integer, Integer> en : colorMap.entrySet()) {
+			out.writeInt(en.getKey());
+			out.writeInt(en.getValue());
+		}
+		int[] rgb = displayModel.getFramebufferRGB();
+		byte[] buf = new byte[rgb.length * 3];
+		for (int i = 0, j = 0; i < rgb.length; i++) {
+			buf[j++] = (byte) (rgb[i] >> 16);
+			buf[j++] = (byte) (rgb[i] >> 8);
+			buf[j++] = (byte) rgb[i];
+		}
+		out.write(buf);
+
+		List<RFBResumableEncoding> resumable = getResumableEncodings();
+		out.writeShort(resumable.size());
+		ByteArrayOutputStream encState = new ByteArrayOutputStream();
+		for (RFBResumableEncoding enc : resumable) {
+			encState.reset();
+			DataOutputStream dos = new DataOutputStream(encState);
+			enc.saveState(dos);
+			dos.flush();
+			out.writeInt(enc.getType());
+			out.writeInt(encState.size());
+			encState.writeTo(out);
+		}
+	}
+
+	/**
+	 * Set whether encodings keep what is needed to save their state (see
+	 * {@link #saveState(DataOutputStream)}). Must be set before the protocol
+	 * is started.
+	 * 
+	 * @param tracked track state
+	 */
+	public void setStateTracked(boolean tracked) {
+		for (RFBResumableEncoding enc : getResumableEncodings()) {
+			enc.setStateTracked(tracked);
+		}
+	}
+
+	public void addUpdateListener(RFBUpdateListener listener) {
+		updateListeners.add(listener);
+	}
+
+	public void removeUpdateListener(RFBUpdateListener listener) {
+		updateListeners.remove(listener);
+	}
+
+	private void restoreState(DataInputStream in) throws IOException {
+		int version = in.readUnsignedByte();
+		if (version != STATE_VERSION) {
+			throw new IOException("Unsupported state version " + version + ".");
+		}
+		displayModel.setRfbName(in.readUTF());
+		displayModel.setRfbWidth(in.readUnsignedShort());
+		displayModel.setRfbHeight(in.readUnsignedShort());
+		displayModel.read(in);
+		Map<Integer, Integer> colorMap = displayModel.getColorMap();
+		colorMap.clear();
+		for (int i = in.readInt(); i > 0; i--) {
+			colorMap.put(in.readInt(), in.readInt());
+		}
+		displayModel.updateBuffer();
+		byte[] buf = new byte[displayModel.getRfbWidth()
+				* displayModel.getRfbHeight() * 3];
+		in.readFully(buf);
+		int[] rgb = new int[buf.length / 3];
+		for (int i = 0, j = 0; i < rgb.length; i++, j += 3) {
+			rgb[i] = (buf[j] & 0xff) << 16 | (buf[j + 1] & 0xff) << 8
+					| (buf[j + 2] & 0xff);
+		}
+		displayModel.setFramebufferRGB(rgb);
+
+		for (int i = in.readUnsignedShort(); i > 0; i--) {
+			int type = in.readInt();
+			byte[] encState = new byte[in.readInt()];
+			in.readFully(encState);
+			RFBEncoding enc = context.getEncoding(type);
+			if (enc instanceof RFBResumableEncoding) {
+				((RFBResumableEncoding) enc)
+						.restoreState(new DataInputStream(
+								new ByteArrayInputStream(encState)));
+			} else {
+				LOG.warn("No resumable encoding " + type + ", ignoring state.");
+			}
+		}
+		displayModel.frameComplete();
+	}
+
+	private List<RFBResumableEncoding> getResumableEncodings() {
+		List<RFBResumableEncoding> l = new ArrayList<RFBResumableEncoding>();
+		for (RFBEncoding enc : context.getRegisteredEncodings()) {
+			if (enc instanceof RFBResumableEncoding) {
+				l.add((RFBResumableEncoding) enc);
+			}
+		}
+		return l;
+	}
+
 	public boolean isConnected() {
 		return transport == null ? false : !isClosed;
 	}
 
 	public void setLocalCursor(final Image img, final int hotx, final int hoty) {
+		if (display.getDisplayComponent() == null) {
+			return;
+		}
 		java.security.AccessController
 				.doPrivileged(new java.security.PrivilegedAction<Void>() {
 					@Override
@@ -1475,6 +2165,17 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		return in;
 	}
 
+	/**
+	 * Wrap a stream from the server so reads from it are measured by the
+	 * {@link LinkEstimator}. Used whenever the input stream is replaced.
+	 * 
+	 * @param in stream
+	 * @return measured stream
+	 */
+	public InputStream meter(InputStream in) {
+		return meteredIn = new MeteredInputStream(in, linkEstimator);
+	}
+
 	/**
 	 * @param in
 	 *            The inputStream to set.
@@ -1526,43 +2227,56 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		display.setCursor(cursor);
 	}
 
+	private void updateMotion() throws IOException {
+		if (!motionController.isEnabled()) {
+			if (motionController.isActive()) {
+				motionController.stop();
+			}
+			return;
+		}
+		switch (motionController.frameComplete(displayModel.getRfbWidth(),
+				displayModel.getRfbHeight(), linkEstimator.getRoundTripTime())) {
+		case MotionQualityController.STARTED:
+		case MotionQualityController.RESTORED:
+			sendEncodings();
+			break;
+		case MotionQualityController.STOPPED:
+			sendEncodings();
+			Rectangle refresh = motionController.getRefreshArea();
+			if (!refresh.isEmpty()) {
+				requestFramebufferUpdate(refresh.x, refresh.y, refresh.width,
+						refresh.height, false);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
 	private boolean adapt() {
-		boolean fullUpdate = false;
-		long speed = monitor.getSpeed();
-		RFBEncoding newEncoding = currentEncoding;
-		if (speed > 3128) {
-			newEncoding = context.getEncoding(RFBContext.ENCODING_HEXTILE);
-		} else if (speed < 1496) {
-			newEncoding = context.getEncoding(RFBContext.ENCODING_TIGHT);
-		}
-		if (context.getPreferredEncoding() != newEncoding.getType()) {
-			context.setPreferredEncoding(newEncoding.getType());
-			try {
-				setEncodings(context.getEncodings());
-			} catch (IOException e) {
-				e.printStackTrace();
+		EncodingSettings current = EncodingSettings.of(context);
+		EncodingSettings settings = context.getAdaptivePolicy().evaluate(
+				linkEstimator, current);
+		if (settings == null || settings.equals(current)) {
+			return false;
+		}
+		LOG.info("Adapting to " + linkEstimator + ", now using " + settings);
+		context.setPreferredEncoding(settings.getPreferredEncoding());
+		context.setCompressLevel(settings.getCompressLevel());
+		context.setJpegQuality(settings.getJpegQuality());
+		context.setPixelFormat(settings.getPixelFormat());
+		try {
+			if (settings.isEncodingChanged(current)) {
+				sendEncodings();
 			}
-		} else {
-			if (speed > 4098 && !displayModel.isTrueColor()) {
-				displayModel.setTrueColor(true);
-				try {
-					setPixelFormat();
-					fullUpdate = true;
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			} else if (speed < 1024) {
-				if (displayModel.isTrueColor()) {
-					displayModel.setTrueColor(false);
-					try {
-						setPixelFormat();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
+			if (settings.getPixelFormat() != current.getPixelFormat()) {
+				setPixelFormat();
+				return true;
 			}
+		} catch (IOException e) {
+			LOG.error("Failed to change encoding settings.", e);
 		}
-		return fullUpdate;
+		return false;
 	}
 
 	public char[] getInitialPassword() {
@@ -1573,65 +2287,6 @@ public class ProtocolEngine implements KeyListener, MouseListener,
 		this.initialPassword = initialPassword;
 	}
 
-	class MouseEventDispatcher extends Thread {
-		MouseEvent lastEvent;
-		int events;
-
-		@Override
-		public void run() {
-			while (true) {
-				try {
-					Thread.sleep(context.getMouseEventDelay());
-					if (lastEvent != null) {
-						postPointerEvent(lastEvent);
-						if (context.isLocalCursorDisplayed()) {
-							setLocalCursor(displayModel.getCursor(),
-									displayModel.getHotX(),
-									displayModel.getHotY());
-						} else {
-							doMoveCursor(lastEvent.getX(), lastEvent.getY());
-						}
-						lastEvent = null;
-					}
-				} catch (InterruptedException ie) {
-					if (lastEvent != null
-							&& events > context.getMouseEventThreshold()) {
-						try {
-							postPointerEvent(lastEvent);
-						} catch (IOException ioe) {
-							break;
-						}
-						// if (context.isLocalCursorDisplayed()) {
-						// setLocalCursor(displayModel.getCursor(),
-						// displayModel.hotX, displayModel.hotY);
-						// } else {
-						doMoveCursor(lastEvent.getX(), lastEvent.getY());
-						// setLocalCursor(emptyCursor, 0, 0);
-						// }
-						lastEvent = null;
-						events = 0;
-					} else {
-						if (context.isLocalCursorDisplayed()) {
-							setLocalCursor(displayModel.getCursor(),
-									displayModel.getHotX(),
-									displayModel.getHotY());
-						} else {
-							setLocalCursor(dotCursor, 2, 2);
-						}
-					}
-				} catch (IOException ioe) {
-					break;
-				}
-			}
-		}
-
-		public void dispatch(MouseEvent evt) {
-			this.lastEvent = evt;
-			events++;
-			interrupt();
-		}
-	}
-
 	/**
 	 * @return
 	 */
@@ -2,13 +2,17 @@
 package com.sshtools.rfb;
 
 import java.util.List;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.sshtools.rfb.encoding.CORREEncoding;
+import com.sshtools.rfb.encoding.CacheRectEncoding;
 import com.sshtools.rfb.encoding.CopyRectEncoding;
 import com.sshtools.rfb.encoding.CursorPositionEncoding;
 import com.sshtools.rfb.encoding.HextileEncoding;
@@ -18,9 +22,12 @@ import com.sshtools.rfb.encoding.RREEncoding;
 import com.sshtools.rfb.encoding.RawEncoding;
 import com.sshtools.rfb.encoding.RichCursorEncoding;
 import com.sshtools.rfb.encoding.TightEncoding;
+import com.sshtools.rfb.encoding.TileCacheEncoding;
 import com.sshtools.rfb.encoding.XCursorEncoding;
 import com.sshtools.rfb.encoding.ZLIBEncoding;
 import com.sshtools.rfb.encoding.ZRLEEncoding;
+import com.sshtools.rfbcommon.RFBConstants;
+import com.sshtools.rfbcommon.RectCache;
 
 /**
  * Defines the configuration of an RFB protocol session including available
@@ -37,8 +44,29 @@ public class RFBContext implements Serializable {
 	public final static int PIXEL_FORMAT_16_BIT = 4;
 	public final static int PIXEL_FORMAT_32_BIT_24_BIT_COLOUR = 5;
 	public final static int PIXEL_FORMAT_32_BIT = 6;
+	/**
+	 * 32 bit little-endian, 24 bit colour with red, green and blue shifts of
+	 * 16, 8 and 0. This is identical to the layout of the local framebuffer, so
+	 * decoded pixel data may be copied into it without conversion.
+	 */
+	public final static int PIXEL_FORMAT_NATIVE = 7;
 	// Not sure about these two
 
+	/**
+	 * Framebuffer held in an ordinary heap image (the default, and fastest to
+	 * paint)
+	 */
+	public final static int FRAMEBUFFER_HEAP = 0;
+	/**
+	 * Framebuffer held in a direct (off-heap) buffer
+	 */
+	public final static int FRAMEBUFFER_DIRECT = 1;
+	/**
+	 * Framebuffer held in a memory mapped file (see
+	 * {@link MappedFramebufferFile}) so other processes may read it
+	 */
+	public final static int FRAMEBUFFER_MAPPED = 2;
+
 	// Supported pixel encoding formats
 	public final static int ENCODING_RAW = 0;
 	public final static int ENCODING_COPYRECT = 1;
@@ -78,12 +106,37 @@ public class RFBContext implements Serializable {
 	private int screenUpdateTimeout = 0;
 	private int deferUpdateRequests = 20;
 	private boolean adaptive;
+	private int rectCacheLevel = -1;
+	private File tileCacheDirectory = new File(new File(
+			System.getProperty("user.home"), ".rfb"), "tiles");
+	private int tileCacheSlots = 0;
+	private int framebufferType = FRAMEBUFFER_HEAP;
+	private File framebufferFile;
+	private boolean acceleratedPresentation;
+	private boolean doubleBufferedFramebuffer;
+	private int mipmapLevels;
+	private boolean viewportUpdates = true;
+	private int viewportMargin = 64;
+	private int maxPaintRate;
+	private int refreshRate = 60;
+	private int immediatePaintRadius = 48;
+	private int changeGridTileSize;
+	private int pointerEventRate;
+	private boolean extendedClipboard = true;
+	private int maxClipboardSize = 64 * 1024 * 1024;
+	private transient AdaptivePolicy adaptivePolicy;
+	private boolean motionAwareQuality;
+	private int motionJpegQuality = 3;
 
 	public RFBContext() {
 		resetEncodings();
 	}
 
 	public void resetEncodings() {
+		if (encodings == null) {
+			// Deserialized
+			encodings = new HashMap<String, RFBEncoding>();
+		}
 		encodings.clear(); // perhaps encodings should have a reset() method so
 							// the objects can be re-used
 		registerEncoding(new RawEncoding());
@@ -99,6 +152,8 @@ public class RFBContext implements Serializable {
 		registerEncoding(new XCursorEncoding());
 		registerEncoding(new RichCursorEncoding());
 		registerEncoding(new CursorPositionEncoding());
+		registerEncoding(new CacheRectEncoding());
+		registerEncoding(new TileCacheEncoding());
 	}
 
 	public void registerEncoding(RFBEncoding encoder) {
@@ -119,6 +174,10 @@ public class RFBContext implements Serializable {
 		return (RFBEncoding) encodings.get(String.valueOf(i));
 	}
 
+	public Collection<RFBEncoding> getRegisteredEncodings() {
+		return Collections.unmodifiableCollection(encodings.values());
+	}
+
 	public int getPreferredEncoding() {
 		return preferredEncoding;
 	}
@@ -167,6 +226,10 @@ public class RFBContext implements Serializable {
 		return compressLevel;
 	}
 
+	public void setCompressLevel(int compressLevel) {
+		this.compressLevel = compressLevel;
+	}
+
 	public int getPixelFormat() {
 		return pixelFormat;
 	}
@@ -195,6 +258,57 @@ public class RFBContext implements Serializable {
 		this.mouseEventDelay = mouseEventDelay;
 	}
 
+	public int getPointerEventRate() {
+		return pointerEventRate;
+	}
+
+	/**
+	 * Set the most pointer motion events per second sent to the server.
+	 * Only the latest position is sent, button changes are always sent
+	 * immediately. Takes precedence over {@link #getMouseEventDelay()}.
+	 * 
+	 * @param pointerEventRate events per second or 0 to use the mouse event
+	 *            delay
+	 */
+	public void setPointerEventRate(int pointerEventRate) {
+		if (pointerEventRate < 0) {
+			throw new IllegalArgumentException("Rate must not be negative.");
+		}
+		this.pointerEventRate = pointerEventRate;
+	}
+
+	public boolean isExtendedClipboard() {
+		return extendedClipboard;
+	}
+
+	/**
+	 * Set whether to offer the server the Extended Clipboard pseudo-encoding,
+	 * allowing compressed Unicode text to be transferred only when it is
+	 * pasted.
+	 * 
+	 * @param extendedClipboard extended clipboard
+	 */
+	public void setExtendedClipboard(boolean extendedClipboard) {
+		this.extendedClipboard = extendedClipboard;
+	}
+
+	public int getMaxClipboardSize() {
+		return maxClipboardSize;
+	}
+
+	/**
+	 * Set the largest clipboard text (in bytes of UTF-8) that will be accepted
+	 * from the server using the extended clipboard.
+	 * 
+	 * @param maxClipboardSize maximum size
+	 */
+	public void setMaxClipboardSize(int maxClipboardSize) {
+		if (maxClipboardSize < 0) {
+			throw new IllegalArgumentException("Size must not be negative.");
+		}
+		this.maxClipboardSize = maxClipboardSize;
+	}
+
 	public int getMouseEventThreshold() {
 		return mouseEventThreshold;
 	}
@@ -204,6 +318,18 @@ public class RFBContext implements Serializable {
 	}
 
 	public int[] getEncodings() {
+		return getEncodings(compressLevel, jpegQuality);
+	}
+
+	/**
+	 * Get the encodings to send to the server, using the given compress level
+	 * and JPEG quality in place of those configured.
+	 * 
+	 * @param compressLevel compress level
+	 * @param jpegQuality JPEG quality
+	 * @return encodings
+	 */
+	public int[] getEncodings(int compressLevel, int jpegQuality) {
 
 		List<Integer> v = new ArrayList<Integer>();
 
@@ -242,6 +368,20 @@ public class RFBContext implements Serializable {
 			v.add(new Integer(MASK_ENCODING_JPEG_QUALITY + jpegQuality));
 		}
 
+		if (rectCacheLevel > -1) {
+			v.add(new Integer(RFBConstants.ENC_CACHE_RECT));
+			v.add(new Integer(RFBConstants.ENC_CACHE_RECT_SIZE0
+					+ rectCacheLevel));
+		}
+
+		if (tileCacheSlots > 0) {
+			v.add(new Integer(RFBConstants.ENC_TILE_CACHE));
+		}
+
+		if (extendedClipboard) {
+			v.add(new Integer(RFBConstants.ENC_EXTENDED_CLIPBOARD));
+		}
+
 		v.add(new Integer(MASK_ENCODING_LAST_RECT));
 		v.add(new Integer(MASK_ENCODING_NEW_SIZE));
 
@@ -252,6 +392,245 @@ public class RFBContext implements Serializable {
 		return ret;
 	}
 
+	public int getRectCacheLevel() {
+		return rectCacheLevel;
+	}
+
+	/**
+	 * Set the size of the CacheRect rectangle cache as a level between 0 and
+	 * {@link RectCache#MAX_LEVEL}, where the cache holds
+	 * <code>2^(16 + level)</code> pixels. Use -1 (the default) to not offer
+	 * the cache to the server. Only enable it for servers known to support
+	 * it.
+	 * 
+	 * @param rectCacheLevel cache level or -1 to disable
+	 */
+	public void setRectCacheLevel(int rectCacheLevel) {
+		if (rectCacheLevel < -1 || rectCacheLevel > RectCache.MAX_LEVEL) {
+			throw new IllegalArgumentException("Invalid cache level.");
+		}
+		this.rectCacheLevel = rectCacheLevel;
+	}
+
+	public File getTileCacheDirectory() {
+		return tileCacheDirectory;
+	}
+
+	/**
+	 * Set the directory used for the persistent tile cache. If another
+	 * process is using it, a numbered sub-directory is used instead (see
+	 * {@link TileStore}).
+	 * 
+	 * @param tileCacheDirectory directory
+	 */
+	public void setTileCacheDirectory(File tileCacheDirectory) {
+		this.tileCacheDirectory = tileCacheDirectory;
+	}
+
+	public int getTileCacheSlots() {
+		return tileCacheSlots;
+	}
+
+	/**
+	 * Set the maximum number of 64x64 tiles kept in the persistent tile
+	 * cache. Each slot uses 16KB of disk. Use 0 (the default) to not offer
+	 * the cache to the server. Only enable it for servers known to support
+	 * it.
+	 * 
+	 * @param tileCacheSlots slots or 0 to disable
+	 */
+	public void setTileCacheSlots(int tileCacheSlots) {
+		this.tileCacheSlots = tileCacheSlots;
+	}
+
+	public int getFramebufferType() {
+		return framebufferType;
+	}
+
+	/**
+	 * Set where the framebuffer is held, one of {@link #FRAMEBUFFER_HEAP},
+	 * {@link #FRAMEBUFFER_DIRECT} or {@link #FRAMEBUFFER_MAPPED}. Takes effect
+	 * when the framebuffer is next allocated.
+	 * 
+	 * @param framebufferType framebuffer type
+	 */
+	public void setFramebufferType(int framebufferType) {
+		this.framebufferType = framebufferType;
+	}
+
+	public File getFramebufferFile() {
+		return framebufferFile;
+	}
+
+	/**
+	 * Set the file to map the framebuffer into when the type is
+	 * {@link #FRAMEBUFFER_MAPPED}.
+	 * 
+	 * @param framebufferFile file
+	 */
+	public void setFramebufferFile(File framebufferFile) {
+		this.framebufferFile = framebufferFile;
+	}
+
+	public boolean isAcceleratedPresentation() {
+		return acceleratedPresentation;
+	}
+
+	/**
+	 * Set whether displays that support it should present the framebuffer
+	 * through an accelerated (video memory) copy that is updated only where
+	 * the framebuffer changes. Displays fall back to normal painting if no
+	 * acceleration is available.
+	 * 
+	 * @param acceleratedPresentation use accelerated presentation
+	 */
+	public void setAcceleratedPresentation(boolean acceleratedPresentation) {
+		this.acceleratedPresentation = acceleratedPresentation;
+	}
+
+	public boolean isDoubleBufferedFramebuffer() {
+		return doubleBufferedFramebuffer;
+	}
+
+	/**
+	 * Set whether decoded updates are drawn into a back buffer and only
+	 * published for painting once each complete framebuffer update has been
+	 * received. Painting then never sees a partially decoded update, and never
+	 * holds up decoding. Takes effect when the framebuffer is next created.
+	 * 
+	 * @param doubleBufferedFramebuffer double buffer the framebuffer
+	 */
+	public void setDoubleBufferedFramebuffer(boolean doubleBufferedFramebuffer) {
+		this.doubleBufferedFramebuffer = doubleBufferedFramebuffer;
+	}
+
+	public int getMipmapLevels() {
+		return mipmapLevels;
+	}
+
+	/**
+	 * Set how many reduced copies of the framebuffer (at 1/2, 1/4 and 1/8
+	 * size) are kept for drawing thumbnails (see
+	 * {@link RFBDisplayModel#paintThumbnail(java.awt.Graphics, int, int, int, int)}
+	 * ). They are built when first needed and then updated only where the
+	 * framebuffer changes.
+	 * 
+	 * @param mipmapLevels levels, between 0 (none) and
+	 *            {@link RFBDisplayModel#MAX_MIPMAP_LEVELS}
+	 */
+	public void setMipmapLevels(int mipmapLevels) {
+		if (mipmapLevels < 0
+				|| mipmapLevels > RFBDisplayModel.MAX_MIPMAP_LEVELS) {
+			throw new IllegalArgumentException("Invalid number of levels.");
+		}
+		this.mipmapLevels = mipmapLevels;
+	}
+
+	public boolean isViewportUpdates() {
+		return viewportUpdates;
+	}
+
+	/**
+	 * Set whether only the visible part of the framebuffer (as reported by
+	 * the display, see {@link ProtocolEngine#setViewport(java.awt.Rectangle)}
+	 * ) is requested from the server.
+	 * 
+	 * @param viewportUpdates request only the viewport
+	 */
+	public void setViewportUpdates(boolean viewportUpdates) {
+		this.viewportUpdates = viewportUpdates;
+	}
+
+	public int getViewportMargin() {
+		return viewportMargin;
+	}
+
+	/**
+	 * Set how many pixels around the viewport are requested as well, so
+	 * small scrolls show up to date content immediately.
+	 * 
+	 * @param viewportMargin margin
+	 */
+	public void setViewportMargin(int viewportMargin) {
+		if (viewportMargin < 0) {
+			throw new IllegalArgumentException("Margin must not be negative.");
+		}
+		this.viewportMargin = viewportMargin;
+	}
+
+	public int getMaxPaintRate() {
+		return maxPaintRate;
+	}
+
+	/**
+	 * Set the most times a second displays that support it should paint
+	 * updated areas of the framebuffer. Changes are collected and painted
+	 * together, except those near the mouse pointer (see
+	 * {@link #setImmediatePaintRadius(int)}). Use 0 to paint every update as
+	 * it arrives (after {@link #getScreenUpdateTimeout()}).
+	 * 
+	 * @param maxPaintRate maximum paints per second or 0 for no limit
+	 */
+	public void setMaxPaintRate(int maxPaintRate) {
+		if (maxPaintRate < 0) {
+			throw new IllegalArgumentException(
+					"Paint rate must not be negative.");
+		}
+		this.maxPaintRate = maxPaintRate;
+	}
+
+	public int getRefreshRate() {
+		return refreshRate;
+	}
+
+	/**
+	 * Set the rate (in Hz) paints limited by {@link #getMaxPaintRate()} are
+	 * aligned to, normally that of the monitor.
+	 * 
+	 * @param refreshRate refresh rate
+	 */
+	public void setRefreshRate(int refreshRate) {
+		if (refreshRate < 1) {
+			throw new IllegalArgumentException(
+					"Refresh rate must be at least 1.");
+		}
+		this.refreshRate = refreshRate;
+	}
+
+	public int getImmediatePaintRadius() {
+		return immediatePaintRadius;
+	}
+
+	/**
+	 * Set how close (in display pixels) to the mouse pointer an updated area
+	 * must be for it to be painted immediately, rather than at the next
+	 * scheduled paint. Use 0 to schedule all paints.
+	 * 
+	 * @param immediatePaintRadius radius
+	 */
+	public void setImmediatePaintRadius(int immediatePaintRadius) {
+		this.immediatePaintRadius = immediatePaintRadius;
+	}
+
+	public int getChangeGridTileSize() {
+		return changeGridTileSize;
+	}
+
+	/**
+	 * Set the size of the tiles the display model hashes to detect which
+	 * parts of the framebuffer change (see {@link ChangeGrid}). Takes effect
+	 * when the framebuffer is next created or resized.
+	 * 
+	 * @param changeGridTileSize tile size or 0 to not track changes
+	 */
+	public void setChangeGridTileSize(int changeGridTileSize) {
+		if (changeGridTileSize < 0) {
+			throw new IllegalArgumentException(
+					"Tile size must not be negative.");
+		}
+		this.changeGridTileSize = changeGridTileSize;
+	}
+
 	public void setCursorUpdateTimeout(int cursorUpdateTimeout) {
 		this.cursorUpdateTimeout = cursorUpdateTimeout;
 	}
@@ -300,6 +679,57 @@ public class RFBContext implements Serializable {
 		this.adaptive = adaptive;
 	}
 
+	public boolean isMotionAwareQuality() {
+		return motionAwareQuality;
+	}
+
+	/**
+	 * Set whether to lower the JPEG quality used by Tight while the screen is
+	 * in heavy motion, and refresh losslessly when it stops. See
+	 * {@link MotionQualityController}.
+	 * 
+	 * @param motionAwareQuality motion aware quality
+	 */
+	public void setMotionAwareQuality(boolean motionAwareQuality) {
+		this.motionAwareQuality = motionAwareQuality;
+	}
+
+	public int getMotionJpegQuality() {
+		return motionJpegQuality;
+	}
+
+	/**
+	 * Set the JPEG quality (0-9) used while the screen is in motion.
+	 * 
+	 * @param motionJpegQuality quality
+	 */
+	public void setMotionJpegQuality(int motionJpegQuality) {
+		if (motionJpegQuality < 0 || motionJpegQuality > 9) {
+			throw new IllegalArgumentException("Quality must be 0-9.");
+		}
+		this.motionJpegQuality = motionJpegQuality;
+	}
+
+	public AdaptivePolicy getAdaptivePolicy() {
+		if (adaptivePolicy == null) {
+			adaptivePolicy = new DefaultAdaptivePolicy();
+		}
+		return adaptivePolicy;
+	}
+
+	/**
+	 * Set the policy used to choose encodings when adaptive (see
+	 * {@link #setAdaptive(boolean)}).
+	 * 
+	 * @param adaptivePolicy policy
+	 */
+	public void setAdaptivePolicy(AdaptivePolicy adaptivePolicy) {
+		if (adaptivePolicy == null) {
+			throw new IllegalArgumentException("Policy must not be null.");
+		}
+		this.adaptivePolicy = adaptivePolicy;
+	}
+
 	public void setViewOnly(boolean viewOnly) {
 		this.viewOnly = viewOnly;
 
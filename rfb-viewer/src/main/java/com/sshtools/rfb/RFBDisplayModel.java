@@ -3,20 +3,38 @@
 package com.sshtools.rfb;
 
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.ImageObserver;
-
-import javax.swing.SwingUtilities;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sshtools.rfbcommon.NioDataBuffer;
 import com.sshtools.rfbcommon.PixelFormat;
 import com.sshtools.rfbcommon.PixelFormatImageFactory;
 
@@ -26,6 +44,12 @@ public class RFBDisplayModel extends PixelFormat {
 	public final static int RGB = 0;
 	public final static int BGR = 1;
 
+	/**
+	 * Largest number of mipmap levels, see
+	 * {@link RFBContext#setMipmapLevels(int)}
+	 */
+	public final static int MAX_MIPMAP_LEVELS = 3;
+
 	// Remote desktop information
 
 	private int imagex, imagey;
@@ -37,32 +61,63 @@ public class RFBDisplayModel extends PixelFormat {
 	private BufferedImage imageBuffer;
 	private Graphics graphicBuffer;
 	private RFBDisplay display;
-	boolean showSoftCursor = false;
-	private Image softCursor;
-	private int cursorX = 0, cursorY = 0;
-	private int cursorWidth, cursorHeight;
-	private int hotX, hotY;
+	private final CursorOverlay cursor = new CursorOverlay();
 	private RFBContext context;
 	private BufferedImage lastRect;
 	private Object lock = new Object();
 
 	private PixelFormatImageFactory imageFactory;
+	private MappedFramebufferFile mappedFile;
+	private HeadlessFramebuffer headlessBuffer;
+	private Color fillColor;
+	private BufferedImage[] mipmaps;
+	private volatile ChangeGrid changeGrid;
+	private final List<FramebufferChangeListener> changeListeners = new CopyOnWriteArrayList<FramebufferChangeListener>();
+	private BufferedImage scaledBuffer;
+	private int scaledMode;
+	private final List<Rectangle> frameDamage = new ArrayList<Rectangle>();
+	private FrontBuffer[] frontBuffers;
+	private volatile FrontBuffer front;
+	private FrontBuffer acquired;
+	private volatile boolean publishDeferred;
+
+	/**
+	 * A published copy of the framebuffer (and its scaled copy), used when
+	 * the framebuffer is double buffered. Each has the list of areas that
+	 * have changed in the back buffer since it was last brought up to date.
+	 */
+	static class FrontBuffer {
+		final ReentrantLock lock = new ReentrantLock();
+		final List<Rectangle> pending = new ArrayList<Rectangle>();
+		boolean full = true;
+		BufferedImage image;
+		BufferedImage scaled;
+		int scaledMode;
+	}
 
 	public Image getCursor() {
-		return softCursor;
+		return cursor.getImage();
 	}
 
 	public Point getCursorHotspot() {
-		return new Point(hotX, hotY);
+		return new Point(cursor.getHotX(), cursor.getHotY());
 	}
 
 	public boolean hasCursor() {
-		return showSoftCursor;
+		return cursor.isVisible();
 	}
 
 	public Rectangle getCursorRect() {
-		return new Rectangle(cursorX - hotX, cursorY - hotY, cursorWidth,
-				cursorHeight);
+		return cursor.getBounds();
+	}
+
+	/**
+	 * Get the layer the soft cursor is drawn on.
+	 * 
+	 * @return cursor overlay
+	 */
+	public CursorOverlay getCursorOverlay() {
+		return cursor;
 	}
 
 	/**
@@ -88,10 +143,66 @@ public class RFBDisplayModel extends PixelFormat {
 
 	}
 
+	/**
+	 * Get the framebuffer decoders draw into. When double buffered this is
+	 * the back buffer, which may hold a partially decoded update.
+	 *
+	 * @return framebuffer
+	 */
 	public BufferedImage getImageBuffer() {
 		return imageBuffer;
 	}
 
+	public boolean isDoubleBuffered() {
+		return frontBuffers != null;
+	}
+
+	/**
+	 * Get whether the display has no component, in which case the
+	 * framebuffer is a {@link HeadlessFramebuffer} and there is no
+	 * {@link #getImageBuffer() image buffer} or
+	 * {@link #getGraphicBuffer() graphics}. Encodings should update the
+	 * framebuffer through the model's methods (or {@link #getNativeData()})
+	 * rather than through those.
+	 *
+	 * @return headless
+	 */
+	public boolean isHeadless() {
+		return display.getDisplayComponent() == null;
+	}
+
+	/**
+	 * Get the framebuffer when {@link #isHeadless() headless}.
+	 *
+	 * @return headless framebuffer or <code>null</code>
+	 */
+	public HeadlessFramebuffer getHeadlessFramebuffer() {
+		return headlessBuffer;
+	}
+
+	/**
+	 * Get the pixel array backing the framebuffer if the negotiated pixel
+	 * format is the native layout (see {@link PixelFormat#isNative()}), or
+	 * <code>null</code> if pixels must be converted. Pixels are stored
+	 * row-major with a stride of the framebuffer width. Decoders writing into
+	 * this array should hold {@link #getLock()} and must request their own
+	 * repaint.
+	 *
+	 * @return native pixel data or <code>null</code>
+	 */
+	public int[] getNativeData() {
+		HeadlessFramebuffer headless = headlessBuffer;
+		if (headless != null) {
+			return isNative() ? headless.getData() : null;
+		}
+		BufferedImage img = imageBuffer;
+		if (img != null && isNative()
+				&& img.getType() == BufferedImage.TYPE_INT_RGB) {
+			return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		}
+		return null;
+	}
+
 	public RFBDisplayModel(RFBDisplay display) {
 		super();
 		this.display = display;
@@ -197,6 +308,22 @@ public class RFBDisplayModel extends PixelFormat {
 		this.imagey = imagey;
 	}
 
+	/**
+	 * Convert an area of the display component to framebuffer coordinates,
+	 * using the current position and scale.
+	 *
+	 * @param area area of the component
+	 * @return area of the framebuffer, clipped to its bounds
+	 */
+	public Rectangle toFramebuffer(Rectangle area) {
+		int x1 = (int) Math.floor((area.x - imagex) / xscale);
+		int y1 = (int) Math.floor((area.y - imagey) / yscale);
+		int x2 = (int) Math.ceil((area.x + area.width - imagex) / xscale);
+		int y2 = (int) Math.ceil((area.y + area.height - imagey) / yscale);
+		return new Rectangle(x1, y1, x2 - x1, y2 - y1)
+				.intersection(new Rectangle(0, 0, rfbWidth, rfbHeight));
+	}
+
 	public void updateBuffer() {
 		synchronized (lock) {
 			BufferedImage prev = imageBuffer;
@@ -204,28 +331,131 @@ public class RFBDisplayModel extends PixelFormat {
 				return;
 			}
 			updateScale(display);
-			recreateImage();
+			if (isHeadless()) {
+				if (headlessBuffer == null) {
+					headlessBuffer = new HeadlessFramebuffer(rfbWidth, rfbHeight);
+				} else {
+					headlessBuffer.resize(rfbWidth, rfbHeight);
+				}
+				resetChangeGrid();
+				display.resizeComponent();
+				return;
+			}
+			if (prev != null && mappedFile != null) {
+				// The new framebuffer may be mapped over the same memory, so
+				// take a copy of the current content first
+				BufferedImage copy = new BufferedImage(prev.getWidth(),
+						prev.getHeight(), BufferedImage.TYPE_INT_RGB);
+				copy.getGraphics().drawImage(prev, 0, 0, null);
+				prev = copy;
+			}
+			boolean recreated = recreateImage();
 			if (prev != null && graphicBuffer != null) {
 				graphicBuffer.drawImage(prev, 0, 0, null);
 			}
+			scaledBuffer = null;
+			mipmaps = null;
+			resetChangeGrid();
+			if (recreated) {
+				RFBContext ctx = display.getContext();
+				if (ctx != null && ctx.isDoubleBufferedFramebuffer()) {
+					frontBuffers = new FrontBuffer[] { new FrontBuffer(),
+							new FrontBuffer() };
+					front = null;
+					synchronized (frameDamage) {
+						frameDamage.clear();
+					}
+					frameComplete();
+				} else {
+					frontBuffers = null;
+					front = null;
+				}
+			}
 			display.resizeComponent();
 		}
 	}
 
-	private void recreateImage() {
+	private boolean recreateImage() {
 		int width = rfbWidth;
 		int height = rfbHeight;
+		boolean recreated = false;
 		if (imageBuffer == null) {
-			imageBuffer = imageFactory.create(width, height);
+			imageBuffer = createFramebuffer(width, height);
+			recreated = true;
 		} else if (imageBuffer.getWidth() != width
 				|| imageBuffer.getHeight() != height) {
 			synchronized (imageBuffer) {
-				imageBuffer = imageFactory.create(width, height);
+				imageBuffer = createFramebuffer(width, height);
 			}
+			recreated = true;
 		}
 		LOG.info("Image is now " + imageBuffer.getType() + " and " + width
 				+ " x " + height);
 		graphicBuffer = imageBuffer == null ? null : imageBuffer.getGraphics();
+		return recreated;
+	}
+
+	private BufferedImage createFramebuffer(int width, int height) {
+		RFBContext ctx = display.getContext();
+		int type = ctx == null ? RFBContext.FRAMEBUFFER_HEAP : ctx
+				.getFramebufferType();
+		try {
+			switch (type) {
+			case RFBContext.FRAMEBUFFER_DIRECT:
+				closeMappedFile();
+				return imageFactory.create(
+						width,
+						height,
+						ByteBuffer.allocateDirect(
+								imageFactory.getBufferSize(width, height))
+								.order(ByteOrder.nativeOrder()));
+			case RFBContext.FRAMEBUFFER_MAPPED:
+				if (ctx.getFramebufferFile() == null) {
+					throw new IOException("No framebuffer file set.");
+				}
+				if (mappedFile == null
+						|| !mappedFile.getFile().equals(
+								ctx.getFramebufferFile())) {
+					if (mappedFile != null) {
+						mappedFile.close();
+					}
+					mappedFile = new MappedFramebufferFile(
+							ctx.getFramebufferFile());
+				}
+				int size = imageFactory.getBufferSize(width, height);
+				return imageFactory.create(width, height, mappedFile.map(
+						width, height, this, size / (width * height)));
+			default:
+				break;
+			}
+		} catch (IOException ioe) {
+			LOG.error("Failed to allocate framebuffer, falling back to heap.",
+					ioe);
+		}
+		closeMappedFile();
+		return imageFactory.create(width, height);
+	}
+
+	/**
+	 * Close the file the framebuffer is mapped into, if any. This is called
+	 * when the session ends. The mapping itself is released once the
+	 * framebuffer is no longer referenced.
+	 */
+	public void closeFramebufferFile() {
+		synchronized (lock) {
+			closeMappedFile();
+		}
+	}
+
+	private void closeMappedFile() {
+		if (mappedFile != null) {
+			try {
+				mappedFile.close();
+			} catch (IOException ioe) {
+				LOG.warn("Failed to close framebuffer file.", ioe);
+			}
+			mappedFile = null;
+		}
 	}
 
 	public ColorModel getColorModel() {
@@ -246,143 +476,772 @@ public class RFBDisplayModel extends PixelFormat {
 	public void paintBuffer(Graphics g, ImageObserver imageObserver,
 			int imagex, int imagey, double xscale, double yscale, int scaleMode) {
 
-		if (scaleMode != RFBDisplay.NO_SCALING) {
-			switch (scaleMode) {
-			case RFBDisplay.BILINEAR:
-				((java.awt.Graphics2D) g).setRenderingHint(
-						java.awt.RenderingHints.KEY_INTERPOLATION,
-						java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-				break;
-			case RFBDisplay.BICUBIC:
-				((java.awt.Graphics2D) g).setRenderingHint(
-						java.awt.RenderingHints.KEY_INTERPOLATION,
-						java.awt.RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-				break;
-			default:
-				((java.awt.Graphics2D) g)
-						.setRenderingHint(
-								java.awt.RenderingHints.KEY_INTERPOLATION,
-								java.awt.RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
-				break;
+		BufferedImage img = acquirePresentationImage(xscale, yscale, scaleMode);
+		try {
+			if (img != null) {
+				g.drawImage(img, imagex, imagey, null);
+			}
+		} finally {
+			releasePresentationImage();
+		}
+
+		paintCursor(g);
+	}
+
+	/**
+	 * Get the image that should be drawn to the screen, unscaled, for the
+	 * given scale. This is either the framebuffer (the last published frame
+	 * when double buffered) or its scaled copy, which is (re)created if
+	 * needed. The image must not be used after calling
+	 * {@link #releasePresentationImage()}, which must always be called, even
+	 * if <code>null</code> is returned. Only one thread (normally the event
+	 * dispatch thread) may use the presentation image.
+	 *
+	 * @param xscale horizontal scale
+	 * @param yscale vertical scale
+	 * @param scaleMode scale mode
+	 * @return image or <code>null</code> if there is nothing to draw
+	 */
+	public BufferedImage acquirePresentationImage(double xscale,
+			double yscale, int scaleMode) {
+		if (frontBuffers != null) {
+			FrontBuffer f = front;
+			if (f == null) {
+				return null;
+			}
+			f.lock.lock();
+			acquired = f;
+			if (scaleMode == RFBDisplay.NO_SCALING) {
+				f.scaled = null;
+				return f.image;
+			}
+			int sw = (int) (f.image.getWidth() * xscale);
+			int sh = (int) (f.image.getHeight() * yscale);
+			if (f.scaled == null || f.scaled.getWidth() != sw
+					|| f.scaled.getHeight() != sh || f.scaledMode != scaleMode) {
+				f.scaled = sw < 1 || sh < 1 ? null : new BufferedImage(sw, sh,
+						BufferedImage.TYPE_INT_RGB);
+				f.scaledMode = scaleMode;
+				resample(f.image, f.scaled, scaleMode, 0, 0,
+						f.image.getWidth(), f.image.getHeight());
+			}
+			return f.scaled;
+		}
+		if (imageBuffer == null) {
+			return null;
+		}
+		if (scaleMode == RFBDisplay.NO_SCALING) {
+			scaledBuffer = null;
+			return imageBuffer;
+		}
+		int sw = (int) (imageBuffer.getWidth() * xscale);
+		int sh = (int) (imageBuffer.getHeight() * yscale);
+		synchronized (lock) {
+			if (scaledBuffer == null || scaledBuffer.getWidth() != sw
+					|| scaledBuffer.getHeight() != sh
+					|| scaledMode != scaleMode) {
+				scaledBuffer = sw < 1 || sh < 1 ? null : new BufferedImage(sw,
+						sh, BufferedImage.TYPE_INT_RGB);
+				scaledMode = scaleMode;
+				resample(imageBuffer, scaledBuffer, scaledMode, 0, 0,
+						rfbWidth, rfbHeight);
+			}
+			return scaledBuffer;
+		}
+	}
+
+	/**
+	 * Release the image returned by
+	 * {@link #acquirePresentationImage(double, double, int)}.
+	 */
+	public void releasePresentationImage() {
+		FrontBuffer f = acquired;
+		if (f != null) {
+			acquired = null;
+			f.lock.unlock();
+			if (publishDeferred) {
+				// The last frame could not be published while painting
+				publishFrame(false);
+			}
+		}
+	}
+
+	/**
+	 * Must be called whenever an area of the framebuffer has changed. Brings
+	 * any derived buffers (such as the scaled back-buffer) up to date and
+	 * requests a repaint of the area. When double buffered, the area is
+	 * instead remembered until the frame is published by
+	 * {@link #frameComplete()}.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 */
+	public void damage(int x, int y, int width, int height) {
+		ChangeGrid grid = changeGrid;
+		if (grid != null) {
+			grid.markDirty(x, y, width, height);
+		}
+		if (frontBuffers != null) {
+			synchronized (frameDamage) {
+				frameDamage.add(new Rectangle(x, y, width, height));
+			}
+			return;
+		}
+		if (scaledBuffer != null || mipmaps != null) {
+			synchronized (lock) {
+				resample(imageBuffer, scaledBuffer, scaledMode, x, y, width,
+						height);
+				updateMipmaps(x, y, width, height);
+			}
+		}
+		display.requestRepaint(display.getContext().getScreenUpdateTimeout(),
+				x, y, width, height);
+	}
+
+	/**
+	 * Called by the protocol engine once all rectangles of a framebuffer
+	 * update have been decoded. When double buffered, the areas damaged
+	 * since the last frame are copied from the back buffer into a front
+	 * buffer that is not being painted, which then becomes the one that is
+	 * painted. The copy is made by the decoding thread, so the event dispatch
+	 * thread is never waited for. If both front buffers are busy (which can
+	 * only happen briefly), publication is retried when the presentation
+	 * image is released.
+	 */
+	public void frameComplete() {
+		publishFrame(true);
+		ChangeGrid grid = changeGrid;
+		if (grid != null) {
+			hashDirtyTiles(grid);
+			grid.endFrame();
+		}
+	}
+
+	/**
+	 * Publish a frame. When retrying a deferred publication, only the areas
+	 * already pending are published, as damage since then belongs to an
+	 * update still being decoded.
+	 */
+	private void publishFrame(boolean newFrame) {
+		FrontBuffer[] buffers = frontBuffers;
+		if (buffers == null) {
+			return;
+		}
+		List<Rectangle> damage = new ArrayList<Rectangle>();
+		synchronized (lock) {
+			if (newFrame) {
+				synchronized (frameDamage) {
+					damage.addAll(frameDamage);
+					frameDamage.clear();
+				}
+			} else if (!publishDeferred) {
+				return;
+			}
+			if (damage.isEmpty() && !publishDeferred && front != null) {
+				return;
+			}
+			for (FrontBuffer b : buffers) {
+				if (!b.full) {
+					b.pending.addAll(damage);
+					if (b.pending.size() > 256) {
+						b.full = true;
+						b.pending.clear();
+					}
+				}
+			}
+			FrontBuffer target = buffers[0] == front ? buffers[1] : buffers[0];
+			if (!target.lock.tryLock()) {
+				target = target == buffers[0] ? buffers[1] : buffers[0];
+				if (!target.lock.tryLock()) {
+					publishDeferred = true;
+					return;
+				}
 			}
-			g.drawImage(imageBuffer, imagex, imagey,
-					(int) (imageBuffer.getWidth(imageObserver) * xscale),
-					(int) (imageBuffer.getHeight(imageObserver) * yscale), null);
+			try {
+				if (imageBuffer == null) {
+					return;
+				}
+				publish(target);
+				for (Rectangle r : damage) {
+					updateMipmaps(r.x, r.y, r.width, r.height);
+				}
+				front = target;
+				if (publishDeferred) {
+					// Areas of the deferred frames are not in this damage
+					updateMipmaps(0, 0, rfbWidth, rfbHeight);
+					damage.clear();
+					publishDeferred = false;
+				}
+			} finally {
+				target.lock.unlock();
+			}
+		}
+		int tm = display.getContext().getScreenUpdateTimeout();
+		if (damage.isEmpty()) {
+			display.requestRepaint(tm, 0, 0, rfbWidth, rfbHeight);
 		} else {
-			g.drawImage(imageBuffer, imagex, imagey,
-					imageBuffer.getWidth(imageObserver),
-					imageBuffer.getHeight(imageObserver), null);
+			for (Rectangle r : damage) {
+				display.requestRepaint(tm, r.x, r.y, r.width, r.height);
+			}
 		}
+	}
 
-		if (showSoftCursor) {
-			paintCursor(g);
+	/**
+	 * Bring a front buffer up to date with the back buffer.
+	 */
+	private void publish(FrontBuffer target) {
+		int width = imageBuffer.getWidth();
+		int height = imageBuffer.getHeight();
+		if (target.image == null || target.image.getWidth() != width
+				|| target.image.getHeight() != height
+				|| target.image.getType() != imageBuffer.getType()) {
+			// Always on the heap, whatever the back buffer uses
+			target.image = imageFactory.create(width, height);
+			target.scaled = null;
+			target.full = true;
+		}
+		if (target.full) {
+			target.pending.clear();
+			target.pending.add(new Rectangle(0, 0, width, height));
 		}
+		WritableRaster dst = target.image.getRaster();
+		WritableRaster src = imageBuffer.getRaster();
+		Rectangle bounds = dst.getBounds();
+		Object pixels = null;
+		for (Rectangle r : target.pending) {
+			Rectangle c = r.intersection(bounds);
+			if (c.isEmpty()) {
+				continue;
+			}
+			pixels = src.getDataElements(c.x, c.y, c.width, c.height,
+					c.width * c.height == getLength(pixels) ? pixels : null);
+			dst.setDataElements(c.x, c.y, c.width, c.height, pixels);
+			if (target.scaled != null) {
+				resample(target.image, target.scaled, target.scaledMode, c.x,
+						c.y, c.width, c.height);
+			}
+		}
+		target.pending.clear();
+		target.full = false;
 	}
 
-	public void paintCursor(Graphics g) {
-		Rectangle clip = getCursorRect();
-		clip.x += imagex;
-		clip.x *= xscale;
-		clip.y += imagey;
-		clip.y *= yscale;
-		clip.height *= yscale;
-		clip.width *= xscale;
-		Rectangle displayClip = new Rectangle(clip);
-
-		displayClip.x = Math.max(imagex, displayClip.x);
-		displayClip.y = Math.max(imagey, displayClip.y);
-		int mx = imagex + (int) (rfbWidth * xscale);
-		int my = imagey + (int) (rfbHeight * yscale);
-		int xover = (displayClip.x + displayClip.width) - mx;
-		if (xover > 0) {
-			displayClip.width -= xover;
-		}
-		int yover = (displayClip.y + displayClip.height) - my;
-		if (yover > 0) {
-			displayClip.height -= yover;
-		}
-		Rectangle oclip = g.getClipBounds();
-		g.setClip(displayClip);
-		g.drawImage(softCursor, clip.x, clip.y, clip.width, clip.height, null);
-		g.setClip(oclip);
+	private static int getLength(Object pixels) {
+		if (pixels instanceof int[]) {
+			return ((int[]) pixels).length;
+		} else if (pixels instanceof short[]) {
+			return ((short[]) pixels).length;
+		} else if (pixels instanceof byte[]) {
+			return ((byte[]) pixels).length;
+		}
+		return -1;
+	}
 
+	/**
+	 * Get the grid of tile hashes used to detect which parts of the
+	 * framebuffer change, or <code>null</code> if not enabled (see
+	 * {@link RFBContext#setChangeGridTileSize(int)}). A new grid is created
+	 * whenever the framebuffer is resized.
+	 *
+	 * @return change grid
+	 */
+	public ChangeGrid getChangeGrid() {
+		return changeGrid;
 	}
 
-	public synchronized void updateCursor(BufferedImage cursorImg, int x,
-			int y, int width, int height) {
-		softCursorFree();
-		showSoftCursor = context.isCursorUpdatesRequested()
-				&& !context.isCursorUpdateIgnored()
-				&& !context.isLocalCursorDisplayed();
+	/**
+	 * Add a listener to be told which tiles of the framebuffer changed at the
+	 * end of each update. Only called if the change grid is enabled (see
+	 * {@link RFBContext#setChangeGridTileSize(int)}).
+	 *
+	 * @param listener listener
+	 */
+	public void addChangeListener(FramebufferChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	public void removeChangeListener(FramebufferChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+
+	private void resetChangeGrid() {
+		ChangeGrid old = changeGrid;
+		int tileSize = context == null ? 0 : context.getChangeGridTileSize();
+		if (old != null && old.getTileSize() == tileSize
+				&& old.getWidth() == rfbWidth && old.getHeight() == rfbHeight) {
+			return;
+		}
+		changeGrid = tileSize > 0 && rfbWidth > 0 && rfbHeight > 0 ? new ChangeGrid(
+				rfbWidth, rfbHeight, tileSize, changeListeners) : null;
+		if (old != null) {
+			old.invalidate();
+		}
+	}
+
+	/**
+	 * Re-hash the tiles of the change grid damaged during the update, each
+	 * once however many rectangles touched it.
+	 */
+	private void hashDirtyTiles(ChangeGrid grid) {
+		BitSet dirty = grid.takeDirty();
+		if (dirty.isEmpty()) {
+			return;
+		}
+		int cols = grid.getColumns();
+		synchronized (lock) {
+			if (grid != changeGrid) {
+				return;
+			}
+			int[] data = getNativeData();
+			for (int i = dirty.nextSetBit(0); i >= 0; i = dirty
+					.nextSetBit(i + 1)) {
+				Rectangle tile = grid.getTile(i % cols, i / cols);
+				grid.update(i % cols, i / cols, data == null ? hashTile(tile)
+						: hashTile(data, rfbWidth, tile));
+			}
+		}
+	}
+
+	private static long hashTile(int[] data, int scan, Rectangle tile) {
+		long hash = ChangeGrid.FNV_OFFSET;
+		for (int r = 0; r < tile.height; r++) {
+			int o = ((tile.y + r) * scan) + tile.x;
+			for (int c = 0; c < tile.width; c++) {
+				hash = ChangeGrid.hash(hash, data[o++]);
+			}
+		}
+		return hash;
+	}
+
+	private long hashTile(Rectangle tile) {
+		Object pixels = getPixels(tile.x, tile.y, tile.width, tile.height);
+		long hash = ChangeGrid.FNV_OFFSET;
+		if (pixels instanceof int[]) {
+			for (int p : (int[]) pixels) {
+				hash = ChangeGrid.hash(hash, p);
+			}
+		} else if (pixels instanceof short[]) {
+			for (short p : (short[]) pixels) {
+				hash = ChangeGrid.hash(hash, p);
+			}
+		} else if (pixels instanceof byte[]) {
+			for (byte p : (byte[]) pixels) {
+				hash = ChangeGrid.hash(hash, p);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Re-sample an area of an image into its scaled copy. The area is widened
+	 * by the radius of the interpolation filter, as pixels just outside it
+	 * contribute to the scaled result.
+	 */
+	private static void resample(BufferedImage image, BufferedImage scaled,
+			int scaledMode, int x, int y, int width, int height) {
+		if (scaled == null || image == null) {
+			return;
+		}
+		Object hint;
+		int margin;
+		switch (scaledMode) {
+		case RFBDisplay.BILINEAR:
+			hint = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+			margin = 1;
+			break;
+		case RFBDisplay.BICUBIC:
+			hint = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+			margin = 2;
+			break;
+		default:
+			hint = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+			margin = 0;
+			break;
+		}
+		double sx = (double) scaled.getWidth() / image.getWidth();
+		double sy = (double) scaled.getHeight() / image.getHeight();
+		int x1 = (int) Math.floor((x - margin) * sx);
+		int y1 = (int) Math.floor((y - margin) * sy);
+		int x2 = (int) Math.ceil((x + width + margin) * sx);
+		int y2 = (int) Math.ceil((y + height + margin) * sy);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, hint);
+			g.clipRect(x1, y1, x2 - x1, y2 - y1);
+			g.drawImage(image, 0, 0, scaled.getWidth(),
+					scaled.getHeight(), null);
+		} finally {
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Draw the framebuffer reduced to the given size, starting from the
+	 * smallest mipmap level that is at least that size (see
+	 * {@link #getMipmap(int, int)}), so the cost depends on the size of the
+	 * thumbnail rather than of the desktop.
+	 *
+	 * @param g graphics
+	 * @param x x
+	 * @param y y
+	 * @param width thumbnail width
+	 * @param height thumbnail height
+	 */
+	public void paintThumbnail(Graphics g, int x, int y, int width, int height) {
+		synchronized (lock) {
+			BufferedImage img = getMipmap(width, height);
+			if (img == null) {
+				return;
+			}
+			Graphics2D g2 = (Graphics2D) g.create();
+			try {
+				g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+						RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g2.drawImage(img, x, y, width, height, null);
+			} finally {
+				g2.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Get the smallest mipmap level that is at least the given size, or the
+	 * framebuffer itself if no level is small enough (or mipmaps are not
+	 * enabled, see {@link RFBContext#setMipmapLevels(int)}). The levels are
+	 * built on first use. The caller should hold {@link #getLock()} while
+	 * using the image.
+	 *
+	 * @param width target width
+	 * @param height target height
+	 * @return image or <code>null</code> if there is no image framebuffer
+	 */
+	public BufferedImage getMipmap(int width, int height) {
+		synchronized (lock) {
+			int levels = context == null ? 0 : context.getMipmapLevels();
+			if (levels > 0 && rfbWidth > 0 && rfbHeight > 0
+					&& (mipmaps == null || mipmaps.length != levels)) {
+				mipmaps = new BufferedImage[levels];
+				int w = rfbWidth;
+				int h = rfbHeight;
+				for (int i = 0; i < levels; i++) {
+					w = Math.max(1, w / 2);
+					h = Math.max(1, h / 2);
+					mipmaps[i] = new BufferedImage(w, h,
+							BufferedImage.TYPE_INT_RGB);
+				}
+				updateMipmaps(0, 0, rfbWidth, rfbHeight);
+			} else if (levels == 0) {
+				mipmaps = null;
+			}
+			if (mipmaps != null) {
+				for (int i = mipmaps.length - 1; i >= 0; i--) {
+					if (mipmaps[i].getWidth() >= width
+							&& mipmaps[i].getHeight() >= height) {
+						return mipmaps[i];
+					}
+				}
+			}
+			return imageBuffer;
+		}
+	}
+
+	/**
+	 * Bring an area of each mipmap level up to date, each level being a 2x2
+	 * box filtered copy of the one above.
+	 */
+	private void updateMipmaps(int x, int y, int width, int height) {
+		BufferedImage[] levels = mipmaps;
+		if (levels == null) {
+			return;
+		}
+		int x1 = Math.max(0, x);
+		int y1 = Math.max(0, y);
+		int x2 = Math.min(rfbWidth, x + width);
+		int y2 = Math.min(rfbHeight, y + height);
+		if (x2 <= x1 || y2 <= y1) {
+			return;
+		}
+		// Level 0 pixels for the area, rounded out to even bounds
+		x1 &= ~1;
+		y1 &= ~1;
+		x2 = Math.min(rfbWidth, (x2 + 1) & ~1);
+		y2 = Math.min(rfbHeight, (y2 + 1) & ~1);
+		int sw = x2 - x1;
+		int sh = y2 - y1;
+		int[] src = getRGB(x1, y1, sw, sh);
+		for (BufferedImage level : levels) {
+			int lw = level.getWidth();
+			int lh = level.getHeight();
+			int dx1 = x1 / 2;
+			int dy1 = y1 / 2;
+			int dw = Math.min(lw, (x2 + 1) / 2) - dx1;
+			int dh = Math.min(lh, (y2 + 1) / 2) - dy1;
+			if (dw <= 0 || dh <= 0) {
+				return;
+			}
+			int[] dst = new int[dw * dh];
+			for (int r = 0; r < dh; r++) {
+				int sr0 = Math.min(sh - 1, r * 2);
+				int sr1 = Math.min(sh - 1, (r * 2) + 1);
+				for (int c = 0; c < dw; c++) {
+					int sc0 = Math.min(sw - 1, c * 2);
+					int sc1 = Math.min(sw - 1, (c * 2) + 1);
+					dst[(r * dw) + c] = average(src[(sr0 * sw) + sc0],
+							src[(sr0 * sw) + sc1], src[(sr1 * sw) + sc0],
+							src[(sr1 * sw) + sc1]);
+				}
+			}
+			level.getRaster().setDataElements(dx1, dy1, dw, dh, dst);
+			// The next level is built from this one, so read back the area
+			// that was changed, rounded out to even bounds again
+			x1 = dx1 & ~1;
+			y1 = dy1 & ~1;
+			x2 = Math.min(lw, (dx1 + dw + 1) & ~1);
+			y2 = Math.min(lh, (dy1 + dh + 1) & ~1);
+			sw = x2 - x1;
+			sh = y2 - y1;
+			src = (int[]) level.getRaster().getDataElements(x1, y1, sw, sh,
+					null);
+		}
+	}
 
-		softCursor = cursorImg;
+	private static int average(int p0, int p1, int p2, int p3) {
+		int r = ((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff)
+				+ ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff);
+		int g = ((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff)
+				+ ((p3 >> 8) & 0xff);
+		int b = (p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff);
+		return (((r + 2) >> 2) << 16) | (((g + 2) >> 2) << 8)
+				| ((b + 2) >> 2);
+	}
 
-		cursorWidth = width;
-		cursorHeight = height;
-		hotX = x;
-		hotY = y;
+	/**
+	 * Get an area of the framebuffer as <code>0xRRGGBB</code> pixels, with a
+	 * stride of the width. The caller should hold {@link #getLock()}.
+	 */
+	private int[] getRGB(int x, int y, int width, int height) {
+		if (headlessBuffer != null) {
+			return headlessBuffer.get(x, y, width, height, null);
+		}
+		int[] data = getNativeData();
+		if (data != null) {
+			int[] rgb = new int[width * height];
+			for (int r = 0; r < height; r++) {
+				System.arraycopy(data, ((y + r) * rfbWidth) + x, rgb, r * width,
+						width);
+			}
+			return rgb;
+		}
+		return imageBuffer.getRGB(x, y, width, height, null, 0, width);
+	}
 
-		display.getEngine().updateCursor(cursorX, cursorY);
+	public void paintCursor(Graphics g) {
+		cursor.paint(g, imagex, imagey, xscale, yscale, rfbWidth, rfbHeight);
+	}
 
+	public synchronized void updateCursor(BufferedImage cursorImg, int x,
+			int y, int width, int height) {
+		repaintCursor(cursor.setImage(cursorImg, x, y, width, height));
+		repaintCursor(cursor.setVisible(isSoftCursorShown()));
+		display.getEngine().updateCursor(cursor.getX(), cursor.getY());
 	}
 
+	/**
+	 * Move the soft cursor to follow local pointer motion.
+	 * 
+	 * @param x framebuffer x
+	 * @param y framebuffer y
+	 */
 	public synchronized void softCursorMove(int x, int y) {
+		repaintCursor(cursor.setVisible(isSoftCursorShown()));
+		repaintCursor(cursor.predict(clampX(x), clampY(y)));
+	}
+
+	/**
+	 * Move the soft cursor to where the server says the pointer is (a
+	 * PointerPos update), unless that is where local motion already put it.
+	 * 
+	 * @param x framebuffer x
+	 * @param y framebuffer y
+	 */
+	public synchronized void serverCursorMove(int x, int y) {
+		repaintCursor(cursor.setVisible(isSoftCursorShown()));
+		repaintCursor(cursor.reconcile(clampX(x), clampY(y)));
+	}
+
+	public synchronized void softCursorFree() {
+		repaintCursor(cursor.setVisible(false));
+		repaintCursor(cursor.setImage(null, 0, 0, 0, 0));
+	}
 
-		showSoftCursor = context.isCursorUpdatesRequested()
+	private boolean isSoftCursorShown() {
+		return context.isCursorUpdatesRequested()
 				&& !context.isCursorUpdateIgnored()
 				&& !context.isLocalCursorDisplayed();
+	}
+
+	private int clampX(int x) {
+		return Math.max(0, Math.min(rfbWidth - 1, x));
+	}
+
+	private int clampY(int y) {
+		return Math.max(0, Math.min(rfbHeight - 1, y));
+	}
 
-		int ox = cursorX;
-		int oy = cursorY;
-		cursorX = x;
-		cursorY = y;
-		if (cursorX < 0) {
-			cursorX = 0;
+	/**
+	 * Repaint areas uncovered or covered by the cursor. Only the component is
+	 * repainted, the framebuffer itself has not changed.
+	 */
+	private void repaintCursor(List<Rectangle> areas) {
+		Component c = display.getDisplayComponent();
+		if (c == null || areas.isEmpty()) {
+			return;
 		}
-		if (cursorY < 0) {
-			cursorY = 0;
+		int tm = context.getCursorUpdateTimeout();
+		for (Rectangle r : areas) {
+			c.repaint(tm, (int) (r.x * xscale) + imagex - 2,
+					(int) (r.y * yscale) + imagey - 2,
+					(int) (r.width * xscale) + 4,
+					(int) (r.height * yscale) + 4);
 		}
-		if (cursorX >= rfbWidth) {
-			cursorX = rfbWidth - 1;
+	}
+
+	public void drawRectangle(final int x, final int y, final int width,
+			final int height, final int color) {
+		fillRect(x, y, width, height, color);
+		damage(x, y, width, height);
+	}
+
+	/**
+	 * Fill an area of the framebuffer with a colour. The caller must call
+	 * {@link #damage(int, int, int, int)}.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 * @param rgb colour as <code>0xRRGGBB</code>
+	 */
+	public void fillRect(int x, int y, int width, int height, int rgb) {
+		synchronized (lock) {
+			if (headlessBuffer != null) {
+				headlessBuffer.fill(x, y, width, height, rgb);
+			} else if (graphicBuffer != null) {
+				if (fillColor == null
+						|| (fillColor.getRGB() & 0xffffff) != (rgb & 0xffffff)) {
+					fillColor = new Color(rgb);
+				}
+				graphicBuffer.setColor(fillColor);
+				graphicBuffer.fillRect(x, y, width, height);
+			}
 		}
-		if (cursorY >= rfbHeight) {
-			cursorY = rfbHeight - 1;
+	}
+
+	/**
+	 * Set a single pixel. The caller should hold {@link #getLock()} and must
+	 * call {@link #damage(int, int, int, int)}.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param rgb colour as <code>0xRRGGBB</code>
+	 */
+	public void setRGB(int x, int y, int rgb) {
+		if (headlessBuffer != null) {
+			headlessBuffer.setRGB(x, y, rgb);
+		} else {
+			imageBuffer.setRGB(x, y, rgb);
 		}
-		if (showSoftCursor) {
-			display.requestRepaint(display.getContext()
-					.getCursorUpdateTimeout(), ox - hotX, oy - hotY,
-					cursorWidth, cursorHeight);
-			display.requestRepaint(display.getContext()
-					.getCursorUpdateTimeout(), ox - hotX, oy - hotY,
-					cursorWidth, cursorHeight);
+	}
+
+	/**
+	 * Get a copy of the whole framebuffer as <code>0xRRGGBB</code> pixels,
+	 * whatever the pixel format.
+	 *
+	 * @return pixels, with a stride of the framebuffer width
+	 */
+	public int[] getFramebufferRGB() {
+		synchronized (lock) {
+			if (headlessBuffer != null) {
+				return headlessBuffer.get(0, 0, rfbWidth, rfbHeight, null);
+			}
+			int[] rgb = imageBuffer.getRGB(0, 0, rfbWidth, rfbHeight, null, 0,
+					rfbWidth);
+			for (int i = 0; i < rgb.length; i++) {
+				rgb[i] &= 0xffffff;
+			}
+			return rgb;
 		}
 	}
 
-	public synchronized void softCursorFree() {
-		if (showSoftCursor) {
-			showSoftCursor = false;
-			softCursor = null;
-			display.requestRepaint(display.getContext()
-					.getCursorUpdateTimeout(), cursorX - hotX, cursorY - hotY,
-					cursorWidth, cursorHeight);
+	/**
+	 * Replace the whole framebuffer with <code>0xRRGGBB</code> pixels as
+	 * returned by {@link #getFramebufferRGB()}, and damage it.
+	 *
+	 * @param rgb pixels
+	 */
+	public void setFramebufferRGB(int[] rgb) {
+		synchronized (lock) {
+			if (headlessBuffer != null) {
+				headlessBuffer.set(0, 0, rfbWidth, rfbHeight, rgb, 0, rfbWidth);
+			} else {
+				imageBuffer.setRGB(0, 0, rfbWidth, rfbHeight, rgb, 0, rfbWidth);
+			}
 		}
+		damage(0, 0, rfbWidth, rfbHeight);
 	}
 
-	public void drawRectangle(final int x, final int y, final int width,
-			final int height, final int color) {
-		if (!SwingUtilities.isEventDispatchThread()) {
-			SwingUtilities.invokeLater(new Runnable() {
-				@Override
-				public void run() {
-					drawRectangle(x, y, width, height, color);
+	/**
+	 * Get the pixels of an area of the framebuffer, as an array of its
+	 * elements (<code>int[]</code>, <code>short[]</code> or <code>byte[]</code>
+	 * ), suitable for {@link #setPixels(int, int, int, int, Object)}.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 * @return pixels
+	 */
+	public Object getPixels(int x, int y, int width, int height) {
+		synchronized (lock) {
+			if (headlessBuffer != null) {
+				return headlessBuffer.get(x, y, width, height, null);
+			}
+			return imageBuffer.getRaster().getDataElements(x, y, width,
+					height, null);
+		}
+	}
+
+	/**
+	 * Set the pixels of an area of the framebuffer from an array as returned
+	 * by {@link #getPixels(int, int, int, int)}. The caller must call
+	 * {@link #damage(int, int, int, int)}.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param width width
+	 * @param height height
+	 * @param pixels pixels
+	 * @return <code>false</code> if the pixels do not suit the framebuffer
+	 */
+	public boolean setPixels(int x, int y, int width, int height,
+			Object pixels) {
+		synchronized (lock) {
+			try {
+				if (headlessBuffer != null) {
+					headlessBuffer.set(x, y, width, height, (int[]) pixels, 0,
+							width);
+				} else {
+					imageBuffer.getRaster().setDataElements(x, y, width,
+							height, pixels);
 				}
-			});
-			return;
+				return true;
+			} catch (ClassCastException cce) {
+				return false;
+			} catch (ArrayIndexOutOfBoundsException aioobe) {
+				return false;
+			}
 		}
-		graphicBuffer.setColor(new Color(color));
-		graphicBuffer.fillRect(x, y, width, height);
-		display.requestRepaint(display.getContext().getScreenUpdateTimeout(),
-				x, y, width, height);
 	}
 
 	public void drawRectangle(final int x, final int y, final int width,
@@ -392,22 +1251,92 @@ public class RFBDisplayModel extends PixelFormat {
 		} else {
 			lastRect = bim;
 		}
-		if (bim != null) {
+		if (bim != null && headlessBuffer != null) {
+			int w = Math.min(width, bim.getWidth());
+			int h = Math.min(height, bim.getHeight());
+			int[] rgb = bim.getRGB(0, 0, w, h, null, 0, w);
+			synchronized (lock) {
+				headlessBuffer.set(x, y, w, h, rgb, 0, w);
+			}
+			damage(x, y, width, height);
+		} else if (bim != null) {
 			graphicBuffer.drawImage(bim, x, y, null);
-			display.requestRepaint(display.getContext()
-					.getScreenUpdateTimeout(), x, y, width, height);
+			damage(x, y, width, height);
 		} else {
 			LOG.warn("Request to draw last rectangle when there was none.");
 		}
 
 	}
 
+	/**
+	 * Copy an area of the framebuffer to another position (as used by
+	 * CopyRect). Where possible rows are moved directly in the array backing
+	 * the framebuffer, working bottom up when the destination is below the
+	 * source so overlapping areas are not corrupted. Other image types fall
+	 * back to {@link Graphics#copyArea(int, int, int, int, int, int)}.
+	 */
+	public void copyRect(int srcx, int srcy, int width, int height,
+			int dstx, int dsty) {
+		synchronized (lock) {
+			if (headlessBuffer != null) {
+				headlessBuffer.copy(srcx, srcy, width, height, dstx, dsty);
+				return;
+			}
+			Object data = null;
+			int scan = 0;
+			WritableRaster raster = imageBuffer.getRaster();
+			DataBuffer dataBuffer = raster.getDataBuffer();
+			SampleModel sampleModel = raster.getSampleModel();
+			if (sampleModel instanceof SinglePixelPackedSampleModel) {
+				scan = ((SinglePixelPackedSampleModel) sampleModel)
+						.getScanlineStride();
+			} else if (sampleModel instanceof ComponentSampleModel
+					&& ((ComponentSampleModel) sampleModel).getPixelStride() == 1) {
+				scan = ((ComponentSampleModel) sampleModel)
+						.getScanlineStride();
+			}
+			if (scan > 0 && dataBuffer.getNumBanks() == 1
+					&& dataBuffer.getOffset() == 0) {
+				if (dataBuffer instanceof DataBufferInt) {
+					data = ((DataBufferInt) dataBuffer).getData();
+				} else if (dataBuffer instanceof DataBufferUShort) {
+					data = ((DataBufferUShort) dataBuffer).getData();
+				} else if (dataBuffer instanceof DataBufferByte) {
+					data = ((DataBufferByte) dataBuffer).getData();
+				}
+			}
+			if (data == null && scan > 0
+					&& dataBuffer instanceof NioDataBuffer) {
+				NioDataBuffer nio = (NioDataBuffer) dataBuffer;
+				for (int r = 0; r < height; r++) {
+					int row = dsty > srcy ? height - 1 - r : r;
+					nio.copyElements(((srcy + row) * scan) + srcx,
+							((dsty + row) * scan) + dstx, width);
+				}
+			} else if (data == null) {
+				graphicBuffer.copyArea(srcx, srcy, width, height, dstx - srcx,
+						dsty - srcy);
+			} else if (dsty > srcy) {
+				for (int r = height - 1; r >= 0; r--) {
+					System.arraycopy(data, ((srcy + r) * scan) + srcx, data,
+							((dsty + r) * scan) + dstx, width);
+				}
+			} else {
+				// System.arraycopy copes with overlap within the same row
+				for (int r = 0; r < height; r++) {
+					System.arraycopy(data, ((srcy + r) * scan) + srcx, data,
+							((dsty + r) * scan) + dstx, width);
+				}
+			}
+		}
+	}
+
 	public int getHotX() {
-		return hotX;
+		return cursor.getHotX();
 	}
 
 	public int getHotY() {
-		return hotY;
+		return cursor.getHotY();
 	}
 
 	public Object getLock() {
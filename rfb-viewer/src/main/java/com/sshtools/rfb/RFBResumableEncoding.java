@@ -0,0 +1,38 @@
+package com.sshtools.rfb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An encoding that keeps state from one rectangle to the next (such as zlib
+ * streams), and can save that state between framebuffer updates so decoding
+ * can later be resumed from that point, e.g. from a keyframe in a recording.
+ */
+public interface RFBResumableEncoding extends RFBEncoding {
+
+	/**
+	 * Set whether to keep what is needed to save the state. This may cost
+	 * time on every rectangle, so is off by default, and must be turned on
+	 * before the first rectangle is decoded.
+	 *
+	 * @param tracked track state
+	 */
+	void setStateTracked(boolean tracked);
+
+	/**
+	 * Save the state.
+	 *
+	 * @param out output
+	 * @throws IOException if the state cannot be saved
+	 */
+	void saveState(DataOutput out) throws IOException;
+
+	/**
+	 * Replace the state with one previously saved.
+	 *
+	 * @param in input
+	 * @throws IOException if the state cannot be read
+	 */
+	void restoreState(DataInput in) throws IOException;
+}
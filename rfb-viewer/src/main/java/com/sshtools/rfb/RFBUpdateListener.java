@@ -0,0 +1,17 @@
+package com.sshtools.rfb;
+
+/**
+ * Told when each framebuffer update has been completely decoded.
+ */
+public interface RFBUpdateListener {
+
+	/**
+	 * Called from the protocol thread once every rectangle of an update has
+	 * been decoded, before the next update is requested. Nothing more has
+	 * been read from the server, so this is a point at which the state of the
+	 * engine may be saved (see {@link ProtocolEngine#saveState}).
+	 *
+	 * @param engine engine
+	 */
+	void updateComplete(ProtocolEngine engine);
+}
@@ -52,6 +52,22 @@ public class RawBuffer {
 		}
 	}
 
+	/**
+	 * Create a buffer that decodes 32 bit pixels into the supplied array
+	 * rather than an image. Used for native pixel formats, where the decoded
+	 * tile is copied directly into the framebuffer.
+	 */
+	public RawBuffer(int[] data, int w, int h, int bytesPerPixel,
+			PixelFormat format) {
+		this.format = format;
+		this.w = w;
+		this.h = h;
+		this.bytesPerPixel = bytesPerPixel;
+		this.len = w * h;
+		dataInt = data;
+		paletteInt = new int[256];
+	}
+
 	public BufferedImage getImage() {
 		return image;
 	}
@@ -0,0 +1,358 @@
+package com.sshtools.rfb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.rfbcommon.RFBConstants;
+import com.sshtools.rfbcommon.TileCacheEncoder;
+
+/**
+ * Disk backed, memory mapped store of tiles for the persistent tile cache
+ * (see {@link TileCacheEncoder}). Tiles are kept in fixed size slots in
+ * <code>tiles.dat</code>, with the hash, size, type and last use of each slot
+ * in <code>tiles.idx</code>. Both files are mapped, so the cache survives
+ * the viewer exiting without an explicit close. When full, the least recently
+ * used tile is replaced.
+ * <p>
+ * Only one process may use a store at a time, this is enforced with a file
+ * lock. When the requested directory is in use by another process, a numbered
+ * sub-directory of it (<code>1</code> to {@link #MAX_INSTANCES}) is used
+ * instead, so several viewer processes each have a persistent store of their
+ * own. Stores are shared by all sessions in the same VM, use
+ * {@link #open(File, int)} to obtain one.
+ */
+public class TileStore {
+	final static Logger LOG = LoggerFactory.getLogger(ProtocolEngine.class);
+
+	private final static int MAGIC = 0x52464254; // RFBT
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 16;
+	private final static int RECORD_SIZE = 40;
+	private final static int SLOT_SIZE = RFBConstants.TILE_CACHE_TILE_SIZE
+			* RFBConstants.TILE_CACHE_TILE_SIZE * 4;
+
+	/**
+	 * Largest number of slots, so the tile file can be mapped in one buffer
+	 */
+	public final static int MAX_SLOTS = Integer.MAX_VALUE / SLOT_SIZE;
+
+	/**
+	 * Number of further stores tried when a directory is in use by other
+	 * processes
+	 */
+	public final static int MAX_INSTANCES = 8;
+
+	private static Map<File, TileStore> stores = new HashMap<File, TileStore>();
+
+	private final LinkedHashMap<ByteBuffer, Integer> tiles = new LinkedHashMap<ByteBuffer, Integer>(
+			256, 0.75f, true);
+	private final LinkedList<Integer> free = new LinkedList<Integer>();
+	private final int slots;
+	private RandomAccessFile indexFile;
+	private RandomAccessFile dataFile;
+	private FileLock lock;
+	private MappedByteBuffer index;
+	private MappedByteBuffer data;
+	private long tick;
+
+	/**
+	 * Open (or get the already open) store in the given directory.
+	 *
+	 * @param dir directory
+	 * @param slots maximum number of tiles
+	 * @return store
+	 * @throws IOException if the store cannot be opened, or it and all of
+	 *             its numbered sub-directories are in use by other processes
+	 */
+	public static TileStore open(File dir, int slots) throws IOException {
+		File key = dir.getCanonicalFile();
+		synchronized (stores) {
+			TileStore store = stores.get(key);
+			if (store == null) {
+				store = openInstance(key, slots);
+				stores.put(key, store);
+			}
+			return store;
+		}
+	}
+
+	private static TileStore openInstance(File dir, int slots)
+			throws IOException {
+		for (int i = 0;; i++) {
+			File instanceDir = i == 0 ? dir : new File(dir, String.valueOf(i));
+			try {
+				return new TileStore(instanceDir, slots);
+			} catch (InUseException iue) {
+				if (i == MAX_INSTANCES) {
+					throw iue;
+				}
+				LOG.info(iue.getMessage() + " Trying " + new File(dir,
+						String.valueOf(i + 1)));
+			}
+		}
+	}
+
+	private TileStore(File dir, int slots) throws IOException {
+		if (slots < 1 || slots > MAX_SLOTS) {
+			throw new IllegalArgumentException("Slots must be between 1 and "
+					+ MAX_SLOTS);
+		}
+		this.slots = slots;
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Could not create tile cache directory "
+					+ dir);
+		}
+		indexFile = new RandomAccessFile(new File(dir, "tiles.idx"), "rw");
+		try {
+			lock = indexFile.getChannel().tryLock();
+			if (lock == null) {
+				throw new InUseException("Tile cache " + dir
+						+ " is in use by another process.");
+			}
+			dataFile = new RandomAccessFile(new File(dir, "tiles.dat"), "rw");
+			long indexSize = HEADER_SIZE + ((long) slots * RECORD_SIZE);
+			boolean valid = indexFile.length() == indexSize
+					&& dataFile.length() == (long) slots * SLOT_SIZE;
+			index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, indexSize);
+			data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, (long) slots * SLOT_SIZE);
+			if (valid && index.getInt(0) == MAGIC
+					&& index.getInt(4) == VERSION && index.getInt(8) == slots
+					&& index.getInt(12) == SLOT_SIZE) {
+				load();
+			} else {
+				LOG.info("Initialising tile cache in " + dir + " with "
+						+ slots + " slots");
+				initialise();
+			}
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Get the maximum number of tiles held.
+	 *
+	 * @return slots
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	public synchronized int size() {
+		return tiles.size();
+	}
+
+	/**
+	 * Get the 8 byte prefixes of the hashes of all tiles held, least recently
+	 * used first.
+	 *
+	 * @return hash prefixes
+	 */
+	public synchronized long[] getInventory() {
+		long[] inv = new long[tiles.size()];
+		int i = 0;
+		for (ByteBuffer hash : tiles.keySet()) {
+			inv[i++] = hash.getLong(0);
+		}
+		return inv;
+	}
+
+	/**
+	 * Store a tile. <code>pixels</code> is an array as returned by
+	 * {@link java.awt.image.Raster#getDataElements(int, int, int, int, Object)}
+	 * (<code>int[]</code>, <code>short[]</code> or <code>byte[]</code>).
+	 *
+	 * @param hash hash
+	 * @param width width
+	 * @param height height
+	 * @param pixels pixels
+	 */
+	public synchronized void put(byte[] hash, int width, int height,
+			Object pixels) {
+		if (data == null) {
+			return;
+		}
+		ByteBuffer key = ByteBuffer.wrap(hash.clone());
+		Integer slot = tiles.remove(key);
+		if (slot == null) {
+			if (free.isEmpty()) {
+				Iterator<Map.Entry<ByteBuffer, Integer>> it = tiles.entrySet()
+						.iterator();
+				slot = it.next().getValue();
+				it.remove();
+			} else {
+				slot = free.removeFirst();
+			}
+		}
+		// Mark the slot empty while its pixels are replaced, so if the process
+		// dies part way a later session never finds the old hash over the new
+		// pixels
+		int rec = HEADER_SIZE + (slot * RECORD_SIZE);
+		index.put(rec + 24, (byte) 0);
+		int type;
+		ByteBuffer buf = slotBuffer(slot);
+		if (pixels instanceof int[]) {
+			type = 4;
+			buf.asIntBuffer().put((int[]) pixels);
+		} else if (pixels instanceof short[]) {
+			type = 2;
+			buf.asShortBuffer().put((short[]) pixels);
+		} else {
+			type = 1;
+			buf.put((byte[]) pixels);
+		}
+		for (int i = 0; i < RFBConstants.TILE_CACHE_HASH_SIZE; i++) {
+			index.put(rec + i, hash[i]);
+		}
+		index.putShort(rec + 20, (short) width);
+		index.putShort(rec + 22, (short) height);
+		index.putLong(rec + 32, ++tick);
+		index.put(rec + 24, (byte) type);
+		tiles.put(key, slot);
+	}
+
+	/**
+	 * Get a tile, making it the most recently used.
+	 *
+	 * @param hash hash
+	 * @param width expected width
+	 * @param height expected height
+	 * @return pixels or <code>null</code> if not held
+	 */
+	public synchronized Object get(byte[] hash, int width, int height) {
+		if (data == null) {
+			return null;
+		}
+		Integer slot = tiles.get(ByteBuffer.wrap(hash));
+		if (slot == null) {
+			return null;
+		}
+		int rec = HEADER_SIZE + (slot * RECORD_SIZE);
+		if (index.getShort(rec + 20) != width
+				|| index.getShort(rec + 22) != height) {
+			return null;
+		}
+		index.putLong(rec + 32, ++tick);
+		ByteBuffer buf = slotBuffer(slot);
+		int len = width * height;
+		switch (index.get(rec + 24)) {
+		case 4:
+			int[] ints = new int[len];
+			buf.asIntBuffer().get(ints);
+			return ints;
+		case 2:
+			short[] shorts = new short[len];
+			buf.asShortBuffer().get(shorts);
+			return shorts;
+		default:
+			byte[] bytes = new byte[len];
+			buf.get(bytes);
+			return bytes;
+		}
+	}
+
+	/**
+	 * Flush and close the store. It is not normally necessary to call this.
+	 */
+	public synchronized void close() {
+		if (index != null) {
+			index.force();
+			index = null;
+		}
+		if (data != null) {
+			data.force();
+			data = null;
+		}
+		try {
+			if (lock != null) {
+				lock.release();
+			}
+			if (dataFile != null) {
+				dataFile.close();
+			}
+			if (indexFile != null) {
+				indexFile.close();
+			}
+		} catch (IOException ioe) {
+			LOG.warn("Failed to close tile cache.", ioe);
+		}
+		synchronized (stores) {
+			stores.values().remove(this);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class InUseException extends IOException {
+		InUseException(String message) {
+			super(message);
+		}
+	}
+
+	private ByteBuffer slotBuffer(int slot) {
+		ByteBuffer buf = data.duplicate();
+		buf.position(slot * SLOT_SIZE);
+		buf.limit((slot * SLOT_SIZE) + SLOT_SIZE);
+		return buf.slice();
+	}
+
+	private void initialise() {
+		index.putInt(0, MAGIC);
+		index.putInt(4, VERSION);
+		index.putInt(8, slots);
+		index.putInt(12, SLOT_SIZE);
+		for (int i = 0; i < slots; i++) {
+			index.put(HEADER_SIZE + (i * RECORD_SIZE) + 24, (byte) 0);
+			free.add(i);
+		}
+	}
+
+	private void load() {
+		List<long[]> used = new ArrayList<long[]>();
+		for (int i = 0; i < slots; i++) {
+			int rec = HEADER_SIZE + (i * RECORD_SIZE);
+			if (index.get(rec + 24) == 0) {
+				free.add(i);
+			} else {
+				long lastUsed = index.getLong(rec + 32);
+				used.add(new long[] { lastUsed, i });
+				tick = Math.max(tick, lastUsed);
+			}
+		}
+		// Rebuild the LRU order from the last use of each slot
+		Collections.sort(used, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				return o1[0] < o2[0] ? -1 : (o1[0] > o2[0] ? 1 : 0);
+			}
+		});
+		for (long[] u : used) {
+			int rec = HEADER_SIZE + ((int) u[1] * RECORD_SIZE);
+			byte[] hash = new byte[RFBConstants.TILE_CACHE_HASH_SIZE];
+			for (int j = 0; j < hash.length; j++) {
+				hash[j] = index.get(rec + j);
+			}
+			tiles.put(ByteBuffer.wrap(hash), (int) u[1]);
+		}
+		LOG.info("Loaded " + tiles.size() + " cached tiles");
+	}
+}
@@ -0,0 +1,178 @@
+package com.sshtools.rfb;
+
+import java.awt.Rectangle;
+
+/**
+ * Keeps track of the part of the framebuffer that is visible (the viewport),
+ * so only that area (plus a margin) need be requested from the server, and of
+ * which areas have not been requested, and so may be out of date (stale).
+ * Stale areas are tracked as a grid of tiles, and are refreshed when they come
+ * back into view.
+ */
+public class ViewportTracker {
+
+	/**
+	 * Size of the tiles stale areas are tracked in
+	 */
+	public final static int TILE_SIZE = 64;
+
+	private int width;
+	private int height;
+	private int cols;
+	private int rows;
+	private boolean[] stale = new boolean[0];
+	private Rectangle viewport;
+	private int margin;
+
+	/**
+	 * Set the size of the framebuffer. If it changes, all stale areas are
+	 * forgotten (a resize is always followed by a full update).
+	 *
+	 * @param width width
+	 * @param height height
+	 */
+	public synchronized void setFramebufferSize(int width, int height) {
+		if (width == this.width && height == this.height) {
+			return;
+		}
+		this.width = width;
+		this.height = height;
+		cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+		rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		stale = new boolean[cols * rows];
+	}
+
+	/**
+	 * Set the number of pixels around the viewport that are requested as
+	 * well, so small scrolls show up to date content straight away.
+	 *
+	 * @param margin margin
+	 */
+	public synchronized void setMargin(int margin) {
+		this.margin = margin;
+	}
+
+	/**
+	 * Set the visible area in framebuffer coordinates, or <code>null</code>
+	 * if it is not known (the whole framebuffer is then used).
+	 *
+	 * @param viewport viewport
+	 * @return whether the viewport changed
+	 */
+	public synchronized boolean setViewport(Rectangle viewport) {
+		if (viewport == null ? this.viewport == null : viewport
+				.equals(this.viewport)) {
+			return false;
+		}
+		this.viewport = viewport == null ? null : new Rectangle(viewport);
+		return true;
+	}
+
+	public synchronized Rectangle getViewport() {
+		return viewport == null ? null : new Rectangle(viewport);
+	}
+
+	/**
+	 * Get the area that should be requested, i.e. the viewport grown by the
+	 * margin and clipped to the framebuffer.
+	 *
+	 * @return area to request
+	 */
+	public synchronized Rectangle getRequestArea() {
+		Rectangle all = new Rectangle(0, 0, width, height);
+		if (viewport == null) {
+			return all;
+		}
+		Rectangle area = new Rectangle(viewport);
+		area.grow(margin, margin);
+		area = area.intersection(all);
+		return area.isEmpty() ? all : area;
+	}
+
+	/**
+	 * Mark every tile that is not entirely within the given area as stale.
+	 * Called when only that area is requested, as changes elsewhere will not
+	 * be sent.
+	 *
+	 * @param area area being requested
+	 */
+	public synchronized void markStaleOutside(Rectangle area) {
+		if (area.x == 0 && area.y == 0 && area.width >= width
+				&& area.height >= height) {
+			return;
+		}
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				int tx = c * TILE_SIZE;
+				int ty = r * TILE_SIZE;
+				int tw = Math.min(TILE_SIZE, width - tx);
+				int th = Math.min(TILE_SIZE, height - ty);
+				if (tx < area.x || ty < area.y
+						|| tx + tw > area.x + area.width
+						|| ty + th > area.y + area.height) {
+					stale[(r * cols) + c] = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the bounds of the stale tiles that touch the given area, and mark
+	 * them as no longer stale (as the caller is about to request them).
+	 *
+	 * @param area area
+	 * @return bounds of stale tiles or <code>null</code> if none are stale
+	 */
+	public synchronized Rectangle takeStale(Rectangle area) {
+		Rectangle bounds = null;
+		if (area.isEmpty()) {
+			return null;
+		}
+		int c1 = Math.max(0, area.x / TILE_SIZE);
+		int r1 = Math.max(0, area.y / TILE_SIZE);
+		int c2 = Math.min(cols - 1, (area.x + area.width - 1) / TILE_SIZE);
+		int r2 = Math.min(rows - 1, (area.y + area.height - 1) / TILE_SIZE);
+		for (int r = r1; r <= r2; r++) {
+			for (int c = c1; c <= c2; c++) {
+				int i = (r * cols) + c;
+				if (stale[i]) {
+					stale[i] = false;
+					Rectangle tile = new Rectangle(c * TILE_SIZE, r
+							* TILE_SIZE, Math.min(TILE_SIZE, width
+							- (c * TILE_SIZE)), Math.min(TILE_SIZE, height
+							- (r * TILE_SIZE)));
+					if (bounds == null) {
+						bounds = tile;
+					} else {
+						bounds.add(tile);
+					}
+				}
+			}
+		}
+		return bounds;
+	}
+
+	/**
+	 * Get how many tiles are currently stale.
+	 *
+	 * @return stale tiles
+	 */
+	public synchronized int getStaleTileCount() {
+		int n = 0;
+		for (boolean s : stale) {
+			if (s) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Forget all stale areas, e.g. after a full update has been requested.
+	 */
+	public synchronized void clearStale() {
+		for (int i = 0; i < stale.length; i++) {
+			stale[i] = false;
+		}
+	}
+}
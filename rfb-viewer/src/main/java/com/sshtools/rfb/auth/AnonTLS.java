@@ -93,7 +93,8 @@ public class AnonTLS implements SecurityType {
         sslSocket.startHandshake();
         LOG.info("Started handshake, swapping streams");
 
-        engine.setInputStream(new ProtocolReader(sslSocket.getInputStream()));
+        engine.setInputStream(new ProtocolReader(engine.meter(sslSocket
+                .getInputStream())));
         engine.setOutputStream(new ProtocolWriter(sslSocket.getOutputStream()));
         LOG.info("Swapped streams");
 
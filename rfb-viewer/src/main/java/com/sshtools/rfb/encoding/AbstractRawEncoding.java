@@ -26,6 +26,11 @@ public abstract class AbstractRawEncoding implements RFBEncoding {
 	protected int doProcessRaw(RFBDisplay display, int x, int y, int width,
 			int height, byte[] buf, int offset) {
 		RFBDisplayModel model = display.getDisplayModel();
+		int[] nativeData = model.getNativeData();
+		if (nativeData != null) {
+			return decodeNative(display, nativeData, x, y, width, height, buf,
+					offset);
+		}
 		// Create a smaller compatible image to draw the rectangle on. This
 		// might be used again last for 'last rect'
 		BufferedImage bim = model.getFactory().create(width, height);
@@ -45,6 +50,33 @@ public abstract class AbstractRawEncoding implements RFBEncoding {
 		}
 	}
 
+	/**
+	 * Copy raw pixels straight into the framebuffer, row by row. Only used
+	 * when the pixel format is native, so no conversion is needed other than
+	 * clearing the padding byte, which the server may set to anything. The
+	 * other native paths decode 3 byte pixels, so always store it as zero,
+	 * and identical pixels must hash the same in the change grid and caches.
+	 */
+	private int decodeNative(RFBDisplay display, int[] data, int x, int y,
+			int width, int height, byte[] buf, int offset) {
+		RFBDisplayModel model = display.getDisplayModel();
+		int scan = model.getRfbWidth();
+		int rowBytes = width * 4;
+		synchronized (model.getLock()) {
+			for (int r = 0; r < height; r++) {
+				int o = ((y + r) * scan) + x;
+				ByteBuffer.wrap(buf, offset + (r * rowBytes), rowBytes)
+						.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+						.get(data, o, width);
+				for (int end = o + width; o < end; o++) {
+					data[o] &= 0x00ffffff;
+				}
+			}
+		}
+		model.damage(x, y, width, height);
+		return rowBytes * height;
+	}
+
 	protected int decodeIntoImage(byte[] buf, RFBDisplayModel model,
 			BufferedImage bim, int offset) {
 		DataBuffer dataBuffer = bim.getRaster().getDataBuffer();
@@ -1,7 +1,6 @@
 package com.sshtools.rfb.encoding;
 
 import java.awt.Color;
-import java.awt.Graphics;
 import java.io.DataInputStream;
 import java.io.IOException;
 
@@ -36,9 +35,7 @@ public class CORREEncoding extends AbstractRawEncoding {
 		byte[] buffer = new byte[bytesPerPixel];
 		in.readFully(buffer);
 		Color pixel = ImageUtil.decodeAndUntranslatePixelToColour(buffer, 0, model);
-		Graphics g = display.getDisplayModel().getGraphicBuffer();
-		g.setColor(pixel);
-		g.fillRect(x, y, width, height);
+		model.fillRect(x, y, width, height, pixel.getRGB());
 		byte[] buffer2 = new byte[subrects * (bytesPerPixel + 4)];
 		in.readFully(buffer2);
 		int sx;
@@ -53,12 +50,11 @@ public class CORREEncoding extends AbstractRawEncoding {
 			sy = y + (buffer2[i++] & 0xFF);
 			sw = buffer2[i++] & 0xFF;
 			sh = buffer2[i++] & 0xFF;
-			g.setColor(pixel);
-			g.fillRect(sx, sy, sw, sh);
+			model.fillRect(sx, sy, sw, sh, pixel.getRGB());
 		}
 
 		// Request a repaint
-		display.requestRepaint(display.getContext().getScreenUpdateTimeout(), x, y, width, height);
+		display.getDisplayModel().damage(x, y, width, height);
 
 	}
 
@@ -0,0 +1,100 @@
+package com.sshtools.rfb.encoding;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.rfb.ProtocolEngine;
+import com.sshtools.rfb.RFBDisplay;
+import com.sshtools.rfb.RFBDisplayModel;
+import com.sshtools.rfb.RFBEncoding;
+import com.sshtools.rfbcommon.ProtocolReader;
+import com.sshtools.rfbcommon.RFBConstants;
+import com.sshtools.rfbcommon.RectCache;
+
+/**
+ * Client side of the CacheRect pseudo-encoding. Rectangles the server asks us
+ * to store are decoded with their nested encoding, then their pixels are kept
+ * in a {@link RectCache} so a later reference to the same ID costs only a few
+ * bytes. See {@link com.sshtools.rfbcommon.CacheRectEncoder} for the wire
+ * format.
+ */
+public class CacheRectEncoding implements RFBEncoding {
+	final static Logger LOG = LoggerFactory.getLogger(ProtocolEngine.class);
+
+	private RectCache<Object> cache;
+
+	public CacheRectEncoding() {
+	}
+
+	@Override
+	public int getType() {
+		return RFBConstants.ENC_CACHE_RECT;
+	}
+
+	@Override
+	public String getName() {
+		return "CacheRect";
+	}
+
+	@Override
+	public boolean isPseudoEncoding() {
+		return true;
+	}
+
+	/**
+	 * Discard all cached rectangles. Called when a session starts. During a
+	 * session the server resets both sides in-band with
+	 * {@link RFBConstants#CACHE_RECT_RESET}.
+	 */
+	public synchronized void reset() {
+		cache = null;
+	}
+
+	@Override
+	public void processEncodedRect(RFBDisplay display, int x, int y, int width,
+			int height, int encodingType) throws IOException {
+		ProtocolReader in = display.getEngine().getInputStream();
+		RFBDisplayModel model = display.getDisplayModel();
+		int op = in.readUnsignedByte();
+		int id = in.readInt();
+		switch (op) {
+		case RFBConstants.CACHE_RECT_STORE:
+			int nested = in.readInt();
+			display.getContext().selectEncoding(nested)
+					.processEncodedRect(display, x, y, width, height, nested);
+			getCache(display).put(id, width, height,
+					model.getPixels(x, y, width, height));
+			break;
+		case RFBConstants.CACHE_RECT_HIT:
+			Object pixels = getCache(display).get(id);
+			if (pixels == null
+					|| !model.setPixels(x, y, width, height, pixels)) {
+				LOG.warn("Cache miss for rectangle " + id + " at " + x + ","
+						+ y + "," + width + "," + height
+						+ ", requesting a refresh.");
+				getCache(display).remove(id);
+				display.getEngine().sendCacheRectMiss(id);
+				display.getEngine().requestFramebufferUpdate(x, y, width,
+						height, false);
+				return;
+			}
+			display.getDisplayModel().damage(x, y, width, height);
+			break;
+		case RFBConstants.CACHE_RECT_RESET:
+			reset();
+			break;
+		default:
+			throw new IOException("Unknown CacheRect operation " + op);
+		}
+	}
+
+	private synchronized RectCache<Object> getCache(RFBDisplay display) {
+		if (cache == null) {
+			cache = new RectCache<Object>(RectCache.getPixelBudget(Math.max(0,
+					display.getContext().getRectCacheLevel())));
+		}
+		return cache;
+	}
+}
@@ -28,10 +28,10 @@ public class CopyRectEncoding implements RFBEncoding {
         int posy = display.getEngine().getInputStream().readUnsignedShort();
 
         // Copy the area
-        display.getDisplayModel().getGraphicBuffer().copyArea(posx, posy, width, height, x - posx, y - posy);
+        display.getDisplayModel().copyRect(posx, posy, width, height, x, y);
 
         // Request a repaint
-        display.requestRepaint(display.getContext().getScreenUpdateTimeout(), x, y, width, height);
+        display.getDisplayModel().damage(x, y, width, height);
     }
 
     /*
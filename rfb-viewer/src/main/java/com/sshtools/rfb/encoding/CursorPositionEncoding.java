@@ -47,7 +47,7 @@ public class CursorPositionEncoding implements RFBEncoding {
 	public void processEncodedRect(RFBDisplay display, int x, int y, int width,
                                    int height, int encodingType) throws
             IOException {
-        display.getDisplayModel().softCursorMove(x, y);
+        display.getDisplayModel().serverCursorMove(x, y);
 //                (int)(((float)x - (float)display.getDisplayModel().getImagex() ) / display.getDisplayModel().getXscale(),
 //                (int)(((float)x - (float)display.getDisplayModel().getImagex() ) / display.getDisplayModel().getXscale(),
 //                                ,y);
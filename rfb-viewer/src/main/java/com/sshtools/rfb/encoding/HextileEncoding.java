@@ -1,7 +1,6 @@
 package com.sshtools.rfb.encoding;
 
 import java.awt.Color;
-import java.awt.Graphics;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.Map;
@@ -54,7 +53,6 @@ public class HextileEncoding extends AbstractRawEncoding {
 					tw = x + width - tx;
 				}
 				int subencoding = in.readUnsignedByte();
-				Graphics g = model.getGraphicBuffer();
 				Map<Integer, Integer> colors  = model.getColorMap();
 				if ((subencoding & HEXTILE_RAW) != 0) {
 					engine.getContext().selectEncoding(RFBContext.ENCODING_RAW).processEncodedRect(display, tx, ty, tw, th, 0);
@@ -65,8 +63,7 @@ public class HextileEncoding extends AbstractRawEncoding {
 					in.readFully(cbuf);
 					hextile_bg = ImageUtil.decodeAndUntranslatePixelToColour(cbuf, 0, model);
 				}
-				g.setColor(hextile_bg);
-				g.fillRect(tx, ty, tw, th);
+				model.fillRect(tx, ty, tw, th, hextile_bg.getRGB());
 				if ((subencoding & HEXTILE_FOREGROUND) != 0) {
 					in.readFully(cbuf);
 					hextile_fg = ImageUtil.decodeAndUntranslatePixelToColour(cbuf, 0, model);
@@ -84,7 +81,7 @@ public class HextileEncoding extends AbstractRawEncoding {
 				int b1, b2, sx, sy, sw, sh;
 				int i = 0;
 				if ((subencoding & HEXTILE_COLORED) == 0) {
-					g.setColor(hextile_fg);
+					int fg = hextile_fg.getRGB();
 					for (int j = 0; j < nSubrects; j++) {
 						b1 = buf[i++] & 0xFF;
 						b2 = buf[i++] & 0xFF;
@@ -92,7 +89,7 @@ public class HextileEncoding extends AbstractRawEncoding {
 						sy = ty + (b1 & 0xf);
 						sw = (b2 >> 4) + 1;
 						sh = (b2 & 0xf) + 1;
-						g.fillRect(sx, sy, sw, sh);
+						model.fillRect(sx, sy, sw, sh, fg);
 					}
 				} else if (model.getBitsPerPixel() == RFBDisplay.COLOR_8BIT) {
 					for (int j = 0; j < nSubrects; j++) {
@@ -103,8 +100,7 @@ public class HextileEncoding extends AbstractRawEncoding {
 						sy = ty + (b1 & 0xf);
 						sw = (b2 >> 4) + 1;
 						sh = (b2 & 0xf) + 1;
-						g.setColor(hextile_fg);
-						g.fillRect(sx, sy, sw, sh);
+						model.fillRect(sx, sy, sw, sh, hextile_fg.getRGB());
 					}
 				} else {
 					for (int j = 0; j < nSubrects; j++) {
@@ -120,13 +116,12 @@ public class HextileEncoding extends AbstractRawEncoding {
 						sy = ty + (b1 & 0xf);
 						sw = (b2 >> 4) + 1;
 						sh = (b2 & 0xf) + 1;
-						g.setColor(subrectFg);
-						g.fillRect(sx, sy, sw, sh);
+						model.fillRect(sx, sy, sw, sh, subrectFg.getRGB());
 					}
 				}
 			}
 		}
-		display.requestRepaint(display.getContext().getScreenUpdateTimeout(), x, y, width, height);
+		display.getDisplayModel().damage(x, y, width, height);
 
 	}
 
@@ -1,7 +1,6 @@
 package com.sshtools.rfb.encoding;
 
 import java.awt.Color;
-import java.awt.Graphics;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
@@ -41,12 +40,7 @@ public class RREEncoding implements RFBEncoding {
 			pixel = new Color(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF,
 				bg_buf[0] & 0xFF);
 		}
-		Graphics g = model.getGraphicBuffer();
-		if(g == null) {
-			return;
-		}
-		g.setColor(pixel);
-		g.fillRect(x, y, width, height);
+		model.fillRect(x, y, width, height, pixel.getRGB());
 		byte[] buf = new byte[nSubrects * ((model.getBitsPerPixel() / 8) + 8)];
 		in.readFully(buf);
 		DataInputStream ds = new DataInputStream(new ByteArrayInputStream(buf));
@@ -63,11 +57,9 @@ public class RREEncoding implements RFBEncoding {
 			sy = y + ds.readUnsignedShort();
 			sw = ds.readUnsignedShort();
 			sh = ds.readUnsignedShort();
-			g.setColor(pixel);
-			g.fillRect(sx, sy, sw, sh);
+			model.fillRect(sx, sy, sw, sh, pixel.getRGB());
 		}
-		display.requestRepaint(display.getContext().getScreenUpdateTimeout(),
-			x, y, width, height);
+		display.getDisplayModel().damage(x, y, width, height);
 	}
 
 	/*
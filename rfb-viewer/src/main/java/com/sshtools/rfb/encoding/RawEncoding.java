@@ -32,7 +32,6 @@ public class RawEncoding extends AbstractRawEncoding {
 		byte[] buf = new byte[width * bytes * height];
 		in.readFully(buf);
 		doProcessRaw(display, x, y, width, height, buf);
-		display.requestRepaint(display.getContext().getScreenUpdateTimeout(), x, y, width, height);
 	}
 
 	@Override
@@ -0,0 +1,131 @@
+package com.sshtools.rfb.encoding;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An {@link Inflater} for one of the zlib streams of an encoding, which can
+ * save its state and be resumed from it. Servers flush the stream at the end
+ * of every rectangle, so between rectangles the stream can be continued by a
+ * raw inflater given the last 32KB of output as its dictionary. Keeping that
+ * output costs a copy of everything inflated, so is only done when tracking.
+ */
+class ResumableInflater {
+
+	private final static int WINDOW_SIZE = 32768;
+
+	private Inflater inflater = new Inflater();
+	private boolean raw;
+	private boolean started;
+	private boolean tracking;
+	private boolean untracked;
+	private byte[] window;
+	private int windowPos;
+	private boolean windowFull;
+
+	void setTracking(boolean tracking) {
+		// Output already inflated has been missed
+		untracked = started;
+		this.tracking = tracking;
+		if (!tracking) {
+			window = null;
+		}
+		windowPos = 0;
+		windowFull = false;
+	}
+
+	void setInput(byte[] b, int off, int len) {
+		inflater.setInput(b, off, len);
+	}
+
+	int inflate(byte[] b) throws DataFormatException {
+		return inflate(b, 0, b.length);
+	}
+
+	int inflate(byte[] b, int off, int len) throws DataFormatException {
+		int n = inflater.inflate(b, off, len);
+		if (n > 0) {
+			started = true;
+			if (tracking) {
+				track(b, off, n);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * The server has started a new stream.
+	 */
+	void reset() {
+		if (raw) {
+			inflater.end();
+			inflater = new Inflater();
+			raw = false;
+		} else {
+			inflater.reset();
+		}
+		started = false;
+		untracked = false;
+		windowPos = 0;
+		windowFull = false;
+	}
+
+	void saveState(DataOutput out) throws IOException {
+		if (started && (!tracking || untracked)) {
+			throw new IOException("Stream state is not being tracked.");
+		}
+		out.writeBoolean(started);
+		if (started) {
+			int len = windowFull ? WINDOW_SIZE : windowPos;
+			out.writeShort(len);
+			if (windowFull) {
+				out.write(window, windowPos, WINDOW_SIZE - windowPos);
+			}
+			out.write(window, 0, windowPos);
+		}
+	}
+
+	void restoreState(DataInput in) throws IOException {
+		reset();
+		if (in.readBoolean()) {
+			int len = in.readUnsignedShort();
+			byte[] dict = new byte[len];
+			in.readFully(dict);
+			inflater.end();
+			inflater = new Inflater(true);
+			if (len > 0) {
+				inflater.setDictionary(dict);
+			}
+			raw = true;
+			started = true;
+			if (tracking) {
+				track(dict, 0, len);
+			}
+		}
+	}
+
+	private void track(byte[] b, int off, int len) {
+		if (window == null) {
+			window = new byte[WINDOW_SIZE];
+		}
+		if (len >= WINDOW_SIZE) {
+			System.arraycopy(b, off + len - WINDOW_SIZE, window, 0, WINDOW_SIZE);
+			windowPos = 0;
+			windowFull = true;
+			return;
+		}
+		int first = Math.min(len, WINDOW_SIZE - windowPos);
+		System.arraycopy(b, off, window, windowPos, first);
+		if (first < len) {
+			System.arraycopy(b, off + first, window, 0, len - first);
+			windowFull = true;
+		}
+		windowPos = (windowPos + len) % WINDOW_SIZE;
+		if (windowPos == 0 && len > 0) {
+			windowFull = true;
+		}
+	}
+}
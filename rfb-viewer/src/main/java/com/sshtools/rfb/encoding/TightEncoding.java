@@ -1,7 +1,6 @@
 package com.sshtools.rfb.encoding;
 
 import java.awt.Color;
-import java.awt.Graphics;
 import java.awt.Transparency;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
@@ -11,24 +10,28 @@ import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 import javax.imageio.ImageIO;
-import javax.swing.SwingUtilities;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sshtools.rfb.DecodeProfiler;
 import com.sshtools.rfb.ProtocolEngine;
 import com.sshtools.rfb.RFBDisplay;
 import com.sshtools.rfb.RFBDisplayModel;
+import com.sshtools.rfb.RFBResumableEncoding;
 import com.sshtools.rfbcommon.ImageUtil;
 import com.sshtools.rfbcommon.ProtocolReader;
 import com.sshtools.rfbcommon.RFBConstants;
 
-public class TightEncoding extends AbstractRawEncoding {
+public class TightEncoding extends AbstractRawEncoding implements
+		RFBResumableEncoding {
 	final static Logger LOG = LoggerFactory.getLogger(ProtocolEngine.class);
 
 	private final static int OP_FILL = 0x08;
@@ -44,7 +47,8 @@ public class TightEncoding extends AbstractRawEncoding {
 	private final static int MASK_STREAM = 0x30;
 
 	private ProtocolReader input;
-	private Inflater[] zlibInflaters = new Inflater[NO_OF_INFLATERS];
+	private ResumableInflater[] zlibInflaters = new ResumableInflater[NO_OF_INFLATERS];
+	private boolean stateTracked;
 	private RFBDisplayModel rfbModel;
 	private int streamId;
 	private RFBDisplay display;
@@ -54,6 +58,8 @@ public class TightEncoding extends AbstractRawEncoding {
 	private int pixSize;
 	private boolean tightNative;
 	private byte[] colorBuff;
+	private int[] nativeData;
+	private int scan;
 
 	public TightEncoding() {
 	}
@@ -77,6 +83,8 @@ public class TightEncoding extends AbstractRawEncoding {
 				&& rfbModel.getGreenMax() == 0xff
 				&& rfbModel.getBlueMax() == 0xff;
 		colorBuff = new byte[rfbModel.getBytesPerPixel()];
+		nativeData = tightNative ? rfbModel.getNativeData() : null;
+		scan = rfbModel.getRfbWidth();
 
 		// Get the op and reset compression
 		int op = input.readUnsignedByte();
@@ -84,11 +92,14 @@ public class TightEncoding extends AbstractRawEncoding {
 		int type = op >> 4 & 0x0F;
 
 		// Handle primary op
+		DecodeProfiler profiler = display.getEngine().getDecodeProfiler();
 		switch (type) {
 		case OP_FILL:
+			profiler.setSubencoding(DecodeProfiler.TIGHT_FILL);
 			doFill(x, y, width, height);
 			break;
 		case OP_JPEG:
+			profiler.setSubencoding(DecodeProfiler.TIGHT_JPEG);
 			doJpeg(x, y);
 			break;
 		default:
@@ -96,8 +107,7 @@ public class TightEncoding extends AbstractRawEncoding {
 			break;
 		}
 
-		display.requestRepaint(display.getContext().getScreenUpdateTimeout(),
-				x, y, width, height);
+		display.getDisplayModel().damage(x, y, width, height);
 	}
 
 	@Override
@@ -126,6 +136,12 @@ public class TightEncoding extends AbstractRawEncoding {
 		if ((op & MASK_FILTER) > 0) {
 			filter = input.readUnsignedByte();
 		}
+		display.getEngine()
+				.getDecodeProfiler()
+				.setSubencoding(
+						filter == OP_FILTER_PALETTE ? DecodeProfiler.TIGHT_PALETTE
+								: (filter == OP_FILTER_GRADIENT ? DecodeProfiler.TIGHT_GRADIENT
+										: DecodeProfiler.TIGHT_COPY));
 
 		synchronized (rfbModel.getLock()) {
 			switch (filter) {
@@ -134,7 +150,9 @@ public class TightEncoding extends AbstractRawEncoding {
 					LOG.info("Raw");
 				}
 				buffer = readTight(pixSize * width * height);
-				if (tightNative) {
+				if (nativeData != null) {
+					doProcessRawNative(x, y, width, height);
+				} else if (tightNative) {
 					doProcessRawTight(x, y, width, height);
 				} else {
 					doProcessRaw(display, x, y, width, height, buffer);
@@ -157,7 +175,7 @@ public class TightEncoding extends AbstractRawEncoding {
 					int i = 0;
 					for (int decodeY = y; decodeY < y + height; decodeY++) {
 						for (int decodeX = x; decodeX < x + width; decodeX++) {
-							rfbModel.getImageBuffer().setRGB(decodeX, decodeY,
+							setPixel(decodeX, decodeY,
 									palette24[buffer[i++] & 0xFF]);
 						}
 					}
@@ -175,6 +193,26 @@ public class TightEncoding extends AbstractRawEncoding {
 		}
 	}
 
+	private void doProcessRawNative(int x, int y, int width, int height) {
+		int i = 0;
+		for (int r = 0; r < height; r++) {
+			int o = ((y + r) * scan) + x;
+			int end = o + width;
+			while (o < end) {
+				nativeData[o++] = (buffer[i++] & 0xff) << 16
+						| (buffer[i++] & 0xff) << 8 | (buffer[i++] & 0xff);
+			}
+		}
+	}
+
+	private void setPixel(int x, int y, int rgb) {
+		if (nativeData != null) {
+			nativeData[(y * scan) + x] = rgb;
+		} else {
+			rfbModel.setRGB(x, y, rgb);
+		}
+	}
+
 	private void doProcessRawTight(int x, int y, int width, int height) {
 		ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_sRGB);
 		int[] nBits = { 8, 8, 8 };
@@ -197,7 +235,22 @@ public class TightEncoding extends AbstractRawEncoding {
 			LOG.debug("JPEG " + x + "," + y + "," + image.getWidth() + ","
 					+ image.getHeight());
 		}
-		rfbModel.drawRectangle(x, y, image.getWidth(), image.getHeight(), image);
+		if (nativeData != null) {
+			int w = image.getWidth();
+			int h = image.getHeight();
+			synchronized (rfbModel.getLock()) {
+				image.getRGB(0, 0, w, h, nativeData, (y * scan) + x, scan);
+				// Same (zero) alpha as the other native paths
+				for (int row = 0, o = (y * scan) + x; row < h; row++, o += scan) {
+					for (int i = o; i < o + w; i++) {
+						nativeData[i] &= 0xffffff;
+					}
+				}
+			}
+		} else {
+			rfbModel.drawRectangle(x, y, image.getWidth(), image.getHeight(),
+					image);
+		}
 	}
 
 	private void doFill(final int x, final int y, final int width,
@@ -207,14 +260,19 @@ public class TightEncoding extends AbstractRawEncoding {
 			LOG.debug("Fill " + x + "," + y + "," + width + "," + height
 					+ " with " + color);
 		}
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				Graphics g = rfbModel.getGraphicBuffer();
-				g.setColor(color);
-				g.fillRect(x, y, width, height);
+		if (nativeData != null) {
+			int rgb = color.getRGB() & 0xffffff;
+			synchronized (rfbModel.getLock()) {
+				for (int r = 0; r < height; r++) {
+					int o = ((y + r) * scan) + x;
+					Arrays.fill(nativeData, o, o + width, rgb);
+				}
 			}
-		});
+			return;
+		}
+		// Filled synchronously so the framebuffer is complete when the
+		// rectangle has been processed (e.g. for CacheRect)
+		rfbModel.fillRect(x, y, width, height, color.getRGB());
 	}
 
 	private byte[] readTight(int len) throws IOException {
@@ -238,9 +296,9 @@ public class TightEncoding extends AbstractRawEncoding {
 		byte[] buffer = new byte[len + raw];
 		input.readFully(buffer, len, raw);
 		if (null == zlibInflaters[streamId]) {
-			zlibInflaters[streamId] = new Inflater();
+			zlibInflaters[streamId] = newInflater();
 		}
-		Inflater decoder = zlibInflaters[streamId];
+		ResumableInflater decoder = zlibInflaters[streamId];
 		decoder.setInput(buffer, len, raw);
 		try {
 			decoder.inflate(buffer, 0, len);
@@ -264,11 +322,8 @@ public class TightEncoding extends AbstractRawEncoding {
 				pix[c] = (byte) (prevRow[c] + buf[dy * w * 3 + c]);
 				thisRow[c] = pix[c];
 			}
-			rfbModel.getImageBuffer().setRGB(
-					x,
-					dy + y,
-					(pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8
-							| (pix[2] & 0xFF));
+			setPixel(x, dy + y, (pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8
+					| (pix[2] & 0xFF));
 			for (dx = 1; dx < w; dx++) {
 				for (c = 0; c < 3; c++) {
 					est[c] = ((prevRow[dx * 3 + c] & 0xFF) + (pix[c] & 0xFF) - (prevRow[(dx - 1)
@@ -281,11 +336,8 @@ public class TightEncoding extends AbstractRawEncoding {
 					pix[c] = (byte) (est[c] + buf[(dy * w + dx) * 3 + c]);
 					thisRow[dx * 3 + c] = pix[c];
 				}
-				rfbModel.getImageBuffer().setRGB(
-						x + dx,
-						y + dy,
-						(pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8
-								| (pix[2] & 0xFF));
+				setPixel(x + dx, y + dy, (pix[0] & 0xFF) << 16
+						| (pix[1] & 0xFF) << 8 | (pix[2] & 0xFF));
 			}
 			System.arraycopy(thisRow, 0, prevRow, 0, w * 3);
 		}
@@ -300,19 +352,59 @@ public class TightEncoding extends AbstractRawEncoding {
 		for (dy = 0; dy < h; dy++) {
 			for (dx = 0; dx < w / 8; dx++) {
 				b = src[dy * rowBytes + dx];
+				i = x + (dx * 8);
 				for (n = 7; n >= 0; n--) {
-					rfbModel.getImageBuffer().setRGB(dx + x, dy + y,
-							palette[b >> n & 1]);
+					setPixel(i++, dy + y, palette[b >> n & 1]);
 				}
 			}
-			i = x;
+			i = x + (dx * 8);
 			for (n = 7; n >= 8 - w % 8; n--) {
-				rfbModel.getImageBuffer().setRGB(i++, dy + y,
+				setPixel(i++, dy + y,
 						palette[src[dy * rowBytes + dx] >> n & 1]);
 			}
 		}
 	}
 
+	@Override
+	public void setStateTracked(boolean tracked) {
+		stateTracked = tracked;
+		for (ResumableInflater i : zlibInflaters) {
+			if (i != null) {
+				i.setTracking(tracked);
+			}
+		}
+	}
+
+	@Override
+	public void saveState(DataOutput out) throws IOException {
+		for (ResumableInflater i : zlibInflaters) {
+			out.writeBoolean(i != null);
+			if (i != null) {
+				i.saveState(out);
+			}
+		}
+	}
+
+	@Override
+	public void restoreState(DataInput in) throws IOException {
+		for (int i = 0; i < NO_OF_INFLATERS; ++i) {
+			if (in.readBoolean()) {
+				if (zlibInflaters[i] == null) {
+					zlibInflaters[i] = newInflater();
+				}
+				zlibInflaters[i].restoreState(in);
+			} else if (zlibInflaters[i] != null) {
+				zlibInflaters[i].reset();
+			}
+		}
+	}
+
+	private ResumableInflater newInflater() {
+		ResumableInflater i = new ResumableInflater();
+		i.setTracking(stateTracked);
+		return i;
+	}
+
 	private void resetZlib(int op) {
 		for (int i = 0; i < NO_OF_INFLATERS; ++i) {
 			if ((op & 1) != 0 && zlibInflaters[i] != null) {
@@ -0,0 +1,116 @@
+package com.sshtools.rfb.encoding;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.rfb.ProtocolEngine;
+import com.sshtools.rfb.RFBContext;
+import com.sshtools.rfb.RFBDisplay;
+import com.sshtools.rfb.RFBDisplayModel;
+import com.sshtools.rfb.RFBEncoding;
+import com.sshtools.rfb.TileStore;
+import com.sshtools.rfbcommon.ProtocolReader;
+import com.sshtools.rfbcommon.RFBConstants;
+
+/**
+ * Client side of the persistent tile cache pseudo-encoding. Tiles the server
+ * asks us to store are decoded with their nested encoding and written to the
+ * {@link TileStore}, tiles referenced by hash are drawn from it. See
+ * {@link com.sshtools.rfbcommon.TileCacheEncoder} for the exchange.
+ */
+public class TileCacheEncoding implements RFBEncoding {
+	final static Logger LOG = LoggerFactory.getLogger(ProtocolEngine.class);
+
+	private TileStore store;
+	private boolean unavailable;
+
+	public TileCacheEncoding() {
+	}
+
+	@Override
+	public int getType() {
+		return RFBConstants.ENC_TILE_CACHE;
+	}
+
+	@Override
+	public String getName() {
+		return "Tile Cache";
+	}
+
+	@Override
+	public boolean isPseudoEncoding() {
+		return true;
+	}
+
+	@Override
+	public void processEncodedRect(RFBDisplay display, int x, int y, int width,
+			int height, int encodingType) throws IOException {
+		ProtocolReader in = display.getEngine().getInputStream();
+		RFBDisplayModel model = display.getDisplayModel();
+		int op = in.readUnsignedByte();
+		switch (op) {
+		case RFBConstants.TILE_CACHE_HELLO:
+			TileStore store = getStore(display.getContext());
+			if (store != null) {
+				display.getEngine().sendTileCacheInventory(store.getSlots(),
+						store.getInventory());
+			} else {
+				// Nothing can be held, so the server will send no references
+				display.getEngine().sendTileCacheInventory(0, new long[0]);
+			}
+			break;
+		case RFBConstants.TILE_CACHE_STORE:
+			byte[] hash = readHash(in);
+			int nested = in.readInt();
+			display.getContext().selectEncoding(nested)
+					.processEncodedRect(display, x, y, width, height, nested);
+			store = getStore(display.getContext());
+			if (store != null) {
+				store.put(hash, width, height,
+						model.getPixels(x, y, width, height));
+			}
+			break;
+		case RFBConstants.TILE_CACHE_REF:
+			hash = readHash(in);
+			store = getStore(display.getContext());
+			Object pixels = store == null ? null : store.get(hash, width,
+					height);
+			if (pixels == null
+					|| !model.setPixels(x, y, width, height, pixels)) {
+				LOG.warn("Tile cache miss at " + x + "," + y + "," + width
+						+ "," + height + ", requesting a refresh.");
+				display.getEngine().sendTileCacheMiss(hash);
+				display.getEngine().requestFramebufferUpdate(x, y, width,
+						height, false);
+				return;
+			}
+			display.getDisplayModel().damage(x, y, width, height);
+			break;
+		default:
+			throw new IOException("Unknown tile cache operation " + op);
+		}
+	}
+
+	private byte[] readHash(ProtocolReader in) throws IOException {
+		byte[] hash = new byte[RFBConstants.TILE_CACHE_HASH_SIZE];
+		in.readFully(hash);
+		return hash;
+	}
+
+	private synchronized TileStore getStore(RFBContext context) {
+		if (store == null && !unavailable && context.getTileCacheSlots() > 0) {
+			try {
+				store = TileStore.open(context.getTileCacheDirectory(),
+						context.getTileCacheSlots());
+			} catch (IOException ioe) {
+				// Only for this session, encodings are recreated for the next
+				LOG.warn("Tile cache is not available for this session. "
+						+ ioe.getMessage());
+				unavailable = true;
+			}
+		}
+		return store;
+	}
+}
@@ -1,16 +1,20 @@
 package com.sshtools.rfb.encoding;
 
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 import com.sshtools.rfb.ProtocolEngine;
 import com.sshtools.rfb.RFBDisplay;
 import com.sshtools.rfb.RFBDisplayModel;
+import com.sshtools.rfb.RFBResumableEncoding;
 
-public class ZLIBEncoding extends AbstractRawEncoding {
-	private Inflater inflater;
+public class ZLIBEncoding extends AbstractRawEncoding implements
+		RFBResumableEncoding {
+	private ResumableInflater inflater;
+	private boolean stateTracked;
 	private byte[] buffer;
 	private int bufferLength = 0;
 
@@ -41,7 +45,7 @@ public class ZLIBEncoding extends AbstractRawEncoding {
 			}
 			in.readFully(buffer, 0, length);
 			if (inflater == null) {
-				inflater = new Inflater();
+				inflater = newInflater();
 			}
 			inflater.setInput(buffer, 0, length);
 
@@ -61,4 +65,38 @@ public class ZLIBEncoding extends AbstractRawEncoding {
 		return "ZLIB";
 	}
 
+	@Override
+	public void setStateTracked(boolean tracked) {
+		stateTracked = tracked;
+		if (inflater != null) {
+			inflater.setTracking(tracked);
+		}
+	}
+
+	@Override
+	public void saveState(DataOutput out) throws IOException {
+		out.writeBoolean(inflater != null);
+		if (inflater != null) {
+			inflater.saveState(out);
+		}
+	}
+
+	@Override
+	public void restoreState(DataInput in) throws IOException {
+		if (in.readBoolean()) {
+			if (inflater == null) {
+				inflater = newInflater();
+			}
+			inflater.restoreState(in);
+		} else if (inflater != null) {
+			inflater.reset();
+		}
+	}
+
+	private ResumableInflater newInflater() {
+		ResumableInflater i = new ResumableInflater();
+		i.setTracking(stateTracked);
+		return i;
+	}
+
 }
@@ -1,6 +1,8 @@
 package com.sshtools.rfb.encoding;
 
+import com.sshtools.rfb.DecodeProfiler;
 import com.sshtools.rfb.RFBDisplay;
+import com.sshtools.rfb.RFBDisplayModel;
 import com.sshtools.rfb.RawBuffer;
 import com.sshtools.rfbcommon.RFBConstants;
 
@@ -8,6 +10,7 @@ public class ZRLEEncoding extends ZLIBEncoding {
 	private static final int MAX_TILE_SIZE = 64;
 
 	private RawBuffer rawBuffer;
+	private int[] nativeTile;
 
 	@Override
 	public int getType() {
@@ -23,6 +26,9 @@ public class ZRLEEncoding extends ZLIBEncoding {
 	protected int doProcessRaw(RFBDisplay display, int x, int y, int width,
 			int height, byte[] bytes) {
 		int offset = 0;
+		RFBDisplayModel model = display.getDisplayModel();
+		DecodeProfiler profiler = display.getEngine().getDecodeProfiler();
+		int[] nativeData = model.getNativeData();
 		int maxX = x + width;
 		int maxY = y + height;
 		for (int tileY = y; tileY < maxY; tileY += MAX_TILE_SIZE) {
@@ -30,38 +36,73 @@ public class ZRLEEncoding extends ZLIBEncoding {
 
 			for (int tileX = x; tileX < maxX; tileX += MAX_TILE_SIZE) {
 				int tileWidth = Math.min(maxX - tileX, MAX_TILE_SIZE);
+				long tileStarted = System.nanoTime();
+				int tileOffset = offset;
+				int tileType;
 
-				rawBuffer = new RawBuffer(display.getDisplayModel()
-						.getFactory().create(tileWidth, tileHeight), display
-						.getDisplayModel().getBytesPerCPIXEL(),
-						display.getDisplayModel());
+				if (nativeData != null) {
+					if (nativeTile == null) {
+						nativeTile = new int[MAX_TILE_SIZE * MAX_TILE_SIZE];
+					}
+					rawBuffer = new RawBuffer(nativeTile, tileWidth,
+							tileHeight, model.getBytesPerCPIXEL(), model);
+				} else {
+					rawBuffer = new RawBuffer(model.getFactory().create(
+							tileWidth, tileHeight), model.getBytesPerCPIXEL(),
+							model);
+				}
 
 				int subencoding = bytes[offset++] & 0x0ff;
 				int paletteSize = subencoding & 127;
 				offset += rawBuffer.readPalette(paletteSize, bytes, offset);
 				if (subencoding == RFBConstants.ZRLE_SOLID) {
+					tileType = DecodeProfiler.ZRLE_SOLID;
 					rawBuffer.fillPalette(0);
 				} else if ((subencoding & 128) != 0) {
 					if (0 == paletteSize) {
+						tileType = DecodeProfiler.ZRLE_PLAIN_RLE;
 						offset += rle(bytes, offset, display, tileX, tileY,
 								tileWidth, tileHeight);
 					} else {
+						tileType = DecodeProfiler.ZRLE_PALETTE_RLE;
 						offset += paletteRle(bytes, offset, tileX, tileY,
 								tileWidth, tileHeight);
 					}
 				} else {
 					if (0 == paletteSize) {
+						tileType = DecodeProfiler.ZRLE_RAW;
 						offset += rawBuffer.draw(bytes, offset, tileWidth,
 								tileHeight);
 					} else {
+						tileType = DecodeProfiler.ZRLE_PACKED_PALETTE;
 						offset += packed(bytes, offset, paletteSize, tileX,
 								tileY, tileWidth, tileHeight);
 					}
 				}
-				display.getDisplayModel().drawRectangle(tileX, tileY,
-						tileWidth, tileHeight, rawBuffer.getImage());
+				if (nativeData != null) {
+					// Native format, copy the tile straight into the
+					// framebuffer
+					int scan = model.getRfbWidth();
+					synchronized (model.getLock()) {
+						for (int r = 0; r < tileHeight; r++) {
+							System.arraycopy(nativeTile, r * tileWidth,
+									nativeData, ((tileY + r) * scan) + tileX,
+									tileWidth);
+						}
+					}
+				} else {
+					model.drawRectangle(tileX, tileY, tileWidth, tileHeight,
+							rawBuffer.getImage());
+				}
+				// Bytes are those of the decompressed tile
+				profiler.record(RFBConstants.ENC_ZRLE, tileType,
+						System.nanoTime() - tileStarted, offset - tileOffset,
+						tileWidth * tileHeight, -1);
 			}
 		}
+		if (nativeData != null) {
+			display.getDisplayModel().damage(x, y, width, height);
+		}
 
 		return 0;
 	}
@@ -0,0 +1,128 @@
+package com.sshtools.rfb.swing;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+import com.sshtools.rfb.RFBContext;
+
+/**
+ * Collects areas of a component that need repainting and presents them at
+ * most {@link RFBContext#getMaxPaintRate()} times a second, on ticks of a
+ * timer running at {@link RFBContext#getRefreshRate()}. Areas close to the
+ * mouse pointer (where the user expects to see the result of their input) are
+ * repainted immediately. The timer stops itself when there is nothing to
+ * paint.
+ */
+public class PaintScheduler implements ActionListener {
+
+	private final static int MAX_AREAS = 64;
+	private final static int IDLE_TICKS = 30;
+
+	private final JComponent component;
+	private final RFBContext context;
+	private final List<Rectangle> pending = new ArrayList<Rectangle>();
+	private Timer timer;
+	private long lastPresent;
+	private int idleTicks;
+	private volatile Point pointer;
+
+	public PaintScheduler(JComponent component, RFBContext context) {
+		this.component = component;
+		this.context = context;
+	}
+
+	/**
+	 * Set the position of the pointer over the component, or
+	 * <code>null</code> if it is not over it.
+	 *
+	 * @param pointer pointer position
+	 */
+	public void setPointer(Point pointer) {
+		this.pointer = pointer;
+	}
+
+	/**
+	 * Schedule an area of the component for repainting. May be called from
+	 * any thread.
+	 *
+	 * @param area area
+	 */
+	public void schedule(Rectangle area) {
+		Point p = pointer;
+		int radius = context.getImmediatePaintRadius();
+		if (p != null
+				&& radius > 0
+				&& area.intersects(new Rectangle(p.x - radius, p.y - radius,
+						radius * 2, radius * 2))) {
+			component.repaint(area);
+			return;
+		}
+		synchronized (pending) {
+			if (pending.size() >= MAX_AREAS) {
+				Rectangle union = new Rectangle(area);
+				for (Rectangle r : pending) {
+					union.add(r);
+				}
+				pending.clear();
+				pending.add(union);
+			} else {
+				pending.add(area);
+			}
+			idleTicks = 0;
+			int delay = 1000 / Math.max(1, context.getRefreshRate());
+			if (timer == null) {
+				timer = new Timer(delay, this);
+				timer.setCoalesce(true);
+			} else if (timer.getDelay() != delay) {
+				timer.setDelay(delay);
+			}
+			if (!timer.isRunning()) {
+				timer.start();
+			}
+		}
+	}
+
+	/**
+	 * Stop the timer and forget any pending areas.
+	 */
+	public void stop() {
+		synchronized (pending) {
+			pending.clear();
+			if (timer != null) {
+				timer.stop();
+			}
+		}
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		long now = System.nanoTime();
+		long interval = 1000000000L / Math.max(1, context.getMaxPaintRate());
+		List<Rectangle> areas;
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				if (++idleTicks > IDLE_TICKS) {
+					timer.stop();
+				}
+				return;
+			}
+			if (now - lastPresent < interval) {
+				return;
+			}
+			areas = new ArrayList<Rectangle>(pending);
+			pending.clear();
+		}
+		lastPresent = now;
+		// The repaint manager merges these into a single paint
+		for (Rectangle r : areas) {
+			component.repaint(r);
+		}
+	}
+}
@@ -2,16 +2,24 @@
 package com.sshtools.rfb.swing;
 
 import java.awt.AWTEvent;
+import java.awt.AlphaComposite;
 import java.awt.AWTEventMulticaster;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.ImageIcon;
 import javax.swing.JComponent;
@@ -32,6 +40,10 @@ public class SwingRFBDisplay extends JComponent implements RFBDisplay {
 	RFBContext context;
 	RFBDisplayModel displayModel;
 	Rectangle updateRect;
+	VolatileImage presentation;
+	List<Rectangle> dirty = new ArrayList<Rectangle>();
+	boolean accelerationUnavailable;
+	PaintScheduler paintScheduler;
 
 	public SwingRFBDisplay() {
 		super();
@@ -60,6 +72,10 @@ public class SwingRFBDisplay extends JComponent implements RFBDisplay {
 		this.context = context;
 		context.resetEncodings();
 		displayModel = new RFBDisplayModel(this);
+		if (paintScheduler != null) {
+			paintScheduler.stop();
+		}
+		paintScheduler = new PaintScheduler(this, context);
 
 		addComponentListener(new ComponentAdapter() {
 			@Override
@@ -130,6 +146,23 @@ public class SwingRFBDisplay extends JComponent implements RFBDisplay {
 		super.processKeyEvent(evt);
 	}
 
+	@Override
+	protected void processMouseEvent(MouseEvent e) {
+		if (paintScheduler != null) {
+			paintScheduler.setPointer(e.getID() == MouseEvent.MOUSE_EXITED ? null
+					: e.getPoint());
+		}
+		super.processMouseEvent(e);
+	}
+
+	@Override
+	protected void processMouseMotionEvent(MouseEvent e) {
+		if (paintScheduler != null) {
+			paintScheduler.setPointer(e.getPoint());
+		}
+		super.processMouseMotionEvent(e);
+	}
+
 	@Override
 	public Dimension getPreferredSize() {
 		return new Dimension(
@@ -190,10 +223,120 @@ public class SwingRFBDisplay extends JComponent implements RFBDisplay {
 		}
 		// synchronized (displayModel.getImageBuffer()) {
 		displayModel.updateScale(this);
-		displayModel.paintBuffer(g, this);
+		// Whatever is being painted is in view
+		engine.setViewport(displayModel.toFramebuffer(getVisibleRect()));
+		if (!context.isAcceleratedPresentation() || accelerationUnavailable
+				|| !paintAccelerated(g)) {
+			if (presentation != null) {
+				presentation.flush();
+				presentation = null;
+			}
+			displayModel.paintBuffer(g, this);
+		}
 		// }
 	}
 
+	/**
+	 * Paint through a {@link VolatileImage} copy of the framebuffer (or the
+	 * scaled back-buffer), uploading only the areas that have changed since
+	 * the last paint.
+	 * 
+	 * @param g graphics
+	 * @return painted, or <code>false</code> if no accelerated image is
+	 *         available
+	 */
+	private boolean paintAccelerated(Graphics g) {
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		if (gc == null) {
+			return false;
+		}
+		BufferedImage src = displayModel.acquirePresentationImage(
+				displayModel.getXscale(), displayModel.getYscale(),
+				context.getScaleMode());
+		try {
+			return paintAccelerated(g, gc, src);
+		} finally {
+			displayModel.releasePresentationImage();
+		}
+	}
+
+	private boolean paintAccelerated(Graphics g, GraphicsConfiguration gc,
+			BufferedImage src) {
+		if (src == null) {
+			return false;
+		}
+		List<Rectangle> areas;
+		synchronized (dirty) {
+			areas = new ArrayList<Rectangle>(dirty);
+			dirty.clear();
+		}
+		boolean full = false;
+		do {
+			if (presentation == null
+					|| presentation.getWidth() != src.getWidth()
+					|| presentation.getHeight() != src.getHeight()) {
+				if (presentation != null) {
+					presentation.flush();
+				}
+				presentation = gc.createCompatibleVolatileImage(src.getWidth(),
+						src.getHeight());
+				if (presentation == null
+						|| !presentation.getCapabilities().isAccelerated()) {
+					System.err
+							.println("WARNING: No accelerated images available, using software presentation.");
+					presentation = null;
+					accelerationUnavailable = true;
+					return false;
+				}
+				full = true;
+			}
+			int valid = presentation.validate(gc);
+			if (valid == VolatileImage.IMAGE_INCOMPATIBLE) {
+				presentation.flush();
+				presentation = null;
+				continue;
+			}
+			if (valid == VolatileImage.IMAGE_RESTORED) {
+				full = true;
+			}
+			Graphics2D vg = presentation.createGraphics();
+			try {
+				vg.setComposite(AlphaComposite.Src);
+				if (full) {
+					vg.drawImage(src, 0, 0, null);
+				} else {
+					for (Rectangle r : areas) {
+						vg.setClip(toPresentation(r));
+						vg.drawImage(src, 0, 0, null);
+					}
+				}
+			} finally {
+				vg.dispose();
+			}
+			g.drawImage(presentation, displayModel.getImagex(),
+					displayModel.getImagey(), null);
+		} while (presentation == null || presentation.contentsLost());
+
+		if (displayModel.hasCursor()) {
+			displayModel.paintCursor(g);
+		}
+		return true;
+	}
+
+	private Rectangle toPresentation(Rectangle r) {
+		if (context.getScaleMode() == NO_SCALING) {
+			return r;
+		}
+		// Allow for the interpolation filter's reach
+		double xs = displayModel.getXscale();
+		double ys = displayModel.getYscale();
+		int x1 = (int) Math.floor((r.x - 2) * xs);
+		int y1 = (int) Math.floor((r.y - 2) * ys);
+		int x2 = (int) Math.ceil((r.x + r.width + 2) * xs);
+		int y2 = (int) Math.ceil((r.y + r.height + 2) * ys);
+		return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+	}
+
 	@Override
 	public void resizeComponent() {
 		if (context.getScaleMode() == NO_SCALING) {
@@ -206,14 +349,33 @@ public class SwingRFBDisplay extends JComponent implements RFBDisplay {
 
 	@Override
 	public void requestRepaint(int tm, int x, int y, int w, int h) {
+		if (presentation != null) {
+			synchronized (dirty) {
+				if (dirty.size() >= 64) {
+					// Too many to track separately, just upload their bounds
+					Rectangle union = new Rectangle(x, y, w, h);
+					for (Rectangle r : dirty) {
+						union.add(r);
+					}
+					dirty.clear();
+					dirty.add(union);
+				} else {
+					dirty.add(new Rectangle(x, y, w, h));
+				}
+			}
+		}
 		if (engine != null) {
-			repaint(tm,
-					(int) (x * displayModel.getXscale())
-							+ displayModel.getImagex() - 2,
+			Rectangle area = new Rectangle((int) (x * displayModel.getXscale())
+					+ displayModel.getImagex() - 2,
 					(int) (y * displayModel.getYscale())
 							+ displayModel.getImagey() - 2,
 					(int) (w * displayModel.getXscale()) + 4,
 					(int) (h * displayModel.getYscale()) + 4);
+			if (context.getMaxPaintRate() > 0) {
+				paintScheduler.schedule(area);
+			} else {
+				repaint(tm, area.x, area.y, area.width, area.height);
+			}
 		}
 	}
 
@@ -273,8 +435,8 @@ public class SwingRFBDisplay extends JComponent implements RFBDisplay {
 					displayModel.getGraphicBuffer().drawImage(img,
 							updateRect.x, updateRect.y, null);
 
-					repaint(updateRect.x, updateRect.y, updateRect.width,
-							updateRect.height);
+					displayModel.damage(updateRect.x, updateRect.y,
+							updateRect.width, updateRect.height);
 					updateRect.notify();
 				}
 			}